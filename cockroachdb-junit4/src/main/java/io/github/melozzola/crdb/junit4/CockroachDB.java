@@ -15,15 +15,34 @@
  */
 package io.github.melozzola.crdb.junit4;
 
+import io.github.melozzola.crdb.jdbc.DatabasePool;
+import io.github.melozzola.crdb.jdbc.PooledDataSource;
 import io.github.melozzola.crdb.process.Cockroach;
+import io.github.melozzola.crdb.process.CockroachPool;
+import io.github.melozzola.crdb.process.LogBuffer;
 import io.github.melozzola.crdb.process.ProcessDetails;
+import io.github.melozzola.crdb.process.ResourceMonitor;
+import io.github.melozzola.crdb.process.SharedNode;
 import org.junit.rules.ExternalResource;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * <p> Junit 4 rule that is starting up/shutting down a cockroachDb process.
+ * <p> The cockroach db output is kept in memory ( See {@link #getLogs()} ) and printed to {@code System.err} only when a test fails
+ *     or the rule fails (e.g. cockroach db doesn't start). A class rule sees the failures of the single tests only when it is
+ *     also annotated with {@code @Rule}. E.g.
+ * <pre>
+ * &#64;ClassRule
+ * &#64;Rule
+ * public static CockroachDB cockroachDB = CockroachDB.newCockroachDB(...);
+ * </pre>
+ * <p> In lazy mode ( See {@link #lazy()} ) cockroach db starts only when a test uses it.
+ * <p> The memory and CPU used by cockroach db during the test class can be reported ( See {@link #monitorResources()} ).
  */
 public class CockroachDB extends ExternalResource {
 
@@ -32,9 +51,48 @@ public class CockroachDB extends ExternalResource {
      */
     public static final String PROCESS_DETAILS_CTX_KEY = "PROCESS_DETAILS";
 
+    /**
+     * <p> Context key under which the {@link DatabasePool} will be stored, when enabled via {@link #databasePerTest(int)}.
+     */
+    public static final String DATABASE_POOL_CTX_KEY = "DATABASE_POOL";
+
+    /**
+     * <p> Context key under which the {@link PooledDataSource} will be stored, when enabled via {@link #dataSource(int)}.
+     */
+    public static final String DATA_SOURCE_CTX_KEY = "DATA_SOURCE";
+
+    /**
+     * <p> Context key under which the name of the database of this JVM will be stored, when enabled via {@link #shared()}.
+     */
+    public static final String FORK_DATABASE_CTX_KEY = "FORK_DATABASE";
+
     private final Cockroach cockroach;
     private final Listener listener;
     private final Map<String, Object> context = new HashMap<>();
+    private boolean pooled = false;
+    private CockroachPool.Lease lease;
+    private boolean shared = false;
+    private SharedNode.Lease sharedLease;
+    private int databasePoolSize = 0;
+    private DatabasePool.Initializer databaseInitializer;
+    private DatabasePool databasePool;
+    private int dataSourceSize = 0;
+    private String dataSourceDatabase;
+    private PooledDataSource dataSource;
+    private LogBuffer logs;
+    private boolean lazy = false;
+    private boolean monitored = false;
+    private Appendable resourceReport;
+    private volatile ResourceMonitor.Watch watch;
+    private volatile ResourceMonitor.Usage resourceUsage;
+    private Description description;
+    // The rule is applied to the test class, the tests only dump the logs when they fail
+    private volatile boolean classRule = false;
+    // The rule is between before() and after()
+    private volatile boolean active = false;
+    // The process is running (owned or leased)
+    private volatile boolean started = false;
+    private RuntimeException startUpFailure;
 
     /**
      * <p> Listener called when the {@link #before()} method finished the initialization and cockroach db is up and running.
@@ -76,11 +134,239 @@ public class CockroachDB extends ExternalResource {
         this.listener = listener;
     }
 
+    /**
+     * <p> Leases the cockroach db process from the JVM wide {@link CockroachPool} instead of owning it.
+     *     Test classes configured in the same way share the same running process, therefore the
+     *     {@link Listener} initialization must be idempotent (e.g. {@code CREATE TABLE IF NOT EXISTS ...}).
+     *
+     * @return The rule.
+     */
+    public CockroachDB pooled(){
+        this.pooled = true;
+        return this;
+    }
+
+    /**
+     * <p> Attaches to a cockroach db node shared by all the JVMs of the machine ( See {@link SharedNode} ), e.g. the forks of
+     *     a parallel Surefire run, instead of starting one per JVM. Each JVM gets its own (empty) database, stored in the context
+     *     ( See {@link #FORK_DATABASE_CTX_KEY} ). The tests must use it instead of a fixed database name.
+     *     It takes precedence over {@link #pooled()}. The postgres jdbc driver must be in the classpath.
+     *
+     * @return The rule.
+     */
+    public CockroachDB shared(){
+        this.shared = true;
+        return this;
+    }
+
+    /**
+     * <p> Starts cockroach db (and calls the {@link Listener}) only at the first access to the context
+     *     ( See {@link #getFromContext(String, Class)} ) or to the {@link #processDetails()}, instead of in {@link #before()}.
+     *     Test classes that don't use the database (e.g. all tests ignored or filtered out) don't start it at all.
+     *
+     * @return The rule.
+     */
+    public CockroachDB lazy(){
+        this.lazy = true;
+        return this;
+    }
+
+    /**
+     * <p> Samples the memory (RSS) and CPU time of cockroach db while the rule is active ( See {@link ResourceMonitor} ).
+     *     The peak and average are available via {@link #getResourceUsage()} at the end. Linux only.
+     *
+     * @return The rule.
+     */
+    public CockroachDB monitorResources(){
+        this.monitored = true;
+        return this;
+    }
+
+    /**
+     * <p> Like {@link #monitorResources()}, also printing the usage at the end, e.g. to {@code System.out}.
+     *
+     * @param reportTo Where to print the usage.
+     * @return The rule.
+     */
+    public CockroachDB monitorResources(final Appendable reportTo){
+        this.monitored = true;
+        this.resourceReport = reportTo;
+        return this;
+    }
+
+    /**
+     * <p> Returns the resources used by cockroach db while the rule was last active, when enabled via {@link #monitorResources()}.
+     *     For pooled and shared processes ( See {@link #pooled()} and {@link #shared()} ) it's the usage of the whole process
+     *     while this rule was active, including the work of other test classes or JVMs using it at the same time.
+     *
+     * @return The usage, {@code null} if not monitored or not started.
+     */
+    public ResourceMonitor.Usage getResourceUsage(){
+        final ResourceMonitor.Watch current = watch;
+        return current != null ? current.getUsage() : resourceUsage;
+    }
+
+    /**
+     * <p> Returns the details of the running process, starting it if needed ( See {@link #lazy()} ).
+     *
+     * @return The process details.
+     */
+    public ProcessDetails processDetails(){
+        return getFromContextOrThrow(PROCESS_DETAILS_CTX_KEY, ProcessDetails.class);
+    }
+
+    /**
+     * <p> Creates a pool of databases, so that each test can get its own database via the {@link CockroachDatabase} rule.
+     *
+     * @param poolSize How many databases to keep ready. It should be at least the number of tests running in parallel.
+     * @return The rule.
+     */
+    public CockroachDB databasePerTest(final int poolSize){
+        return databasePerTest(poolSize, null);
+    }
+
+    /**
+     * <p> Creates a pool of databases, so that each test can get its own database via the {@link CockroachDatabase} rule.
+     *
+     * @param poolSize How many databases to keep ready. It should be at least the number of tests running in parallel.
+     * @param initializer Initialization (e.g. schema creation) executed in background every time a database is (re-)created.
+     * @return The rule.
+     */
+    public CockroachDB databasePerTest(final int poolSize, final DatabasePool.Initializer initializer){
+        this.databasePoolSize = poolSize;
+        this.databaseInitializer = initializer;
+        return this;
+    }
+
+    /**
+     * <p> Creates a pool of connections, as root, to the {@code system} database, or to the database of this JVM when {@link #shared()}.
+     *     See {@link #dataSource(int, String)}.
+     *
+     * @param poolSize The maximum number of connections.
+     * @return The rule.
+     */
+    public CockroachDB dataSource(final int poolSize){
+        return dataSource(poolSize, null);
+    }
+
+    /**
+     * <p> Creates a pool of connections, as root, stored in the context as a {@link javax.sql.DataSource} ( See {@link #DATA_SOURCE_CTX_KEY} ).
+     *     The connections are opened in background while the {@link Listener} runs and closed before cockroach db is shut down.
+     *
+     * @param poolSize The maximum number of connections. It should be at least the number of tests running in parallel.
+     * @param database The database of the connections. It can be created by the {@link Listener}.
+     * @return The rule.
+     */
+    public CockroachDB dataSource(final int poolSize, final String database){
+        this.dataSourceSize = poolSize;
+        this.dataSourceDatabase = database;
+        return this;
+    }
+
+    /**
+     * <p> Returns the most recent lines written by cockroach db. For pooled processes ( See {@link #pooled()} ) the lines can come from other test classes.
+     *     Shared nodes ( See {@link #shared()} ) are not started by this JVM: their output goes to the {@code node.log} file of the node folder.
+     *
+     * @return The log buffer, or {@code null} for shared nodes.
+     */
+    public LogBuffer getLogs(){
+        if (shared){
+            return null;
+        }
+        return logs != null ? logs : cockroach.getLogs();
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        if (description.isTest() && classRule){
+            // Also used as @Rule: the process belongs to the class, only watch the test
+            return dumpLogsOnFailure(base, description);
+        }
+        this.description = description;
+        final Statement statement = super.apply(base, description);
+        if (description.isTest()){
+            return dumpLogsOnFailure(statement, description);
+        }
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                classRule = true;
+                try {
+                    dumpLogsOnFailure(statement, description).evaluate();
+                }finally {
+                    classRule = false;
+                }
+            }
+        };
+    }
+
+    private Statement dumpLogsOnFailure(final Statement statement, final Description description){
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                try {
+                    statement.evaluate();
+                }catch (Throwable e){
+                    dumpLogs(description);
+                    throw e;
+                }
+            }
+        };
+    }
+
     @Override
     protected void before() throws Throwable {
         super.before();
-        final ProcessDetails details = cockroach.startUp();
+        active = true;
+        if (!lazy){
+            startUpIfNeeded();
+        }
+    }
+
+    // Once per rule activation. A failed start up is not retried: the following accesses get the same error.
+    private synchronized void startUpIfNeeded(){
+        if (started || !active){
+            return;
+        }
+        if (startUpFailure != null){
+            throw new IllegalStateException("Cockroach db failed to start up", startUpFailure);
+        }
+        try {
+            startUp();
+        }catch (RuntimeException e){
+            startUpFailure = e;
+            throw e;
+        }
+    }
+
+    private void startUp(){
+        final ProcessDetails details;
+        if (shared){
+            sharedLease = SharedNode.getInstance().attach(cockroach);
+            details = sharedLease.getProcessDetails();
+            context.put(FORK_DATABASE_CTX_KEY, sharedLease.createDatabase());
+        }else if (pooled){
+            lease = CockroachPool.getInstance().lease(cockroach);
+            logs = lease.getLogs();
+            details = lease.getProcessDetails();
+        }else {
+            details = cockroach.startUp();
+        }
+        started = true;
         context.put(PROCESS_DETAILS_CTX_KEY, details);
+        if (monitored){
+            resourceUsage = null;
+            watch = ResourceMonitor.getInstance().watch(details.getPid());
+        }
+        if (dataSourceSize > 0){
+            final String database = dataSourceDatabase != null ? dataSourceDatabase : shared ? sharedLease.getDatabase() : "system";
+            dataSource = PooledDataSource.forProcess(details, database, dataSourceSize);
+            context.put(DATA_SOURCE_CTX_KEY, dataSource);
+        }
+        if (databasePoolSize > 0){
+            databasePool = new DatabasePool(details, databasePoolSize, databaseInitializer);
+            context.put(DATABASE_POOL_CTX_KEY, databasePool);
+        }
         if (listener != null){
             listener.onStartUp(context);
         }
@@ -88,7 +374,51 @@ public class CockroachDB extends ExternalResource {
 
     @Override
     protected void after() {
-        cockroach.shutDown();
+        active = false;
+        synchronized (this) {
+            if (watch != null){
+                watch.close();
+                resourceUsage = watch.getUsage();
+                watch = null;
+                if (resourceReport != null){
+                    try {
+                        resourceReport.append("Cockroach db resources (" + (description != null ? description.getDisplayName() : "") + "): " + resourceUsage).append('\n');
+                    }catch (IOException e){
+                        // shh, still available via getResourceUsage()
+                    }
+                }
+            }
+            if (dataSource != null){
+                dataSource.close();
+                dataSource = null;
+            }
+            if (databasePool != null){
+                databasePool.close();
+                databasePool = null;
+            }
+            if (sharedLease != null){
+                sharedLease.close();
+                sharedLease = null;
+            }else if (lease != null){
+                lease.close();
+                lease = null;
+            }else if (started) {
+                cockroach.shutDown();
+            }
+            started = false;
+            startUpFailure = null;
+        }
+    }
+
+    private void dumpLogs(final Description description){
+        final LogBuffer buffer = getLogs();
+        if (buffer == null){
+            return;
+        }
+        final StringBuilder out = new StringBuilder();
+        out.append("Cockroach db logs (").append(description.getDisplayName()).append(" failed):\n");
+        buffer.dump(out);
+        System.err.print(out);
     }
 
     /**
@@ -100,6 +430,7 @@ public class CockroachDB extends ExternalResource {
      * @return The object in the context. If no object is found it will throe an {@link IllegalStateException}
      */
     public <T>T getFromContextOrThrow(final String key, final Class<T> type){
+        startUpIfNeeded();
         return getFromContextOrThrow(this.context, key, type);
     }
 
@@ -112,6 +443,7 @@ public class CockroachDB extends ExternalResource {
      * @return The object in the context or {@code null}
      */
     public <T>T getFromContext(final String key, final Class<T> type){
+        startUpIfNeeded();
         return getFromContext(this.context, key, type);
     }
 
@@ -125,6 +457,7 @@ public class CockroachDB extends ExternalResource {
      * @return The object in the context or the default value
      */
     public <T>T getFromContextOrDefault(final String key, final Class<T> type, T defaultValue){
+        startUpIfNeeded();
         return getFromContextOrDefault(this.context, key, type, defaultValue);
     }
 
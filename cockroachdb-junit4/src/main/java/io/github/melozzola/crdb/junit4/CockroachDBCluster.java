@@ -0,0 +1,133 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.junit4;
+
+import io.github.melozzola.crdb.process.CockroachCluster;
+import io.github.melozzola.crdb.process.ProcessDetails;
+import org.junit.rules.ExternalResource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p> Junit 4 rule that is starting up/shutting down a local multi node cockroachDb cluster.
+ */
+public class CockroachDBCluster extends ExternalResource {
+
+    /**
+     * <p> Context key under which the process details ({@link ProcessDetails}) of the first node will be stored.
+     */
+    public static final String PROCESS_DETAILS_CTX_KEY = CockroachDB.PROCESS_DETAILS_CTX_KEY;
+
+    /**
+     * <p> Context key under which the process details of all the nodes ({@code List<ProcessDetails>}) will be stored.
+     */
+    public static final String NODES_CTX_KEY = "NODES";
+
+    private final CockroachCluster cluster;
+    private final CockroachDB.Listener listener;
+    private final Map<String, Object> context = new HashMap<>();
+
+    /**
+     * <p> Instantiates a new {@link CockroachDBCluster} rule.
+     *
+     * @param cluster The cockroach db cluster configuration
+     * @param listener {@link CockroachDB.Listener} that will be called once the cluster is up and running
+     * @return An instance of the {@link CockroachDBCluster} rule
+     */
+    public static CockroachDBCluster newCockroachDBCluster(final CockroachCluster cluster, final CockroachDB.Listener listener){
+        return new CockroachDBCluster(cluster, listener);
+    }
+
+    /**
+     * <p> Instantiates a new {@link CockroachDBCluster} rule.
+     *
+     * @param cluster The cockroach db cluster configuration
+     * @return An instance of the {@link CockroachDBCluster} rule
+     */
+    public static CockroachDBCluster newCockroachDBCluster(final CockroachCluster cluster){
+        return newCockroachDBCluster(cluster, null);
+    }
+
+    private CockroachDBCluster(final CockroachCluster cluster, final CockroachDB.Listener listener) {
+        this.cluster = cluster;
+        this.listener = listener;
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        super.before();
+        final List<ProcessDetails> nodes = cluster.startUp();
+        context.put(PROCESS_DETAILS_CTX_KEY, nodes.get(0));
+        context.put(NODES_CTX_KEY, nodes);
+        if (listener != null){
+            listener.onStartUp(context);
+        }
+    }
+
+    @Override
+    protected void after() {
+        cluster.shutDown();
+    }
+
+    /**
+     * <p> Returns the process details of all the nodes. The first one is the node that bootstrapped the cluster.
+     *
+     * @return The process details of the nodes.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ProcessDetails> getNodes(){
+        return (List<ProcessDetails>) getFromContextOrThrow(NODES_CTX_KEY, List.class);
+    }
+
+    /**
+     * <p> Returns a value stored in the context. It throws an {@link IllegalStateException} if the value is not found
+     *
+     * @param key The key
+     * @param type The type of the value object.
+     * @param <T> type of the value object
+     * @return The object in the context. If no object is found it will throe an {@link IllegalStateException}
+     */
+    public <T>T getFromContextOrThrow(final String key, final Class<T> type){
+        return CockroachDB.getFromContextOrThrow(this.context, key, type);
+    }
+
+    /**
+     * <p> Returns a value stored in the context or {@code null} if the object is not found.
+     *
+     * @param key The key
+     * @param type The type of the value object.
+     * @param <T> type of the value object
+     * @return The object in the context or {@code null}
+     */
+    public <T>T getFromContext(final String key, final Class<T> type){
+        return CockroachDB.getFromContext(this.context, key, type);
+    }
+
+    /**
+     * <p> Returns a value stored in the context or the specified default if the object is not found.
+     *
+     * @param key The key
+     * @param type The type of the value object.
+     * @param defaultValue Default value to return if the object is not found
+     * @param <T> type of the value object
+     * @return The object in the context or the default value
+     */
+    public <T>T getFromContextOrDefault(final String key, final Class<T> type, T defaultValue){
+        return CockroachDB.getFromContextOrDefault(this.context, key, type, defaultValue);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.junit4;
+
+import io.github.melozzola.crdb.jdbc.DatabasePool;
+import io.github.melozzola.crdb.process.ProcessDetails;
+import org.junit.rules.ExternalResource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Junit 4 method rule that gives each test its own database (and user) on the node started by a {@link CockroachDB} rule.
+ * <p> The databases are taken from the pool enabled via {@link CockroachDB#databasePerTest(int)}, and they are
+ *     dropped and re-created in background after the test. For example:
+ * <pre>
+ *     {@code
+ *     @ClassRule
+ *     public static CockroachDB cockroachDB = newCockroachDB(builder().build()).databasePerTest(4);
+ *
+ *     @Rule
+ *     public CockroachDatabase database = newCockroachDatabase(cockroachDB);
+ *     }
+ * </pre>
+ */
+public class CockroachDatabase extends ExternalResource {
+
+    /**
+     * <p> Context key under which the process details ({@link ProcessDetails}) will be stored.
+     */
+    public static final String PROCESS_DETAILS_CTX_KEY = CockroachDB.PROCESS_DETAILS_CTX_KEY;
+
+    /**
+     * <p> Context key under which the database name will be stored.
+     */
+    public static final String DATABASE_NAME_CTX_KEY = "DATABASE_NAME";
+
+    /**
+     * <p> Context key under which the database user will be stored.
+     */
+    public static final String DATABASE_USER_CTX_KEY = "DATABASE_USER";
+
+    /**
+     * <p> Context key under which the database jdbc url will be stored.
+     */
+    public static final String JDBC_URL_CTX_KEY = "JDBC_URL";
+
+    private final CockroachDB cockroachDB;
+    private final long acquireTimeoutMs;
+    private final Map<String, Object> context = new HashMap<>();
+    private DatabasePool pool;
+    private DatabasePool.Database database;
+
+    /**
+     * <p> Instantiates a new {@link CockroachDatabase} rule.
+     *
+     * @param cockroachDB The class rule that started cockroach db, with the database pool enabled.
+     * @return An instance of the {@link CockroachDatabase} rule
+     */
+    public static CockroachDatabase newCockroachDatabase(final CockroachDB cockroachDB){
+        return new CockroachDatabase(cockroachDB, 30000);
+    }
+
+    private CockroachDatabase(final CockroachDB cockroachDB, final long acquireTimeoutMs) {
+        this.cockroachDB = cockroachDB;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        super.before();
+        pool = cockroachDB.getFromContext(CockroachDB.DATABASE_POOL_CTX_KEY, DatabasePool.class);
+        if (pool == null){
+            throw new IllegalStateException("Database pool not enabled. See CockroachDB#databasePerTest");
+        }
+        database = pool.acquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        context.put(PROCESS_DETAILS_CTX_KEY, cockroachDB.getFromContextOrThrow(PROCESS_DETAILS_CTX_KEY, ProcessDetails.class));
+        context.put(DATABASE_NAME_CTX_KEY, database.getName());
+        context.put(DATABASE_USER_CTX_KEY, database.getUser());
+        context.put(JDBC_URL_CTX_KEY, database.getJdbcUrl());
+    }
+
+    @Override
+    protected void after() {
+        if (database != null){
+            pool.release(database);
+            database = null;
+        }
+        context.clear();
+    }
+
+    /**
+     * <p> Returns the database of the running test.
+     *
+     * @return The database.
+     */
+    public DatabasePool.Database getDatabase(){
+        if (database == null){
+            throw new IllegalStateException("No database, the rule is not running");
+        }
+        return database;
+    }
+
+    /**
+     * <p> Returns a value stored in the context. It throws an {@link IllegalStateException} if the value is not found
+     *
+     * @param key The key
+     * @param type The type of the value object.
+     * @param <T> type of the value object
+     * @return The object in the context. If no object is found it will throe an {@link IllegalStateException}
+     */
+    public <T>T getFromContextOrThrow(final String key, final Class<T> type){
+        return CockroachDB.getFromContextOrThrow(this.context, key, type);
+    }
+
+    /**
+     * <p> Returns a value stored in the context or {@code null} if the object is not found.
+     *
+     * @param key The key
+     * @param type The type of the value object.
+     * @param <T> type of the value object
+     * @return The object in the context or {@code null}
+     */
+    public <T>T getFromContext(final String key, final Class<T> type){
+        return CockroachDB.getFromContext(this.context, key, type);
+    }
+}
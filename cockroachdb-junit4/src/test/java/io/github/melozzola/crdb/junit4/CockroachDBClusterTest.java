@@ -0,0 +1,50 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.junit4;
+
+import io.github.melozzola.crdb.process.CockroachCluster;
+import io.github.melozzola.crdb.process.ProcessDetails;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+
+import static io.github.melozzola.crdb.junit4.CockroachDBCluster.newCockroachDBCluster;
+
+/**
+ * <p> CockroachDBCluster junit 4 rule test
+ */
+public class CockroachDBClusterTest {
+
+    @ClassRule
+    public static CockroachDBCluster cluster = newCockroachDBCluster(CockroachCluster.builder().nodes(3).build());
+
+    @Test
+    public void everyNodeSeesTheWholeCluster() throws Exception {
+        Assert.assertEquals(3, cluster.getNodes().size());
+        for (ProcessDetails node : cluster.getNodes()) {
+            final String jdbcUrl = String.format("jdbc:postgresql://%s:%d/system?sslmode=disable", node.getHost(), node.getPort());
+            try (final Connection db = DriverManager.getConnection(jdbcUrl, "root", "");
+                 final ResultSet res = db.createStatement().executeQuery("SELECT count(*) FROM crdb_internal.gossip_nodes;")) {
+                Assert.assertTrue(res.next());
+                Assert.assertEquals(3, res.getInt(1));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.junit4;
+
+import io.github.melozzola.crdb.process.Cockroach;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p> CockroachDB rule lazy mode test. The node can't start ({@code /bin/false}): a test passes only if it is never started.
+ */
+public class CockroachDBLazyTest {
+
+    @Test
+    public void notStartedIfNotUsed() throws Throwable {
+        final AtomicInteger startUps = new AtomicInteger();
+        final CockroachDB rule = CockroachDB.newCockroachDB(node(), context -> startUps.incrementAndGet()).lazy();
+
+        evaluate(rule, () -> {});
+        Assert.assertEquals(0, startUps.get());
+    }
+
+    @Test
+    public void startedAtTheFirstAccess() throws Throwable {
+        final CockroachDB rule = CockroachDB.newCockroachDB(node()).lazy();
+        try {
+            evaluate(rule, rule::processDetails);
+            Assert.fail("The node can't start");
+        }catch (IllegalStateException e){
+            // The start up failure, thrown by the test
+            Assert.assertNotNull(e.getMessage());
+        }
+    }
+
+    @Test
+    public void startedByBeforeIfNotLazy() throws Throwable {
+        final CockroachDB rule = CockroachDB.newCockroachDB(node());
+        try {
+            evaluate(rule, () -> {});
+            Assert.fail("The node can't start");
+        }catch (IllegalStateException e){
+            Assert.assertNotNull(e.getMessage());
+        }
+    }
+
+    private static Cockroach node(){
+        return Cockroach.builder().executable("/bin/false").startupWaitTime(2000).build();
+    }
+
+    private static void evaluate(final CockroachDB rule, final Runnable test) throws Throwable {
+        rule.apply(new Statement() {
+            @Override
+            public void evaluate() {
+                test.run();
+            }
+        }, Description.createTestDescription(CockroachDBLazyTest.class, "test")).evaluate();
+    }
+}
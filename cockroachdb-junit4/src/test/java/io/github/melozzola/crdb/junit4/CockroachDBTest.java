@@ -18,6 +18,7 @@ package io.github.melozzola.crdb.junit4;
 import io.github.melozzola.crdb.process.ProcessDetails;
 import org.junit.Assert;
 import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
 
 import java.sql.Connection;
@@ -35,6 +36,7 @@ public class CockroachDBTest {
     private static final String JDBC_URL_CTX_KEY = "JDBC_URL";
 
     @ClassRule
+    @Rule // Prints the cockroach db logs when a test fails
     public static CockroachDB cockroachDB = newCockroachDB(
             builder()
                     .stdErr(System.err)// Redirect the cockroach db process errors to std err
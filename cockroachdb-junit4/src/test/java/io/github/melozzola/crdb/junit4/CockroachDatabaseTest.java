@@ -0,0 +1,64 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.junit4;
+
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+
+import static io.github.melozzola.crdb.junit4.CockroachDB.newCockroachDB;
+import static io.github.melozzola.crdb.junit4.CockroachDatabase.*;
+import static io.github.melozzola.crdb.process.Cockroach.builder;
+
+/**
+ * <p> CockroachDatabase junit 4 rule test. Each test gets its own empty database.
+ */
+public class CockroachDatabaseTest {
+
+    @ClassRule
+    public static CockroachDB cockroachDB = newCockroachDB(builder().build())
+            .databasePerTest(2, (connection, database) -> connection.createStatement().execute("CREATE TABLE logs (id INT PRIMARY KEY, log TEXT);"));
+
+    @Rule
+    public CockroachDatabase database = newCockroachDatabase(cockroachDB);
+
+    @Test
+    public void firstTest() throws Exception {
+        insertAndCount();
+    }
+
+    @Test
+    public void secondTest() throws Exception {
+        insertAndCount();
+    }
+
+    private void insertAndCount() throws Exception {
+        final String jdbcUrl = database.getFromContextOrThrow(JDBC_URL_CTX_KEY, String.class);
+        final String user = database.getFromContextOrThrow(DATABASE_USER_CTX_KEY, String.class);
+        try (final Connection db = DriverManager.getConnection(jdbcUrl, user, "")) {
+            db.createStatement().execute("INSERT INTO logs (id, log) VALUES (1, 'value 1');");
+            try (final ResultSet res = db.createStatement().executeQuery("SELECT count(*) FROM logs;")) {
+                Assert.assertTrue(res.next());
+                Assert.assertEquals(1, res.getInt(1));
+            }
+        }
+    }
+}
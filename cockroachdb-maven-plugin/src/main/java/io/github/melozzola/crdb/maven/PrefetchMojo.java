@@ -0,0 +1,188 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.maven;
+
+import io.github.melozzola.crdb.installer.BinaryCache;
+import io.github.melozzola.crdb.installer.Config;
+import io.github.melozzola.crdb.utils.Utils;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Installs the cockroach db binaries in the {@link BinaryCache} before the tests run, so that the first test
+ *     doesn't pay for the download and the extraction: {@link Utils#installBinariesIfNeeded(String)} finds them in the cache.
+ * <p> The binaries are resolved like in the tests: the default properties, overridden by the
+ *     {@code cockroachdb-junit-override.properties} of the project test (or main) resources, and the {@code classpath:}
+ *     resources are looked up in the project test classpath. The versions are installed in parallel, verified against
+ *     the declared checksums, if any.
+ * <pre>
+ *     {@code
+ *     <plugin>
+ *         <groupId>io.github.melozzola</groupId>
+ *         <artifactId>cockroachdb-maven-plugin</artifactId>
+ *         <executions>
+ *             <execution>
+ *                 <goals><goal>prefetch</goal></goals>
+ *                 <configuration>
+ *                     <versions><version>v1.1.7</version></versions>
+ *                 </configuration>
+ *             </execution>
+ *         </executions>
+ *     </plugin>
+ *     }
+ * </pre>
+ */
+@Mojo(name = "prefetch", defaultPhase = LifecyclePhase.PROCESS_TEST_RESOURCES, requiresDependencyResolution = ResolutionScope.TEST, threadSafe = true)
+public class PrefetchMojo extends AbstractMojo {
+
+    private static final String OVERRIDE = "cockroachdb-junit-override.properties";
+
+    /**
+     * <p> The cockroach db versions to install.
+     */
+    @Parameter(property = "cockroachdb.versions", defaultValue = "v1.1.7")
+    List<String> versions;
+
+    /**
+     * <p> Number of versions installed in parallel.
+     */
+    @Parameter(property = "cockroachdb.prefetch.threads", defaultValue = "4")
+    int threads;
+
+    /**
+     * <p> Skips the installation.
+     */
+    @Parameter(property = "cockroachdb.prefetch.skip", defaultValue = "false")
+    boolean skip;
+
+    /**
+     * <p> Fails the build if a binary can't be installed. Otherwise the test installs it.
+     */
+    @Parameter(property = "cockroachdb.prefetch.failOnError", defaultValue = "true")
+    boolean failOnError;
+
+    @Parameter(defaultValue = "${project.testClasspathElements}", readonly = true, required = true)
+    List<String> classpathElements;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip){
+            getLog().info("Skipping the cockroach db binaries prefetch");
+            return;
+        }
+        if (versions == null || versions.isEmpty()){
+            return;
+        }
+
+        final ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader projectClassLoader = new URLClassLoader(toUrls(classpathElements), getClass().getClassLoader())){
+            Thread.currentThread().setContextClassLoader(projectClassLoader);
+            // Per execution, the executions of the other modules of a parallel build (-T) have their own overrides
+            final Config config = Config.getInstance().withOverrides(loadOverridesOrNull(projectClassLoader));
+            prefetch(projectClassLoader, BinaryCache.fromConfig(config), config);
+        }catch (MojoExecutionException e){
+            throw e;
+        }catch (Exception e){
+            throw new MojoExecutionException("Unable to prefetch the cockroach db binaries", e);
+        }finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+
+    private void prefetch(final ClassLoader projectClassLoader, final BinaryCache cache, final Config config) throws MojoExecutionException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, versions.size())), r -> {
+            final Thread thread = new Thread(r, "crdb-prefetch");
+            thread.setDaemon(true);
+            thread.setContextClassLoader(projectClassLoader);
+            return thread;
+        });
+        try {
+            final Map<String, Future<String>> installs = new LinkedHashMap<>();
+            for (String version : versions){
+                installs.put(version.trim(), executor.submit(() -> {
+                    final long start = System.nanoTime();
+                    final String binary = Utils.installBinariesIfNeeded(version.trim(), cache, config);
+                    getLog().info("Cockroach db " + version.trim() + " ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: " + binary);
+                    return binary;
+                }));
+            }
+
+            final List<String> failed = new ArrayList<>();
+            for (Map.Entry<String, Future<String>> install : installs.entrySet()){
+                try {
+                    install.getValue().get();
+                }catch (ExecutionException e){
+                    failed.add(install.getKey());
+                    getLog().warn("Unable to prefetch cockroach db " + install.getKey() + ": " + e.getCause().getMessage(), e.getCause());
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Prefetch interrupted", e);
+                }
+            }
+            if (!failed.isEmpty() && failOnError){
+                throw new MojoExecutionException("Unable to prefetch the cockroach db binaries " + failed);
+            }
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Like Config, the first override file on the classpath: test resources before main resources.
+    private static Properties loadOverridesOrNull(final ClassLoader projectClassLoader) throws Exception {
+        final URL override = projectClassLoader.getResource(OVERRIDE);
+        if (override == null){
+            return null;
+        }
+        try (InputStream in = override.openStream()){
+            final Properties properties = new Properties();
+            properties.load(in);
+            return properties;
+        }
+    }
+
+    private static URL[] toUrls(final List<String> classpathElements) throws Exception {
+        final List<URL> urls = new ArrayList<>();
+        if (classpathElements != null){
+            for (String element : classpathElements){
+                final File file = new File(element);
+                if (Files.exists(file.toPath())){
+                    urls.add(file.toURI().toURL());
+                }
+            }
+        }
+        return urls.toArray(new URL[0]);
+    }
+}
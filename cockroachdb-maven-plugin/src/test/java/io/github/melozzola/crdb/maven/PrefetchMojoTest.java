@@ -0,0 +1,113 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.maven;
+
+import io.github.melozzola.crdb.installer.Config;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * <p> PrefetchMojo test
+ */
+public class PrefetchMojoTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path cache;
+    private PrefetchMojo mojo;
+
+    @Before
+    public void setUp() throws Exception {
+        // The project test classes: the override properties and a classpath binary, not visible to the plugin class loader
+        final Path testClasses = temporaryFolder.newFolder("test-classes").toPath();
+        Files.write(testClasses.resolve("stand-in-cockroach"), "#!/bin/sh\n".getBytes(StandardCharsets.UTF_8));
+        cache = temporaryFolder.getRoot().toPath().resolve("cache");
+        final Properties overrides = new Properties();
+        overrides.setProperty("cache.dir", cache.toString());
+        for (String os : Arrays.asList("linux", "darwin", "win")){
+            overrides.setProperty(os + ".vtest.classpath", "classpath:/stand-in-cockroach");
+            overrides.setProperty(os + ".vother.classpath", "classpath:/stand-in-cockroach");
+        }
+        try (OutputStream out = Files.newOutputStream(testClasses.resolve("cockroachdb-junit-override.properties"))){
+            overrides.store(out, null);
+        }
+
+        mojo = new PrefetchMojo();
+        mojo.threads = 2;
+        mojo.failOnError = true;
+        mojo.classpathElements = Collections.singletonList(testClasses.toString());
+    }
+
+    @Test
+    public void installsTheVersionsInTheCache() throws Exception {
+        mojo.versions = Arrays.asList("vtest", "vother");
+        mojo.execute();
+
+        try (Stream<Path> refs = Files.list(cache.resolve("refs"))){
+            Assert.assertEquals(2, refs.filter(ref -> !ref.getFileName().toString().endsWith(".lock")).count());
+        }
+        try (Stream<Path> objects = Files.list(cache.resolve("objects"))){
+            // Same content
+            Assert.assertEquals(1, objects.filter(object -> !object.getFileName().toString().startsWith(".")).count());
+        }
+    }
+
+    @Test
+    public void theJvmWideConfigIsNotChanged() throws Exception {
+        final String cacheDir = Config.getInstance().get("cache.dir");
+        mojo.versions = Collections.singletonList("vtest");
+        mojo.execute();
+        // Parallel builds (-T) run the executions of other modules in the same JVM
+        Assert.assertEquals(cacheDir, Config.getInstance().get("cache.dir"));
+        Assert.assertNull(Config.getInstance().get("linux.vtest.classpath"));
+    }
+
+    @Test
+    public void failsOnMissingVersions() throws Exception {
+        mojo.versions = Arrays.asList("vtest", "vmissing");
+        try {
+            mojo.execute();
+            Assert.fail("vmissing is not configured");
+        }catch (MojoExecutionException e){
+            Assert.assertTrue(e.getMessage().contains("vmissing"));
+        }
+
+        mojo.failOnError = false;
+        mojo.execute();
+    }
+
+    @Test
+    public void skip() throws Exception {
+        mojo.versions = Collections.singletonList("vtest");
+        mojo.skip = true;
+        mojo.execute();
+        Assert.assertFalse(Files.exists(cache));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p> Selects the entries to extract from a tgz or zip archive: the cockroach db binary and, optionally, other files
+ *     shipped with it (e.g. the {@code lib/} geospatial libraries of the newer releases).
+ * <p> Entries are selected by name ({@code cockroach}, matching the file name in any folder) or by glob pattern on the
+ *     path in the archive ({@code *}{@code /lib/*.so}). Without a binary selector the first file of the archive is the binary.
+ * <p> The other files are extracted next to the binary, keeping their path in the archive without the release folder
+ *     (e.g. {@code cockroach-v20.2.3.linux-amd64/lib/libgeos.so} is extracted to {@code lib/libgeos.so}).
+ */
+public class ArchiveEntries {
+
+    /**
+     * <p> The first file of the archive, nothing else.
+     */
+    public static final ArchiveEntries FIRST_FILE = new ArchiveEntries(null, Collections.emptyList());
+
+    private final String binary;
+    private final List<String> files;
+    private final PathMatcher binaryMatcher;
+    private final List<PathMatcher> fileMatchers = new ArrayList<>();
+
+    private ArchiveEntries(final String binary, final List<String> files) {
+        this.binary = binary;
+        this.files = Collections.unmodifiableList(files);
+        this.binaryMatcher = binary == null ? null : matcher(binary);
+        for (String file : files){
+            fileMatchers.add(matcher(file));
+        }
+    }
+
+    /**
+     * <p> Creates a selection.
+     *
+     * @param binary Name or glob of the binary entry, {@code null} or empty for the first file of the archive.
+     * @param files Comma separated names or globs of the other entries to extract, {@code null} or empty for none.
+     * @return The selection.
+     */
+    public static ArchiveEntries of(final String binary, final String files){
+        final List<String> filePatterns = new ArrayList<>();
+        if (files != null){
+            for (String file : files.split(",")){
+                if (!"".equals(file.trim())){
+                    filePatterns.add(file.trim());
+                }
+            }
+        }
+        final String binaryPattern = binary == null || "".equals(binary.trim()) ? null : binary.trim();
+        if (binaryPattern == null && filePatterns.isEmpty()){
+            return FIRST_FILE;
+        }
+        return new ArchiveEntries(binaryPattern, filePatterns);
+    }
+
+    /**
+     * @return {@code true} if only the first file is extracted.
+     */
+    boolean isFirstFile(){
+        return binary == null && files.isEmpty();
+    }
+
+    /**
+     * @return {@code true} if other files than the binary are extracted.
+     */
+    boolean hasFiles(){
+        return !files.isEmpty();
+    }
+
+    /**
+     * <p> Returns {@code true} if a file entry of the archive is the binary.
+     *     Without a binary selector any file is, the caller takes the first one.
+     *
+     * @param entryName The entry name.
+     * @return {@code true} if the entry is the binary.
+     */
+    boolean isBinary(final String entryName){
+        return binaryMatcher == null || binaryMatcher.matches(Paths.get(normalize(entryName)));
+    }
+
+    /**
+     * <p> Returns {@code true} if a file entry of the archive is one of the other files to extract.
+     *
+     * @param entryName The entry name.
+     * @return {@code true} if the entry is to be extracted.
+     */
+    boolean isFile(final String entryName){
+        for (PathMatcher fileMatcher : fileMatchers){
+            if (fileMatcher.matches(Paths.get(normalize(entryName)))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p> Returns the path where an entry is extracted, relative to the binary folder: the entry path without the release folder.
+     *
+     * @param entryName The entry name.
+     * @return The relative path.
+     */
+    static String relativePath(final String entryName){
+        final String name = normalize(entryName);
+        final int slash = name.indexOf('/');
+        return slash < 0 ? name : name.substring(slash + 1);
+    }
+
+    private static String normalize(final String entryName){
+        return entryName.startsWith("./") ? entryName.substring(2) : entryName;
+    }
+
+    // A plain name matches the file name in any folder, a pattern with a / matches the whole entry path.
+    private static PathMatcher matcher(final String pattern){
+        if (pattern.contains("/")){
+            return FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        }
+        final PathMatcher fileNameMatcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        return path -> path.getFileName() != null && fileNameMatcher.matches(path.getFileName());
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveEntries{" +
+                "binary='" + (binary == null ? "<first file>" : binary) + '\'' +
+                ", files=" + files +
+                '}';
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * <p> The entries of an archive, in order, recorded after a full read of the archive.
+ * <p> Archives are streamed, so the entries can't be read in random order. The index tells where the last needed entry
+ *     is: the next installations from the same archive stop decompressing as soon as they reach it, instead of reading
+ *     the whole archive to find out that nothing else matches. An index that doesn't match the archive (e.g. a different
+ *     entry at the same position) is ignored and rewritten.
+ */
+final class ArchiveIndex {
+
+    private static final String DIRECTORY = "d:";
+    private static final String FILE = "f:";
+
+    private final String sha256;
+    private final List<String> entries;
+
+    /**
+     * <p> Creates an index.
+     *
+     * @param sha256 The SHA-256 of the archive, or {@code null} if unknown.
+     * @param entries The entries: the name prefixed by {@code d:} for directories or {@code f:} for files.
+     */
+    ArchiveIndex(final String sha256, final List<String> entries) {
+        this.sha256 = sha256;
+        this.entries = entries;
+    }
+
+    static String entry(final String name, final boolean directory){
+        return (directory ? DIRECTORY : FILE) + name;
+    }
+
+    /**
+     * <p> Returns {@code true} if the index describes the archive with the given checksum.
+     *
+     * @param expectedSha256 The expected SHA-256 of the archive, or {@code null} if unknown.
+     * @return {@code true} if the index can be used.
+     */
+    boolean describes(final String expectedSha256){
+        return expectedSha256 == null || expectedSha256.trim().equalsIgnoreCase(sha256);
+    }
+
+    /**
+     * <p> Returns {@code true} if the entry at the given position is the same as in the index.
+     *
+     * @param position The position of the entry in the archive.
+     * @param entry The entry. See {@link #entry(String, boolean)}.
+     * @return {@code true} if it is the same entry.
+     */
+    boolean hasAt(final int position, final String entry){
+        return position < entries.size() && entries.get(position).equals(entry);
+    }
+
+    /**
+     * <p> Returns the position of the last entry to extract, or -1 if the binary is not in the index.
+     *
+     * @param selection The entries to extract.
+     * @return The position.
+     */
+    int lastNeeded(final ArchiveEntries selection){
+        int binary = -1;
+        int last = -1;
+        for (int i = 0; i < entries.size(); i++){
+            final String entry = entries.get(i);
+            if (!entry.startsWith(FILE)){
+                continue;
+            }
+            final String name = entry.substring(FILE.length());
+            if (binary < 0 && selection.isBinary(name)){
+                binary = i;
+                last = Math.max(last, i);
+            }else if (selection.isFile(name)){
+                last = i;
+            }
+        }
+        return binary < 0 ? -1 : last;
+    }
+
+    /**
+     * <p> Loads an index.
+     *
+     * @param file The index file.
+     * @return The index, or {@code null} if missing or unreadable.
+     */
+    static ArchiveIndex loadOrNull(final Path file){
+        if (!Files.exists(file)){
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(file)){
+            final Properties properties = new Properties();
+            properties.load(in);
+            final int size = Integer.parseInt(properties.getProperty("entries"));
+            final List<String> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++){
+                final String entry = properties.getProperty("entry." + i);
+                if (entry == null){
+                    return null;
+                }
+                entries.add(entry);
+            }
+            return new ArchiveIndex(properties.getProperty("sha256"), entries);
+        }catch (Exception e){
+            // Corrupted, the next full read rewrites it
+            return null;
+        }
+    }
+
+    /**
+     * <p> Saves the index atomically. Failures are ignored: the index is only an optimization.
+     *
+     * @param file The index file.
+     */
+    void save(final Path file){
+        final Properties properties = new Properties();
+        if (sha256 != null){
+            properties.setProperty("sha256", sha256);
+        }
+        properties.setProperty("entries", Integer.toString(entries.size()));
+        for (int i = 0; i < entries.size(); i++){
+            properties.setProperty("entry." + i, entries.get(i));
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp-" + UUID.randomUUID());
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)){
+                properties.store(out, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }catch (IOException e){
+            // shh
+        }finally {
+            try {
+                Files.deleteIfExists(tmp);
+            }catch (IOException e){
+                // shh
+            }
+        }
+    }
+}
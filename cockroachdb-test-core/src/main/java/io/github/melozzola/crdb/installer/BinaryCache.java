@@ -0,0 +1,397 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import io.github.melozzola.crdb.utils.Utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Content addressed cache of the cockroach db binaries.
+ * <p> The cache folder contains
+ * <ul>
+ *     <li>{@code objects/<sha256>}: the binaries, named by the SHA-256 of their content.</li>
+ *     <li>{@code refs/<name>}: the SHA-256 of the binary installed for a name (e.g. {@code cockroach-v1.1.7.linux-amd64}).</li>
+ *     <li>{@code files/<sha256>}: the other files extracted with the binary, if any (e.g. {@code lib/libgeos.so}). See {@link ArchiveEntries}.</li>
+ * </ul>
+ * <p> The digests are computed while the binary is written. If the SHA-256 of the downloaded resource is declared in the
+ *     properties (e.g. {@code linux.v1.1.7.web.sha256}) a resource with a different checksum (e.g. a truncated download) is rejected.
+ * <p> The cache size is capped: once the objects exceed {@code cache.max.size.mb} the least recently used ones are evicted.
+ *     Using a binary updates its last modified time. The binaries used in the last minute are never evicted, another JVM may be about to execute them.
+ *     The refs pointing at an evicted binary are deleted with it.
+ * <p> The cache folder is {@code cache.dir} ({@code java.io.tmpdir/crdb-bin} by default). It can be shared by different
+ *     JVMs and builds (e.g. {@code ~/.m2/cockroachdb}): installations and evictions are coordinated with file locks. See {@link Config}.
+ */
+public class BinaryCache {
+
+    private static final String CACHE_DIR_PROPERTY = "cache.dir";
+    private static final String MAX_SIZE_PROPERTY = "cache.max.size.mb";
+    private static final long IN_USE_GRACE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static volatile BinaryCache instance = null;
+
+    private final Path folder;
+    private final Path objects;
+    private final Path refs;
+    private final Path files;
+    private final long maxSizeBytes;
+
+    /**
+     * <p> Returns the cache configured via the {@code cache.dir} and {@code cache.max.size.mb} properties.
+     *
+     * @return The cache.
+     */
+    public static BinaryCache getInstance(){
+        if (instance == null){
+            synchronized (BinaryCache.class){
+                if (instance == null){
+                    instance = fromConfig();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * <p> Creates a cache with the current {@code cache.dir} and {@code cache.max.size.mb} properties.
+     *
+     * @return The cache.
+     */
+    public static BinaryCache fromConfig(){
+        return fromConfig(Config.getInstance());
+    }
+
+    /**
+     * <p> Creates a cache with the {@code cache.dir} and {@code cache.max.size.mb} properties of the given configuration.
+     *
+     * @param config The configuration.
+     * @return The cache.
+     */
+    public static BinaryCache fromConfig(final Config config){
+        return new BinaryCache(configuredFolder(config), configuredMaxSizeMb(config) * 1024L * 1024L);
+    }
+
+    /**
+     * <p> Creates a cache.
+     *
+     * @param folder The cache folder.
+     * @param maxSizeBytes The maximum size of the binaries in the cache.
+     */
+    public BinaryCache(final Path folder, final long maxSizeBytes) {
+        this.folder = folder;
+        this.objects = folder.resolve("objects");
+        this.refs = folder.resolve("refs");
+        this.files = folder.resolve("files");
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * <p> Returns the binary with the given name, or {@code null} if not in the cache.
+     *
+     * @param name The binary name.
+     * @return The binary or {@code null}.
+     */
+    public Path lookup(final String name){
+        final String sha256 = readRefOrNull(name);
+        if (sha256 == null){
+            return null;
+        }
+        final Path binary = objects.resolve(sha256);
+        if (!Files.isRegularFile(binary)){
+            return null;
+        }
+        touch(binary);
+        return binary;
+    }
+
+    /**
+     * <p> Returns the binary with the given name, installing it if it's not in the cache.
+     *
+     * @param name The binary name.
+     * @param resource The resource url (http, https or classpath).
+     * @param compression The resource compression (e.g. tgz).
+     * @param sha256 The expected SHA-256 of the resource, or {@code null} to skip the verification.
+     * @return The binary.
+     */
+    public Path install(final String name, final String resource, final String compression, final String sha256){
+        return install(name, resource, compression, sha256, ArchiveEntries.FIRST_FILE);
+    }
+
+    /**
+     * <p> Returns the binary with the given name, installing it and the other selected files of the archive if it's not in the cache.
+     *
+     * @param name The binary name.
+     * @param resource The resource url (http, https or classpath).
+     * @param compression The resource compression (tgz or zip to select the entries).
+     * @param sha256 The expected SHA-256 of the resource, or {@code null} to skip the verification.
+     * @param entries The entries to extract.
+     * @return The binary. The other files are in {@link #filesOf(Path)}.
+     */
+    public Path install(final String name, final String resource, final String compression, final String sha256, final ArchiveEntries entries){
+        final Path cached = lookup(name);
+        if (isInstalled(cached, entries)){
+            return cached;
+        }
+        if (resource == null){
+            throw new IllegalStateException("No resource configured for the cockroach db binary " + name);
+        }
+
+        createFoldersOrThrow();
+        final Path[] installed = new Path[1];
+        Installer.withLock(refs.resolve(name + ".lock"), () -> {
+            // Installed by the previous lock owner
+            installed[0] = lookup(name);
+            if (isInstalled(installed[0], entries)){
+                return;
+            }
+            final String tmpName = ".tmp-" + UUID.randomUUID();
+            final Path tmpObject = objects.resolve(tmpName);
+            final Path tmpFiles = entries.hasFiles() ? files.resolve(tmpName) : null;
+            try {
+                final String binarySha256 = Installer.download(resource, compression, entries, emptyToNull(sha256), tmpObject, tmpFiles);
+                final Path object = objects.resolve(binarySha256);
+                if (tmpFiles != null){
+                    publishFiles(tmpFiles, files.resolve(binarySha256));
+                }
+                if (Files.exists(object)){
+                    // Same content under another name
+                    Files.delete(tmpObject);
+                }else {
+                    Installer.publish(tmpObject, object);
+                }
+                // Before the ref: a concurrent eviction skips it from now on
+                touch(object);
+                writeRef(name, binarySha256);
+                installed[0] = object;
+            }catch (IOException e){
+                throw new IllegalStateException("Unable to install the cockroach db binary " + name, e);
+            }finally {
+                deleteQuietly(tmpObject);
+                if (tmpFiles != null){
+                    Utils.recursiveDelete(tmpFiles);
+                }
+            }
+        });
+
+        evictIfNeeded(installed[0]);
+        return installed[0];
+    }
+
+    /**
+     * <p> Returns the folder of the other files extracted with a binary. It exists only if files were selected.
+     *
+     * @param binary The binary.
+     * @return The folder.
+     */
+    public Path filesOf(final Path binary){
+        return files.resolve(binary.getFileName().toString());
+    }
+
+    /**
+     * <p> Deletes the least recently used binaries until the cache size is below the maximum. The given binary and the ones used
+     *     in the last minute are never evicted.
+     *
+     * @param keep The binary to keep.
+     */
+    void evictIfNeeded(final Path keep){
+        Installer.withLock(folder.resolve("cache.lock"), () -> {
+            final List<Path> binaries = new ArrayList<>();
+            long size = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(objects, entry -> !entry.getFileName().toString().startsWith("."))){
+                for (Path binary : stream){
+                    binaries.add(binary);
+                    size += sizeOf(binary);
+                }
+            }catch (IOException e){
+                return;
+            }
+            if (size <= maxSizeBytes){
+                return;
+            }
+
+            binaries.sort(Comparator.comparing(BinaryCache::lastModified));
+            for (Path binary : binaries){
+                if (size <= maxSizeBytes){
+                    return;
+                }
+                if (binary.equals(keep)){
+                    continue;
+                }
+                final long binarySize = sizeOf(binary);
+                if (evict(binary, refsTo(binary))){
+                    size -= binarySize;
+                }
+            }
+        });
+    }
+
+    // Holding the locks of the names pointing at the binary (sorted, like every eviction): their installs don't see it disappear half way.
+    private boolean evict(final Path binary, final List<String> names){
+        if (!names.isEmpty()){
+            final boolean[] evicted = {false};
+            Installer.withLock(refs.resolve(names.get(0) + ".lock"), () -> evicted[0] = evict(binary, names.subList(1, names.size())));
+            return evicted[0];
+        }
+        // Used since the listing, or about to be executed by another JVM
+        if (lastModified(binary).toMillis() > System.currentTimeMillis() - IN_USE_GRACE_MS){
+            return false;
+        }
+        if (!deleteQuietly(binary)){
+            return false;
+        }
+        Utils.recursiveDelete(filesOf(binary));
+        final String sha256 = binary.getFileName().toString();
+        for (String name : refsTo(binary)){
+            if (sha256.equals(readRefOrNull(name))){
+                deleteQuietly(refs.resolve(name));
+            }
+        }
+        return true;
+    }
+
+    // The names whose ref points at the binary, sorted.
+    private List<String> refsTo(final Path binary){
+        final String sha256 = binary.getFileName().toString();
+        final List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(refs, entry -> !entry.getFileName().toString().startsWith(".")
+                && !entry.getFileName().toString().endsWith(".lock"))){
+            for (Path ref : stream){
+                final String name = ref.getFileName().toString();
+                if (sha256.equals(readRefOrNull(name))){
+                    names.add(name);
+                }
+            }
+        }catch (IOException e){
+            // shh, no refs
+        }
+        names.sort(null);
+        return names;
+    }
+
+    // The same binary may have been installed before without the other files.
+    private boolean isInstalled(final Path binary, final ArchiveEntries entries){
+        return binary != null && (!entries.hasFiles() || Files.isDirectory(filesOf(binary)));
+    }
+
+    // The files of the same binary are the same, the first installation wins.
+    private static void publishFiles(final Path tmpFiles, final Path destination) throws IOException {
+        Files.createDirectories(tmpFiles);
+        if (!Files.exists(destination)){
+            Files.move(tmpFiles, destination, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private String readRefOrNull(final String name){
+        try {
+            final String sha256 = new String(Files.readAllBytes(refs.resolve(name)), StandardCharsets.UTF_8).trim();
+            return sha256.isEmpty() ? null : sha256;
+        }catch (IOException e){
+            return null;
+        }
+    }
+
+    // Atomic, readers see the old or the new ref.
+    private void writeRef(final String name, final String sha256) throws IOException {
+        final Path tmpRef = refs.resolve(".tmp-" + UUID.randomUUID());
+        try {
+            Files.write(tmpRef, sha256.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpRef, refs.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }finally {
+            deleteQuietly(tmpRef);
+        }
+    }
+
+    private void createFoldersOrThrow(){
+        try {
+            Files.createDirectories(objects);
+            Files.createDirectories(refs);
+            Files.createDirectories(files);
+        }catch (IOException e){
+            throw new IllegalStateException("Cannot create the binary cache " + folder.toAbsolutePath(), e);
+        }
+    }
+
+    private static void touch(final Path binary){
+        try {
+            Files.setLastModifiedTime(binary, FileTime.fromMillis(System.currentTimeMillis()));
+        }catch (IOException e){
+            // shh, it only affects the eviction order
+        }
+    }
+
+    private static long sizeOf(final Path file){
+        try {
+            return Files.size(file);
+        }catch (IOException e){
+            return 0;
+        }
+    }
+
+    private static FileTime lastModified(final Path file){
+        try {
+            return Files.getLastModifiedTime(file);
+        }catch (IOException e){
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static boolean deleteQuietly(final Path file){
+        try {
+            return Files.deleteIfExists(file);
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    private static String emptyToNull(final String value){
+        return value == null || "".equals(value.trim()) ? null : value.trim();
+    }
+
+    private static Path configuredFolder(final Config config){
+        final String folder = emptyToNull(config.get(CACHE_DIR_PROPERTY));
+        if (folder == null){
+            return Paths.get(System.getProperty("java.io.tmpdir"), "crdb-bin");
+        }
+        if (folder.startsWith("~")){
+            return Paths.get(System.getProperty("user.home") + folder.substring(1));
+        }
+        return Paths.get(folder);
+    }
+
+    private static int configuredMaxSizeMb(final Config config){
+        final String maxSize = emptyToNull(config.get(MAX_SIZE_PROPERTY));
+        if (maxSize == null){
+            return 1024;
+        }
+        try {
+            return Integer.parseInt(maxSize);
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + MAX_SIZE_PROPERTY + ": " + maxSize, e);
+        }
+    }
+}
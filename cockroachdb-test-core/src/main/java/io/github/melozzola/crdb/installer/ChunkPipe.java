@@ -0,0 +1,212 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Bounded hand off of byte chunks between two stages of the installation pipeline, running on different threads.
+ * <p> The producer writes to {@link #output()} and the consumer reads from {@link #input()} (or {@link #drainTo}). When the pipe is full the producer
+ *     blocks, so a slow stage throttles the previous one and the memory used is bounded by {@code capacity * chunkSize}.
+ *     The chunks are recycled.
+ * <p> When a stage fails the pipe is cancelled ({@link #cancel()}) and the stage blocked on the other side fails as well.
+ */
+final class ChunkPipe {
+
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+    private static final long POLL_MS = 100;
+
+    private final ArrayBlockingQueue<ByteBuffer> full;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private volatile boolean cancelled = false;
+
+    /**
+     * <p> Creates a pipe.
+     *
+     * @param capacity Number of chunks.
+     * @param chunkSize Size of each chunk in bytes.
+     */
+    ChunkPipe(final int capacity, final int chunkSize) {
+        this.full = new ArrayBlockingQueue<>(capacity + 1);
+        this.free = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++){
+            free.add(ByteBuffer.allocate(chunkSize));
+        }
+    }
+
+    /**
+     * <p> The producer side. Closing it signals the end of the data.
+     *
+     * @return The output stream.
+     */
+    OutputStream output(){
+        return new OutputStream() {
+            private ByteBuffer chunk;
+
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0){
+                    if (chunk == null){
+                        chunk = take(free);
+                    }
+                    final int written = Math.min(length, chunk.remaining());
+                    chunk.put(bytes, offset, written);
+                    offset += written;
+                    length -= written;
+                    if (!chunk.hasRemaining()){
+                        flush();
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (chunk != null && chunk.position() > 0){
+                    chunk.flip();
+                    put(chunk);
+                    chunk = null;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+                put(EOF);
+            }
+        };
+    }
+
+    /**
+     * <p> The consumer side.
+     *
+     * @return The input stream.
+     */
+    InputStream input(){
+        return new InputStream() {
+            private ByteBuffer chunk;
+            private boolean eof = false;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                if (length == 0){
+                    return 0;
+                }
+                if (!nextChunk()){
+                    return -1;
+                }
+                final int read = Math.min(length, chunk.remaining());
+                chunk.get(bytes, offset, read);
+                return read;
+            }
+
+            // Recycles the consumed chunk and takes the next one
+            private boolean nextChunk() throws IOException {
+                if (chunk != null && !chunk.hasRemaining()){
+                    chunk.clear();
+                    free.offer(chunk);
+                    chunk = null;
+                }
+                if (chunk == null && !eof){
+                    final ByteBuffer next = take(full);
+                    if (next == EOF){
+                        eof = true;
+                    }else {
+                        chunk = next;
+                    }
+                }
+                return chunk != null;
+            }
+        };
+    }
+
+    /**
+     * <p> Consumer side alternative to {@link #input()}: writes all the chunks to a channel, without copying them.
+     *
+     * @param channel The channel.
+     * @param digest Digest updated with the written bytes.
+     * @return The number of bytes written.
+     * @throws IOException If the channel write fails or the thread is interrupted.
+     */
+    long drainTo(final WritableByteChannel channel, final MessageDigest digest) throws IOException {
+        long written = 0;
+        ByteBuffer chunk;
+        while ((chunk = take(full)) != EOF){
+            digest.update(chunk.duplicate());
+            while (chunk.hasRemaining()){
+                written += channel.write(chunk);
+            }
+            chunk.clear();
+            free.offer(chunk);
+        }
+        return written;
+    }
+
+    /**
+     * <p> Cancels the pipe: the producer and the consumer fail at the next (or current) blocking operation.
+     */
+    void cancel(){
+        cancelled = true;
+    }
+
+    private void put(final ByteBuffer chunk) throws IOException {
+        try {
+            while (!full.offer(chunk, POLL_MS, TimeUnit.MILLISECONDS)){
+                failIfCancelled();
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Installation interrupted");
+        }
+    }
+
+    private ByteBuffer take(final ArrayBlockingQueue<ByteBuffer> queue) throws IOException {
+        try {
+            ByteBuffer chunk;
+            while ((chunk = queue.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null){
+                failIfCancelled();
+            }
+            return chunk;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Installation interrupted");
+        }
+    }
+
+    private void failIfCancelled() throws IOException {
+        if (cancelled){
+            throw new IOException("Installation pipeline cancelled");
+        }
+    }
+}
@@ -47,7 +47,7 @@ public class Config {
     private static final String DEFAULT = "/cockroachdb-junit.properties";
     private static final String OVERRIDE = "/cockroachdb-junit-override.properties";
 
-    private static Config instance = null;
+    private static volatile Config instance = null;
 
     private Properties defaultConfig;
     private Properties overrideConfig;
@@ -76,22 +76,45 @@ public class Config {
                 if (instance != null){
                     return instance;
                 }
-                instance = new Config();
-                instance.defaultConfig = loadFromClasspathOrThrow(DEFAULT);
-                instance.overrideConfig = loadFromClasspathOrNull(OVERRIDE);
-
-                URL.setURLStreamHandlerFactory(protocol -> {
-                    if ("classpath".equalsIgnoreCase(protocol)){
-                        return new ClasspathURLStreamHandler();
+                // Published once loaded, it's read by the background installations too
+                final Config config = new Config();
+                config.defaultConfig = loadFromClasspathOrThrow(DEFAULT);
+                config.overrideConfig = loadFromClasspathOrNull(OVERRIDE);
+
+                try {
+                    URL.setURLStreamHandlerFactory(protocol -> {
+                        if ("classpath".equalsIgnoreCase(protocol)){
+                            return new ClasspathURLStreamHandler();
+                        }
+                        return null;
+                    });
+                }catch (Error e){
+                    // Already set once in this JVM, e.g. by this class loaded again by a build tool plugin class loader.
+                    if (!"factory already defined".equals(e.getMessage())){
+                        throw e;
                     }
-                    return null;
-                });
+                }
+                instance = config;
 
             }
         }
         return instance;
     }
 
+    /**
+     * <p> Returns a configuration with the same defaults and the given override properties, e.g. the ones of a project
+     *     that this class can't see on its classpath. This configuration is not changed.
+     *
+     * @param overrides The override properties, {@code null} for none.
+     * @return The configuration.
+     */
+    public Config withOverrides(final Properties overrides){
+        final Config config = new Config();
+        config.defaultConfig = defaultConfig;
+        config.overrideConfig = overrides;
+        return config;
+    }
+
     public String get(final String key){
         if (overrideConfig != null && overrideConfig.containsKey(key)){
             return overrideConfig.getProperty(key);
@@ -15,27 +15,74 @@
  */
 package io.github.melozzola.crdb.installer;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipInputStream;
 
 /**
  * <p> Cockroach db binary installer.
  * <p> Installs cockroach from the web or classpath.
+ * <p> Concurrent installations of the same binary, from this JVM or other processes (e.g. parallel test forks), are
+ *     coordinated with a {@link FileLock} on a {@code <name>.lock} file in the destination folder: only the lock owner
+ *     downloads the binary, into a temporary file that is published with an atomic rename. The other installers wait on
+ *     the lock and find the binary as soon as the owner releases it.
+ * <p> Web resources are downloaded in parallel segments when the server supports byte ranges, and an interrupted download
+ *     is resumed by the next installation. The pipeline reads the resource while it's downloaded. See {@link RangedDownloader}
+ *     and the {@code download.segments} and {@code download.retries} properties.
+ * <p> From tgz and zip archives the installer extracts the binary and, optionally, other files (e.g. shared libraries)
+ *     in a single pass, skipping the other entries. See {@link ArchiveEntries}. The entries of the archive are recorded in
+ *     an index ({@link ArchiveIndex}), so the next installations from the same archive stop at the last needed entry.
  */
 public class Installer {
 
+    // File locks are held by the JVM, threads of the same JVM are serialized on these monitors.
+    private static final ConcurrentMap<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private static final String DOWNLOAD_SEGMENTS_PROPERTY = "download.segments";
+    private static final String DOWNLOAD_RETRIES_PROPERTY = "download.retries";
+
+    // Installation pipeline: chunks of 64 KiB, at most 16 chunks in flight between two stages.
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int PIPE_CAPACITY = 16;
+    static final ExecutorService PIPELINE = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "crdb-installer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private static final Set<PosixFilePermission> PERMISSIONS = new HashSet<PosixFilePermission>(){{
         add(PosixFilePermission.OWNER_READ);
         add(PosixFilePermission.OWNER_WRITE);
@@ -88,82 +135,331 @@ public class Installer {
     }
 
     public static void install(final String resource, final Path destinationFolder, final String name, final String compression){
+        install(resource, destinationFolder, name, compression, ArchiveEntries.FIRST_FILE);
+    }
 
-        URL url;
-        try{
-            url = new URL(resource);
+    /**
+     * <p> Installs the binary selected from the archive, and the other selected files next to it.
+     *
+     * @param resource The resource url (http, https or classpath).
+     * @param destinationFolder The destination folder.
+     * @param name The binary name.
+     * @param compression The resource compression (tgz or zip to select the entries).
+     * @param entries The entries to extract.
+     */
+    public static void install(final String resource, final Path destinationFolder, final String name, final String compression, final ArchiveEntries entries){
+        install(toUrl(resource), destinationFolder, name, toCompression(compression), entries);
+    }
+
+    public static void install(final URL resource, final Path destinationFolder, final String name, final Compression compression){
+        install(resource, destinationFolder, name, compression, ArchiveEntries.FIRST_FILE);
+    }
+
+    public static void install(final URL resource, final Path destinationFolder, final String name, final Compression compression, final ArchiveEntries entries){
+        createFoldersOrTrow(destinationFolder);
+        final Path destination = destinationFolder.resolve(name);
+        if (Files.exists(destination)){
+            return;
+        }
+
+        withLock(destinationFolder.resolve(name + ".lock"), () -> {
+            // Installed by the previous lock owner
+            if (Files.exists(destination)) {
+                return;
+            }
+            deleteLeftovers(destinationFolder, name);
+            final Path tmpDestination = destinationFolder.resolve(name + ".tmp-" + UUID.randomUUID());
+            try {
+                // The binary is published last: the other files are in place once it exists.
+                write(sourceOf(resource, destinationFolder), tmpDestination, compression, entries, destinationFolder, indexFileOf(resource, destinationFolder), null);
+                publish(tmpDestination, destination);
+            }finally {
+                deleteFileIfExistsOrThrow(tmpDestination);
+            }
+        });
+    }
+
+    /**
+     * <p> Writes the binary into a file, without any locking.
+     *     The SHA-256 digests of the resource (e.g. the archive) and of the binary are computed while the file is written.
+     *
+     * @param resource The resource url (http, https or classpath).
+     * @param compression The resource compression. See {@link Compression}.
+     * @param expectedSha256 The expected SHA-256 (hex) of the resource, or {@code null} to skip the verification.
+     * @param file The file to write. It must not exist.
+     * @return The SHA-256 (hex) of the binary.
+     */
+    static String download(final String resource, final String compression, final String expectedSha256, final Path file){
+        return download(resource, compression, ArchiveEntries.FIRST_FILE, expectedSha256, file, null);
+    }
+
+    /**
+     * <p> Writes the binary selected from the archive into a file and the other selected files into a folder, without any locking.
+     *
+     * @param resource The resource url (http, https or classpath).
+     * @param compression The resource compression. See {@link Compression}.
+     * @param entries The entries to extract.
+     * @param expectedSha256 The expected SHA-256 (hex) of the resource, or {@code null} to skip the verification.
+     * @param file The file to write. It must not exist.
+     * @param filesFolder The folder of the other files, {@code null} if there are none.
+     * @return The SHA-256 (hex) of the binary.
+     */
+    static String download(final String resource, final String compression, final ArchiveEntries entries, final String expectedSha256,
+                           final Path file, final Path filesFolder){
+        final URL url = toUrl(resource);
+        final Path folder = file.toAbsolutePath().getParent();
+        return write(sourceOf(url, folder), file, toCompression(compression), entries, filesFolder, indexFileOf(url, folder), expectedSha256);
+    }
+
+    /**
+     * <p> Runs an action holding the lock on a file, shared with the other JVMs. Threads of the same JVM are serialized.
+     *
+     * @param lockFile The lock file. Created if needed, never deleted.
+     * @param action The action.
+     */
+    static void withLock(final Path lockFile, final Runnable action){
+        synchronized (JVM_LOCKS.computeIfAbsent(lockFile.toAbsolutePath(), path -> new Object())) {
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = lockChannel.lock()) {
+                action.run();
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to lock " + lockFile, e);
+            }
+        }
+    }
+
+    /**
+     * <p> Makes a file executable and moves it atomically to its final location.
+     *
+     * @param file The file.
+     * @param destination The destination.
+     */
+    static void publish(final Path file, final Path destination){
+        try {
+            Files.setPosixFilePermissions(file, PERMISSIONS);
+            Files.move(file, destination, StandardCopyOption.ATOMIC_MOVE);
         }catch (Exception e){
-            throw new IllegalStateException("Invalid URL " + resource, e);
+            throw new IllegalStateException("Unable to install the cockroach db binary", e);
         }
+    }
 
-        Compression compressionToUse;
-        if (compression == null || "".equals(compression.trim())){
-            compressionToUse = Compression.NONE;
-        }else {
-            compressionToUse = Compression.get(compression);
+    // Single pass: the digests are updated while the binary is written.
+    private static String write(final Supplier<InputStream> source, final Path file, final Compression compression, final ArchiveEntries entries,
+                                final Path filesFolder, final Path indexFile, final String expectedSha256){
+        if (!entries.isFirstFile() && compression != Compression.TAR_GZIP && compression != Compression.ZIP){
+            throw new IllegalStateException("The archive entries can be selected only from tgz and zip archives, not " + compression);
+        }
+        final MessageDigest sourceDigest = sha256();
+        final MessageDigest binaryDigest;
+        final List<String> archiveEntries = new ArrayList<>();
+        final boolean complete;
+        try(FileChannel binary = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            if (compression == Compression.NONE){
+                transfer(source, binary, sourceDigest);
+                // Same bytes
+                binaryDigest = sourceDigest;
+                complete = false;
+            }else {
+                binaryDigest = sha256();
+                final ArchiveIndex index = indexFile == null ? null : ArchiveIndex.loadOrNull(indexFile);
+                complete = pipeline(source, binary, compression, entries, filesFolder, index != null && index.describes(expectedSha256) ? index : null,
+                        archiveEntries, expectedSha256 != null, sourceDigest, binaryDigest);
+            }
+            binary.force(true);
+        }catch (Exception e){
+            deleteFileIfExistsOrThrow(file);
+            if (e instanceof IllegalStateException){
+                throw (IllegalStateException) e;
+            }
+            throw new IllegalStateException("Unable to install the cockroach db binary", e);
         }
 
-        install(url, destinationFolder, name, compressionToUse);
+        final String binarySha256 = toHex(binaryDigest.digest());
+        // Complete unless the archive was read partially, see the pipeline
+        final String sourceSha256 = binaryDigest == sourceDigest ? binarySha256 : toHex(sourceDigest.digest());
+        if (expectedSha256 != null){
+            if (!sourceSha256.equalsIgnoreCase(expectedSha256.trim())){
+                deleteFileIfExistsOrThrow(file);
+                throw new IllegalStateException("Checksum mismatch. Expected SHA-256 " + expectedSha256.trim() + " but was " + sourceSha256);
+            }
+        }
+        if (complete && indexFile != null && !archiveEntries.isEmpty()){
+            new ArchiveIndex(sourceSha256, archiveEntries).save(indexFile);
+        }
+        return binarySha256;
     }
 
-    public static void install(final URL resource, final Path destinationFolder, final String name, final Compression compression){
-        final Protocol protocol = Protocol.get(resource.getProtocol());
-        switch (protocol){
+    // Uncompressed sources are copied by the file channel.
+    private static void transfer(final Supplier<InputStream> source, final FileChannel binary, final MessageDigest digest) throws IOException {
+        try (ReadableByteChannel in = Channels.newChannel(new DigestInputStream(source.get(), digest))){
+            long position = 0;
+            long transferred;
+            while ((transferred = binary.transferFrom(in, position, CHUNK_SIZE * PIPE_CAPACITY)) > 0){
+                position += transferred;
+            }
+        }
+    }
 
-            case CLASSPATH:
-                installFromClasspath(resource, destinationFolder, name, compression);
-                break;
-            case HTTP:
-            case HTTPS:
-                installFromWeb(resource, destinationFolder, name, compression);
-                break;
-            default:
-                throw new IllegalStateException("Protocol " + protocol.protocol + " not supported");
+    // Three stages connected by bounded pipes: fetch (pipeline thread) -> decompress (caller) -> write (pipeline thread).
+    // Returns true if the whole archive was read, its entries are added to the list.
+    private static boolean pipeline(final Supplier<InputStream> source, final FileChannel binary, final Compression compression,
+                                    final ArchiveEntries entries, final Path filesFolder, final ArchiveIndex index, final List<String> archiveEntries,
+                                    final boolean digestAll, final MessageDigest sourceDigest, final MessageDigest binaryDigest) throws Exception {
+        final ChunkPipe fetched = new ChunkPipe(PIPE_CAPACITY, CHUNK_SIZE);
+        final ChunkPipe decompressed = new ChunkPipe(PIPE_CAPACITY, CHUNK_SIZE);
+
+        final Future<?> fetch = PIPELINE.submit(() -> {
+            try (InputStream in = new DigestInputStream(source.get(), sourceDigest);
+                 OutputStream out = fetched.output()){
+                copy(in, out);
+            }catch (Exception e){
+                fetched.cancel();
+                throw e;
+            }
+            return null;
+        });
+        final Future<?> write = PIPELINE.submit(() -> {
+            try {
+                return decompressed.drainTo(binary, binaryDigest);
+            }catch (Exception e){
+                decompressed.cancel();
+                throw e;
+            }
+        });
+
+        try {
+            final InputStream fetchedIn = fetched.input();
+            final boolean complete = extract(fetchedIn, compression, entries, decompressed.output(), filesFolder, index, archiveEntries);
+            if (complete || digestAll) {
+                // Trailing bytes after the last entry (e.g. the end of the archive): the fetch must complete for the digest.
+                // Draining is cheap, nothing is decompressed.
+                copy(fetchedIn, null);
+                fetch.get();
+            }else {
+                // The rest of the archive is not needed
+                fetched.cancel();
+                waitQuietly(fetch);
+            }
+            write.get();
+            return complete;
+        }catch (Exception e){
+            fetched.cancel();
+            decompressed.cancel();
+            // The failure of a stage shows up in the other stages too, report the root one.
+            throw firstFailure(e, fetch, write);
+        }
+    }
+
+    // Decompresses the source: the binary is written to the binary stream (closed at the end of the binary), the other
+    // selected files into the files folder. Unneeded entries are skipped. Reading stops after the last needed entry:
+    // right after the binary when only the binary is needed, else at the position recorded in the index, if any.
+    // Returns true if the whole archive was read.
+    private static boolean extract(final InputStream source, final Compression compression, final ArchiveEntries selection, final OutputStream binary,
+                                   final Path filesFolder, final ArchiveIndex index, final List<String> archiveEntries) throws IOException {
+        if (compression == Compression.GZIP){
+            try (OutputStream out = binary){
+                copy(new GZIPInputStream(source), out);
+            }
+            return true;
+        }
+        if (selection.hasFiles() && filesFolder == null){
+            throw new IllegalStateException("No folder for the files " + selection);
         }
 
+        final ArchiveInputStream archive = compression == Compression.ZIP ? new ZipArchiveInputStream(source) : new TarArchiveInputStream(new GZIPInputStream(source));
+        int last = index == null ? -1 : index.lastNeeded(selection);
+        boolean binaryFound = false;
+        ArchiveEntry entry;
+        while ((entry = archive.getNextEntry()) != null){
+            final String indexEntry = ArchiveIndex.entry(entry.getName(), entry.isDirectory());
+            if (last >= 0 && !index.hasAt(archiveEntries.size(), indexEntry)){
+                // Not the indexed archive, read it all
+                last = -1;
+            }
+            archiveEntries.add(indexEntry);
+            if (!entry.isDirectory()){
+                if (!binaryFound && selection.isBinary(entry.getName())){
+                    try (OutputStream out = binary){
+                        copy(archive, out);
+                    }
+                    binaryFound = true;
+                }else if (selection.isFile(entry.getName())){
+                    extractFile(archive, filesFolder, entry.getName());
+                }
+            }
+            if (binaryFound && (!selection.hasFiles() || archiveEntries.size() - 1 == last)){
+                return false;
+            }
+        }
+        if (!binaryFound){
+            throw new IllegalStateException("No entry of the archive matches the cockroach db binary. " + selection);
+        }
+        return true;
     }
 
-    private static void install(InputStream source, final Path destinationFolder, final String name, Compression compression){
-        createFoldersOrTrow(destinationFolder);
-        final Path destination = destinationFolder.resolve(name);
-        if (Files.exists(destination)){
-            return;
+    // Atomic, like the binary. The entries can't escape the folder (e.g. ../../.bashrc).
+    private static void extractFile(final InputStream archive, final Path folder, final String entryName) throws IOException {
+        final Path root = folder.toAbsolutePath().normalize();
+        final Path file = root.resolve(ArchiveEntries.relativePath(entryName)).normalize();
+        if (!file.startsWith(root) || file.equals(root)){
+            throw new IllegalStateException("Invalid archive entry " + entryName);
         }
+        Files.createDirectories(file.getParent());
+        final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp-" + UUID.randomUUID());
+        try {
+            Files.copy(archive, tmpFile);
+            Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }finally {
+            deleteFileIfExistsOrThrow(tmpFile);
+        }
+    }
 
-        final Path tmpDestination = destinationFolder.resolve(name+".tmp");
+    private static void waitQuietly(final Future<?> stage){
+        try {
+            stage.get();
+        }catch (Exception e){
+            // shh, cancelled
+        }
+    }
 
-        // Somebody is installing the binary...
-        // I know, not bullet proof...some concurrency problem could happen here :-(
-        int waitingTime = 30000;// Wait up to 30 secs
-        int waitedFor = 0;
-        while (Files.exists(tmpDestination) && waitedFor < waitingTime){
+    private static Exception firstFailure(final Exception failure, final Future<?>... stages){
+        for (Future<?> stage : stages){
+            if (!stage.isDone()){
+                continue;
+            }
             try {
-                Thread.sleep(10000);
-                waitedFor += 10000;
+                stage.get();
+            }catch (ExecutionException e){
+                if (e.getCause() instanceof Exception){
+                    return (Exception) e.getCause();
+                }
             }catch (Exception e){
-                throw new IllegalStateException("Unable to install the cockroach db binary", e);
+                // shh, interrupted or cancelled
             }
         }
-        if (Files.exists(destination)){
-            return;
-        }
+        return failure;
+    }
 
-        try(InputStream wrappedSource = wrapInputStreamIfNeeded(source, compression);
-            FileOutputStream binaryOs = new FileOutputStream(tmpDestination.toFile())) {
+    private static void copy(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            if (out != null) {
+                out.write(buffer, 0, len);
+            }
+        }
+    }
 
-            byte[] buffer = new byte[1024*4];
-            int len;
-            while ((len = wrappedSource.read(buffer)) != -1) {
-                binaryOs.write(buffer, 0, len);
+    // Temporary files of installers that crashed. Called with the lock held, so nobody is writing them.
+    private static void deleteLeftovers(final Path destinationFolder, final String name){
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(destinationFolder, name + ".tmp*")){
+            for (Path leftover : leftovers){
+                deleteFileIfExistsOrThrow(leftover);
             }
-            binaryOs.close();
-            Files.move(tmpDestination, destination);
-            Files.setPosixFilePermissions(destination, PERMISSIONS);
         }catch (Exception e){
-            deleteFileIfExistsOrThrow(destination);
-            throw new IllegalStateException("Unable to install the cockroach db binary", e);
-        }finally {
-            deleteFileIfExistsOrThrow(tmpDestination);
+            // shh, best effort
         }
     }
 
@@ -175,44 +471,89 @@ public class Installer {
         }
     }
 
-    private static void installFromClasspath(final URL classpathResource, final Path destinationFolder, final String name, Compression compression){
-        final String binary = classpathResource.getPath();
-        install(Installer.class.getResourceAsStream(binary), destinationFolder, name, compression);
+    private static URL toUrl(final String resource){
+        try{
+            return new URL(resource);
+        }catch (Exception e){
+            throw new IllegalStateException("Invalid URL " + resource, e);
+        }
+    }
+
+    private static Compression toCompression(final String compression){
+        if (compression == null || "".equals(compression.trim())){
+            return Compression.NONE;
+        }
+        return Compression.get(compression);
+    }
+
+    // The stream is opened lazily, only by the installer that holds the lock.
+    // Web resources are downloaded into a partial file in the folder (resumable, see RangedDownloader) and read while they are
+    // downloaded, so the network transfer overlaps with the extraction. Closing the stream early stops the download.
+    private static Supplier<InputStream> sourceOf(final URL resource, final Path downloadFolder){
+        final Protocol protocol = Protocol.get(resource.getProtocol());
+        switch (protocol){
+            case CLASSPATH:
+                final String binary = resource.getPath();
+                // Like the classpath protocol (see Config): the context class loader first. Captured here, the stream is opened by a pipeline thread.
+                final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+                return () -> {
+                    InputStream source = classLoader == null ? null : classLoader.getResourceAsStream(binary.startsWith("/") ? binary.substring(1) : binary);
+                    if (source == null){
+                        source = Installer.class.getResourceAsStream(binary);
+                    }
+                    if (source == null){
+                        throw new IllegalStateException("Classpath resource " + binary + " not found");
+                    }
+                    return source;
+                };
+            case HTTP:
+            case HTTPS:
+                return () -> {
+                    final Path part = downloadFolder.resolve(".download-" + downloadName(resource) + ".part");
+                    return new RangedDownloader(readInt(DOWNLOAD_SEGMENTS_PROPERTY, 4), readInt(DOWNLOAD_RETRIES_PROPERTY, 3)).stream(resource, part);
+                };
+            default:
+                throw new IllegalStateException("Protocol " + protocol.protocol + " not supported");
+        }
+    }
+
+    private static Path indexFileOf(final URL resource, final Path folder){
+        return folder.resolve(".index-" + downloadName(resource));
+    }
+
+    // Same resource, same partial file, so an interrupted download can be resumed.
+    private static String downloadName(final URL resource){
+        final String path = resource.getPath();
+        final String name = path.substring(path.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+        return name + "-" + Integer.toHexString(resource.toString().hashCode());
     }
 
-    private static void installFromWeb(final URL webResource, final Path destinationFolder, final String name, Compression compression){
-        InputStream source;
+    private static int readInt(final String property, final int defaultValue){
+        final String value = Config.getInstance().get(property);
+        if (value == null || "".equals(value.trim())){
+            return defaultValue;
+        }
         try {
-            source = webResource.openStream();
-        }catch (Exception e){
-            throw new IllegalStateException("Unable to install the cockroach db binary from " + webResource);
+            return Integer.parseInt(value.trim());
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + property + ": " + value, e);
         }
-        install(source, destinationFolder, name, compression);
     }
 
-    private static InputStream wrapInputStreamIfNeeded(final InputStream toWrap, final Compression compression){
+    private static MessageDigest sha256(){
         try {
-            switch (compression) {
-                case ZIP:
-                    return new ZipInputStream(toWrap);
-                case GZIP:
-                    return new GZIPInputStream(toWrap);
-                case TAR_GZIP:
-                    TarArchiveInputStream wrapper = new TarArchiveInputStream(new GZIPInputStream(toWrap));
-                    TarArchiveEntry entry;
-                    while ((entry = wrapper.getNextTarEntry()) != null) {
-                        if (!entry.isDirectory()) {
-                            break;
-                        }
-                    }
-                    return wrapper;
-                case NONE:
-                default:
-                    return toWrap;
-            }
-        }catch (Exception e){
-            throw new IllegalStateException("Unable to install the cockroach db binary", e);
+            return MessageDigest.getInstance("SHA-256");
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes){
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes){
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
         }
+        return hex.toString();
     }
 
     private static void createFoldersOrTrow(final Path path){
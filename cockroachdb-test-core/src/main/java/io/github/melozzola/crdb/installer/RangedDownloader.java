@@ -0,0 +1,554 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p> Downloads a http(s) resource into a partial file ({@code .part}), resuming a previous interrupted download if any.
+ * <p> When the server supports byte ranges ({@code Accept-Ranges: bytes}) and declares the content length, the file is split in
+ *     segments of at most 4 MiB, downloaded in order by up to {@code segments} parallel {@code Range} requests. The progress of each segment is saved in a state file next
+ *     to the partial file ({@code .part.state}): after a failure (or a killed JVM) the next download starts from where each
+ *     segment stopped, provided that the resource didn't change (same length and {@code ETag}/{@code Last-Modified}).
+ * <p> Otherwise the resource is downloaded with a single request, from the beginning.
+ * <p> Failed requests are retried, with a linear back off.
+ * <p> The resource can also be read while it's downloaded (see {@link #stream(URL, Path)}): the reader follows the first
+ *     segment and finds the following ones (mostly) downloaded when it gets there.
+ */
+final class RangedDownloader {
+
+    private static final int TIMEOUT_MS = 30000;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    // Save the state every 1 MiB per segment
+    private static final long SAVE_EVERY = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int segments;
+    private final int retries;
+
+    /**
+     * <p> Creates a downloader.
+     *
+     * @param segments Maximum number of parallel segments.
+     * @param retries How many times a failed request is retried.
+     */
+    RangedDownloader(final int segments, final int retries) {
+        this.segments = Math.max(segments, 1);
+        this.retries = Math.max(retries, 0);
+    }
+
+    /**
+     * <p> Downloads the resource.
+     *
+     * @param url The resource.
+     * @param part The partial file. When the download fails it's kept, with its state, for the next download.
+     * @return The partial file, complete.
+     */
+    Path download(final URL url, final Path part){
+        fetch(url, part, new Progress());
+        return part;
+    }
+
+    /**
+     * <p> Starts the download in background and returns a stream of the resource, read from the partial file as the bytes
+     *     arrive, so that the reader overlaps with the download.
+     * <p> Closing the stream before the end stops the download. The partial file is deleted when the stream is closed,
+     *     unless the download failed: then it's kept, with its state, for the next download.
+     *
+     * @param url The resource.
+     * @param part The partial file.
+     * @return The stream of the resource. Download failures are thrown by its read methods.
+     */
+    InputStream stream(final URL url, final Path part){
+        final Progress progress = new Progress();
+        final Future<?> download = Installer.PIPELINE.submit(() -> {
+            try {
+                fetch(url, part, progress);
+                progress.finish(null);
+            }catch (RuntimeException e){
+                progress.finish(new IllegalStateException("Unable to download " + url, e));
+            }
+        });
+        return new PartInputStream(part, progress, download);
+    }
+
+    private void fetch(final URL url, final Path part, final Progress progress){
+        final Path statePath = part.resolveSibling(part.getFileName() + ".state");
+        final Remote remote = probe(url);
+        if (!remote.ranges || remote.length <= 0){
+            deleteQuietly(statePath);
+            withRetries(() -> single(url, part, progress));
+            return;
+        }
+
+        State state = State.loadOrNull(statePath);
+        if (state == null || !state.matches(url, remote) || !Files.exists(part)){
+            state = State.create(url, remote, segmentsFor(remote.length));
+            deleteQuietly(part);
+        }
+
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+            progress.start(state.starts, state.ends, state.done);
+            // The segments are taken in order, so the file fills up from the beginning, where the reader is.
+            final List<Future<?>> running = new ArrayList<>();
+            final AtomicInteger next = new AtomicInteger(0);
+            final State current = state;
+            for (int i = 0; i < Math.min(segments, state.starts.length); i++){
+                running.add(Installer.PIPELINE.submit(() -> {
+                    int segment;
+                    while ((segment = next.getAndIncrement()) < current.starts.length && !progress.isCancelled()){
+                        if (current.remaining(segment) > 0) {
+                            final int taken = segment;
+                            withRetries(() -> segment(url, remote, current, taken, channel, statePath, progress));
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            Exception failure = null;
+            for (Future<?> segment : running){
+                try {
+                    segment.get();
+                }catch (ExecutionException e){
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            if (progress.isCancelled()){
+                // Not needed anymore, the partial file is deleted by the reader
+                deleteQuietly(statePath);
+                return;
+            }
+            if (failure != null){
+                state.save(statePath);
+                throw new IllegalStateException("Download of " + url + " interrupted at " + state.downloaded() + " of " + remote.length
+                        + " bytes. The next download resumes from there", failure);
+            }
+            channel.force(true);
+        }catch (IllegalStateException e){
+            throw e;
+        }catch (Exception e){
+            state.save(statePath);
+            throw new IllegalStateException("Download of " + url + " interrupted", e);
+        }
+        deleteQuietly(statePath);
+    }
+
+    // Downloads the remaining bytes of a segment
+    private void segment(final URL url, final Remote remote, final State state, final int segment, final FileChannel channel, final Path statePath,
+                         final Progress progress) throws IOException {
+        final long from = state.starts[segment] + state.done.get(segment);
+        final long to = state.ends[segment];
+        if (from > to){
+            return;
+        }
+        final HttpURLConnection connection = open(url, "GET");
+        connection.setRequestProperty("Range", "bytes=" + from + "-" + to);
+        if (remote.validator != null){
+            connection.setRequestProperty("If-Range", remote.validator);
+        }
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL){
+                throw new IOException("Expected a partial response for the range " + from + "-" + to + " but got " + connection.getResponseCode());
+            }
+            try (InputStream in = connection.getInputStream()){
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                long position = from;
+                long unsaved = 0;
+                int len;
+                while (position <= to && (len = in.read(buffer, 0, (int) Math.min(buffer.length, to - position + 1))) != -1){
+                    if (progress.isCancelled()){
+                        return;
+                    }
+                    final ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, len);
+                    while (bytes.hasRemaining()){
+                        position += channel.write(bytes, position);
+                    }
+                    state.done.addAndGet(segment, len);
+                    progress.advanced();
+                    unsaved += len;
+                    if (unsaved >= SAVE_EVERY){
+                        state.save(statePath);
+                        unsaved = 0;
+                    }
+                }
+                if (position <= to){
+                    throw new IOException("Connection closed at " + position + ", expected up to " + to);
+                }
+            }
+        }finally {
+            connection.disconnect();
+        }
+    }
+
+    // From the beginning: a retry writes the same bytes again, the reader waits until they are past its position.
+    private void single(final URL url, final Path part, final Progress progress) throws IOException {
+        final HttpURLConnection connection = open(url, "GET");
+        try (InputStream in = connection.getInputStream();
+             OutputStream out = Files.newOutputStream(part)){
+            final AtomicLongArray done = new AtomicLongArray(1);
+            progress.start(new long[]{0}, new long[]{Long.MAX_VALUE}, done);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1){
+                if (progress.isCancelled()){
+                    return;
+                }
+                out.write(buffer, 0, len);
+                // Flushed, the reader reads the file
+                out.flush();
+                done.addAndGet(0, len);
+                progress.advanced();
+            }
+        }finally {
+            connection.disconnect();
+        }
+    }
+
+    private Remote probe(final URL url){
+        try {
+            final HttpURLConnection connection = open(url, "HEAD");
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK){
+                    return new Remote(false, -1, null);
+                }
+                final String validator = connection.getHeaderField("ETag") != null ? connection.getHeaderField("ETag") : connection.getHeaderField("Last-Modified");
+                return new Remote("bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")), connection.getContentLengthLong(), validator);
+            }finally {
+                connection.disconnect();
+            }
+        }catch (IOException e){
+            // HEAD not supported, or the server is not reachable: the single request will tell.
+            return new Remote(false, -1, null);
+        }
+    }
+
+    // At least one segment per parallel request, at most 4 MiB each
+    private int segmentsFor(final long length){
+        final long parallel = Math.max(1, Math.min(segments, length / MIN_SEGMENT_SIZE));
+        return (int) Math.max(parallel, (length + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+    }
+
+    private interface Request {
+        void run() throws IOException;
+    }
+
+    private void withRetries(final Request request){
+        IOException failure = null;
+        for (int attempt = 0; attempt <= retries; attempt++){
+            if (attempt > 0){
+                try {
+                    Thread.sleep(200L * attempt);
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            try {
+                request.run();
+                return;
+            }catch (IOException e){
+                failure = e;
+            }
+        }
+        throw new IllegalStateException("Download failed after " + (retries + 1) + " attempts", failure);
+    }
+
+    private static HttpURLConnection open(final URL url, final String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        return connection;
+    }
+
+    private static void deleteQuietly(final Path file){
+        try {
+            Files.deleteIfExists(file);
+        }catch (IOException e){
+            // shh
+        }
+    }
+
+    // Bytes of the partial file written so far, shared by the download and the reader
+    private static class Progress {
+        private long[] starts = new long[0];
+        private long[] ends = new long[0];
+        private AtomicLongArray done = new AtomicLongArray(0);
+        private boolean finished = false;
+        private RuntimeException failure;
+        private volatile boolean cancelled = false;
+
+        private synchronized void start(final long[] starts, final long[] ends, final AtomicLongArray done){
+            this.starts = starts;
+            this.ends = ends;
+            this.done = done;
+            notifyAll();
+        }
+
+        private synchronized void advanced(){
+            notifyAll();
+        }
+
+        private synchronized void finish(final RuntimeException failure){
+            this.finished = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        private void cancel(){
+            cancelled = true;
+            advanced();
+        }
+
+        private boolean isCancelled(){
+            return cancelled;
+        }
+
+        // End (exclusive) of the bytes written without gaps from the beginning of the file
+        private long contiguous(){
+            long end = 0;
+            for (int i = 0; i < starts.length && end == starts[i]; i++){
+                end = starts[i] + done.get(i);
+            }
+            return end;
+        }
+
+        // Waits until the byte at the position is written, or the download is over. Returns the bytes readable from the position.
+        private synchronized long awaitReadable(final long position) throws IOException {
+            while (true){
+                final long readable = contiguous() - position;
+                if (readable > 0){
+                    return readable;
+                }
+                if (failure != null){
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                if (finished || cancelled){
+                    return 0;
+                }
+                try {
+                    wait();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the download", e);
+                }
+            }
+        }
+    }
+
+    // Reads the partial file behind the download
+    private static class PartInputStream extends InputStream {
+        private final Path part;
+        private final Progress progress;
+        private final Future<?> download;
+        private FileChannel channel;
+        private long position = 0;
+        private boolean closed = false;
+
+        private PartInputStream(final Path part, final Progress progress, final Future<?> download) {
+            this.part = part;
+            this.progress = progress;
+            this.download = download;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (closed){
+                throw new IOException("Stream closed");
+            }
+            if (length == 0){
+                return 0;
+            }
+            final long readable = progress.awaitReadable(position);
+            if (readable == 0){
+                return -1;
+            }
+            if (channel == null){
+                channel = openOrThrow(part);
+            }
+            final int read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, readable)), position);
+            if (read > 0){
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed){
+                return;
+            }
+            closed = true;
+            progress.cancel();
+            try {
+                download.get();
+            }catch (Exception e){
+                // shh, reported by read
+            }finally {
+                if (channel != null){
+                    channel.close();
+                }
+            }
+            // Kept for the next download if it failed
+            if (progress.failure == null){
+                deleteQuietly(part);
+            }
+        }
+
+        private static FileChannel openOrThrow(final Path part) throws IOException {
+            try {
+                return FileChannel.open(part, StandardOpenOption.READ);
+            }catch (NoSuchFileException e){
+                throw new IOException("The partial file " + part + " is missing", e);
+            }
+        }
+    }
+
+    // What the server says about the resource
+    private static class Remote {
+        private final boolean ranges;
+        private final long length;
+        private final String validator;
+
+        private Remote(final boolean ranges, final long length, final String validator) {
+            this.ranges = ranges;
+            this.length = length;
+            this.validator = validator;
+        }
+    }
+
+    // Segments of a download and their progress
+    private static class State {
+        private final String url;
+        private final long length;
+        private final String validator;
+        private final long[] starts;
+        private final long[] ends;
+        private final AtomicLongArray done;
+
+        private State(final String url, final long length, final String validator, final long[] starts, final long[] ends, final AtomicLongArray done) {
+            this.url = url;
+            this.length = length;
+            this.validator = validator;
+            this.starts = starts;
+            this.ends = ends;
+            this.done = done;
+        }
+
+        private static State create(final URL url, final Remote remote, final int segments){
+            final long[] starts = new long[segments];
+            final long[] ends = new long[segments];
+            final long size = remote.length / segments;
+            for (int i = 0; i < segments; i++){
+                starts[i] = i * size;
+                ends[i] = i == segments - 1 ? remote.length - 1 : (i + 1) * size - 1;
+            }
+            return new State(url.toString(), remote.length, remote.validator, starts, ends, new AtomicLongArray(segments));
+        }
+
+        private boolean matches(final URL url, final Remote remote){
+            return this.url.equals(url.toString()) && length == remote.length && (validator == null ? remote.validator == null : validator.equals(remote.validator));
+        }
+
+        private long remaining(final int segment){
+            return ends[segment] - starts[segment] + 1 - done.get(segment);
+        }
+
+        private long downloaded(){
+            long downloaded = 0;
+            for (int i = 0; i < starts.length; i++){
+                downloaded += done.get(i);
+            }
+            return downloaded;
+        }
+
+        private synchronized void save(final Path path){
+            final Properties properties = new Properties();
+            properties.setProperty("url", url);
+            properties.setProperty("length", Long.toString(length));
+            if (validator != null){
+                properties.setProperty("validator", validator);
+            }
+            properties.setProperty("segments", Integer.toString(starts.length));
+            for (int i = 0; i < starts.length; i++){
+                properties.setProperty("segment." + i, starts[i] + "-" + ends[i] + ":" + done.get(i));
+            }
+            final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp)){
+                    properties.store(out, null);
+                }
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }catch (IOException e){
+                // shh, the next download starts from the beginning
+                deleteQuietly(tmp);
+            }
+        }
+
+        private static State loadOrNull(final Path path){
+            if (!Files.exists(path)){
+                return null;
+            }
+            try (InputStream in = Files.newInputStream(path)){
+                final Properties properties = new Properties();
+                properties.load(in);
+                final int segments = Integer.parseInt(properties.getProperty("segments"));
+                final long[] starts = new long[segments];
+                final long[] ends = new long[segments];
+                final AtomicLongArray done = new AtomicLongArray(segments);
+                for (int i = 0; i < segments; i++){
+                    final String segment = properties.getProperty("segment." + i);
+                    final int dash = segment.indexOf('-');
+                    final int colon = segment.indexOf(':');
+                    starts[i] = Long.parseLong(segment.substring(0, dash));
+                    ends[i] = Long.parseLong(segment.substring(dash + 1, colon));
+                    done.set(i, Long.parseLong(segment.substring(colon + 1)));
+                }
+                return new State(properties.getProperty("url"), Long.parseLong(properties.getProperty("length")),
+                        properties.getProperty("validator"), starts, ends, done);
+            }catch (Exception e){
+                // Corrupted, start again
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.jdbc;
+
+import io.github.melozzola.crdb.process.ProcessDetails;
+import io.github.melozzola.crdb.utils.Utils;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * <p> Pool of pre-created databases, each one with its own user, on a running (insecure) cockroach db.
+ * <p> The databases are created in background when the pool is instantiated. A database returned to the pool
+ *     is dropped and re-created in background before being handed out again, so the caller never waits
+ *     on {@code CREATE DATABASE}/{@code DROP DATABASE} as long as the pool is big enough.
+ * <p> The database names are unique per JVM and pool ({@code test_<jvm pid>_<pool id>_<index>}), so pools of different
+ *     test classes or JVMs can share the same cockroach db process. The databases and their users are dropped when the
+ *     pool is closed, so they don't pile up on processes that outlive the pool.
+ * <p> A database that can't be (re-)created, after a few attempts, is left out of the pool. Once no database is
+ *     available, being created nor in use, {@link #acquire(long, TimeUnit)} fails straight away with the creation error.
+ */
+public class DatabasePool implements AutoCloseable {
+
+    private static final AtomicInteger POOL_IDS = new AtomicInteger(0);
+    private static final int RECREATE_ATTEMPTS = 3;
+    private static final long RECREATE_BACKOFF_MS = 200;
+    private static final long CLOSE_WAIT_MS = 10000;// 10 secs
+
+    private final Function<String, String> jdbcUrls;
+    private final Initializer initializer;
+    private final List<Database> databases = new ArrayList<>();
+    private final LinkedBlockingQueue<Database> available = new LinkedBlockingQueue<>();
+    private final ExecutorService executor;
+    private final AtomicInteger creating = new AtomicInteger(0);
+    // Acquired and not released yet, they come back to the pool
+    private final AtomicInteger inUse = new AtomicInteger(0);
+    private volatile Exception lastError;
+    private volatile boolean closed = false;
+
+    /**
+     * <p> Database initialization (e.g. schema creation), executed every time a database is (re-)created.
+     */
+    public interface Initializer {
+
+        /**
+         * @param connection Connection, as root, to the database to initialize.
+         * @param database The database.
+         * @throws SQLException if the initialization fails.
+         */
+        void initialize(Connection connection, Database database) throws SQLException;
+    }
+
+    /**
+     * <p> A database of the pool, with its own user.
+     */
+    public static class Database {
+
+        private final String name;
+        private final String user;
+        private final String jdbcUrl;
+
+        private Database(final String name, final String user, final String jdbcUrl) {
+            this.name = name;
+            this.user = user;
+            this.jdbcUrl = jdbcUrl;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getJdbcUrl() {
+            return jdbcUrl;
+        }
+
+        @Override
+        public String toString() {
+            return "Database{" +
+                    "name='" + name + '\'' +
+                    ", user='" + user + '\'' +
+                    ", jdbcUrl='" + jdbcUrl + '\'' +
+                    '}';
+        }
+    }
+
+    /**
+     * <p> Instantiates the pool and starts creating the databases in background.
+     *
+     * @param details The details of the cockroach db process.
+     * @param size The number of databases.
+     * @param initializer Optional initialization executed on every (re-)created database.
+     */
+    public DatabasePool(final ProcessDetails details, final int size, final Initializer initializer) {
+        this(database -> jdbcUrl(details.getHost(), details.getPort(), database), size, initializer);
+    }
+
+    // Package private for tests: the jdbc urls of the databases, by name
+    DatabasePool(final Function<String, String> jdbcUrls, final int size, final Initializer initializer) {
+        if (size < 1){
+            throw new IllegalArgumentException("The pool needs at least one database");
+        }
+        this.jdbcUrls = jdbcUrls;
+        this.initializer = initializer;
+        this.executor = Executors.newFixedThreadPool(Math.min(size, 4), r -> {
+            final Thread thread = new Thread(r, "crdb-database-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final String prefix = "test_" + Utils.jvmPid() + "_" + POOL_IDS.incrementAndGet() + "_";
+        for (int i = 0; i < size; i++){
+            final String name = prefix + i;
+            final Database database = new Database(name, name + "_user", jdbcUrls.apply(name));
+            databases.add(database);
+            scheduleRecreate(database);
+        }
+    }
+
+    /**
+     * <p> Takes a database from the pool, waiting if none is available.
+     *     Fails without waiting if no database is available, being created nor in use and a database could not be (re-)created.
+     *
+     * @param timeout How long to wait.
+     * @param unit The timeout unit.
+     * @return The database.
+     */
+    public Database acquire(final long timeout, final TimeUnit unit){
+        if (closed){
+            throw new IllegalStateException("The database pool is closed");
+        }
+        try {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                // Short polls, to notice the creation failures
+                final long waitMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+                final Database database = available.poll(Math.min(100, waitMs), TimeUnit.MILLISECONDS);
+                if (database != null){
+                    inUse.incrementAndGet();
+                    return database;
+                }
+                final Exception error = lastError;
+                if (error != null && creating.get() == 0 && inUse.get() == 0 && available.isEmpty()){
+                    throw new IllegalStateException("No database available, a database could not be created", error);
+                }
+                if (System.nanoTime() - deadline >= 0){
+                    throw new IllegalStateException("No database available within " + timeout + " " + unit);
+                }
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a database", e);
+        }
+    }
+
+    /**
+     * <p> Returns a database to the pool. The database is dropped and re-created in background.
+     *
+     * @param database The database.
+     */
+    public void release(final Database database){
+        if (!closed) {
+            scheduleRecreate(database);
+        }
+        // After counting the re-creation, so that acquire doesn't see the database nowhere
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * <p> Closes the pool, dropping its databases and their users. The databases in use are dropped too.
+     */
+    @Override
+    public void close() {
+        if (closed){
+            return;
+        }
+        closed = true;
+        executor.shutdownNow();
+        try {
+            // Let the running (re-)creations finish, otherwise they could create a database after the drop
+            executor.awaitTermination(CLOSE_WAIT_MS, TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        available.clear();
+        try (Connection connection = DriverManager.getConnection(jdbcUrls.apply("system"), "root", "");
+             Statement statement = connection.createStatement()){
+            for (Database database : databases){
+                statement.execute("DROP DATABASE IF EXISTS " + database.name + " CASCADE");
+                statement.execute("DROP USER IF EXISTS " + database.user);
+            }
+        }catch (SQLException e){
+            // shh, best effort: the process may be gone already.
+        }
+    }
+
+    private void scheduleRecreate(final Database database){
+        creating.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                recreate(database);
+            }finally {
+                creating.decrementAndGet();
+            }
+        });
+    }
+
+    private void recreate(final Database database){
+        for (int attempt = 1; !closed; attempt++){
+            try {
+                tryRecreate(database);
+                if (!closed) {
+                    available.add(database);
+                }
+                return;
+            }catch (SQLException | RuntimeException e){
+                if (attempt == RECREATE_ATTEMPTS){
+                    // Left out of the pool, acquire reports the error
+                    lastError = e;
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(RECREATE_BACKOFF_MS * attempt);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void tryRecreate(final Database database) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(jdbcUrls.apply("system"), "root", "");
+             Statement statement = connection.createStatement()){
+            statement.execute("DROP DATABASE IF EXISTS " + database.name + " CASCADE");
+            statement.execute("CREATE DATABASE " + database.name);
+            statement.execute("CREATE USER IF NOT EXISTS " + database.user);
+            statement.execute("GRANT ALL ON DATABASE " + database.name + " TO " + database.user);
+            if (initializer != null){
+                try (Connection db = DriverManager.getConnection(database.jdbcUrl, "root", "")){
+                    initializer.initialize(db, database);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p> Returns the jdbc url of a database on an insecure cockroach db.
+     *
+     * @param host The cockroach db host.
+     * @param port The cockroach db port.
+     * @param database The database name.
+     * @return The jdbc url.
+     */
+    public static String jdbcUrl(final String host, final int port, final String database){
+        return String.format("jdbc:postgresql://%s:%d/%s?sslmode=disable", host, port, database);
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.jdbc;
+
+import io.github.melozzola.crdb.installer.Config;
+import io.github.melozzola.crdb.process.ProcessDetails;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * <p> Bounded pool of jdbc connections to a running cockroach db, exposed as a {@link DataSource}.
+ * <p> The connections are opened in background when the pool is instantiated, so the pgwire handshake and the session set up
+ *     are not paid by the tests. Closing a connection returns it to the pool (rolling back the open transaction, if any).
+ *     At most {@code size} connections are open and handed out: when all of them are in use {@link #getConnection()} waits
+ *     up to the login timeout ({@value #DEFAULT_LOGIN_TIMEOUT_S} seconds by default).
+ * <p> The jdbc url enables the postgres driver statement cache ({@code prepareThreshold} and {@code preparedStatementCacheQueries},
+ *     see {@code datasource.prepare.threshold} and {@code datasource.statement.cache.queries}): the statements prepared on a
+ *     connection stay prepared on the server while the connection goes back and forth from the pool.
+ * <p> {@link #close()} waits up to {@code datasource.drain.timeout.ms} for the connections in use to be returned, then closes all of them.
+ */
+public class PooledDataSource implements DataSource, AutoCloseable {
+
+    private static final String PREPARE_THRESHOLD_PROPERTY = "datasource.prepare.threshold";
+    private static final String CACHE_QUERIES_PROPERTY = "datasource.statement.cache.queries";
+    private static final String DRAIN_TIMEOUT_PROPERTY = "datasource.drain.timeout.ms";
+    private static final int DEFAULT_LOGIN_TIMEOUT_S = 30;
+    private static final long POLL_MS = 100;
+
+    private final String jdbcUrl;
+    private final String user;
+    private final String password;
+    private final int size;
+    private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    // All the open connections, idle or in use
+    private final Set<Connection> physical = ConcurrentHashMap.newKeySet();
+    // Open or being opened
+    private final AtomicInteger opened = new AtomicInteger(0);
+    // One per connection in use
+    private final Semaphore inUse;
+    private final ExecutorService warmer;
+    private volatile SQLException lastError;
+    private volatile boolean closed = false;
+    private volatile int loginTimeout = 0;
+    private volatile PrintWriter logWriter;
+
+    /**
+     * <p> Instantiates a pool connected, as root, to a database of an insecure cockroach db.
+     *
+     * @param details The details of the cockroach db process.
+     * @param database The database. It doesn't need to exist yet, the connections are only opened on it.
+     * @param size The number of connections.
+     * @return The pool, opening the connections in background.
+     */
+    public static PooledDataSource forProcess(final ProcessDetails details, final String database, final int size){
+        return new PooledDataSource(DatabasePool.jdbcUrl(details.getHost(), details.getPort(), database), "root", "", size);
+    }
+
+    /**
+     * <p> Instantiates the pool and starts opening the connections in background.
+     *
+     * @param jdbcUrl The jdbc url. The statement cache parameters are added if not already there.
+     * @param user The user.
+     * @param password The password.
+     * @param size The number of connections.
+     */
+    public PooledDataSource(final String jdbcUrl, final String user, final String password, final int size) {
+        if (size < 1){
+            throw new IllegalArgumentException("The pool needs at least one connection");
+        }
+        this.jdbcUrl = withStatementCache(jdbcUrl, readInt(PREPARE_THRESHOLD_PROPERTY, 1), readInt(CACHE_QUERIES_PROPERTY, 256));
+        this.user = user;
+        this.password = password;
+        this.size = size;
+        this.inUse = new Semaphore(size, true);
+        this.warmer = Executors.newFixedThreadPool(Math.min(size, 4), r -> {
+            final Thread thread = new Thread(r, "crdb-data-source");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < size; i++){
+            warmer.execute(this::warmUp);
+        }
+    }
+
+    /**
+     * <p> Returns the jdbc url of the connections.
+     *
+     * @return The jdbc url.
+     */
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    /**
+     * <p> Returns the maximum number of connections of the pool.
+     *
+     * @return The size of the pool.
+     */
+    public int getMaxConnections(){
+        return size;
+    }
+
+    /**
+     * <p> Returns the number of open connections, idle or in use.
+     *
+     * @return The number of open connections.
+     */
+    public int getOpenConnections(){
+        return physical.size();
+    }
+
+    /**
+     * <p> Returns the number of idle connections.
+     *
+     * @return The number of idle connections.
+     */
+    public int getIdleConnections(){
+        return idle.size();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        failIfClosed();
+        final long timeoutMs = TimeUnit.SECONDS.toMillis(loginTimeout > 0 ? loginTimeout : DEFAULT_LOGIN_TIMEOUT_S);
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            if (!inUse.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)){
+                throw new SQLException("No connection available within " + timeoutMs + " ms: all the " + size + " connections are in use", lastError);
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            final Connection connection = take(deadline);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new Borrowed(connection));
+        }catch (SQLException | RuntimeException e){
+            inUse.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool connects as " + user);
+    }
+
+    /**
+     * <p> Closes the idle connections, waits for the connections in use to be returned and closes them as well.
+     */
+    @Override
+    public void close() {
+        if (closed){
+            return;
+        }
+        closed = true;
+        warmer.shutdownNow();
+        closeIdle();
+        try {
+            if (!inUse.tryAcquire(size, readInt(DRAIN_TIMEOUT_PROPERTY, 5000), TimeUnit.MILLISECONDS)){
+                log("Closing the data source with connections still in use");
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        try {
+            warmer.awaitTermination(POLL_MS, TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        closeIdle();
+        for (Connection connection : physical){
+            discard(connection);
+        }
+    }
+
+    // Idle connection, or a new one if the pool is not full. Otherwise waits for one to be returned (or opened by the warmer).
+    private Connection take(final long deadline) throws SQLException {
+        try {
+            while (true){
+                failIfClosed();
+                final Connection connection = idle.poll();
+                if (connection != null){
+                    return connection;
+                }
+                if (opened.incrementAndGet() <= size){
+                    return open();
+                }
+                opened.decrementAndGet();
+                final Connection returned = idle.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (returned != null){
+                    return returned;
+                }
+                if (System.currentTimeMillis() > deadline){
+                    throw new SQLException("No connection available: all the " + size + " connections are in use or being opened", lastError);
+                }
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    private void warmUp(){
+        if (closed || opened.incrementAndGet() > size){
+            opened.decrementAndGet();
+            return;
+        }
+        try {
+            final Connection connection = open();
+            if (closed){
+                discard(connection);
+            }else {
+                idle.add(connection);
+            }
+        }catch (SQLException e){
+            // shh, the connection is opened again when needed
+        }
+    }
+
+    // The caller reserved the slot in opened
+    private Connection open() throws SQLException {
+        try {
+            final Connection connection = DriverManager.getConnection(jdbcUrl, user, password);
+            physical.add(connection);
+            return connection;
+        }catch (SQLException e){
+            opened.decrementAndGet();
+            lastError = e;
+            throw e;
+        }
+    }
+
+    // Back to the pool, unless broken or the pool is closed.
+    private void giveBack(final Connection connection){
+        try {
+            if (closed || connection.isClosed()){
+                discard(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()){
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            connection.clearWarnings();
+            idle.add(connection);
+        }catch (SQLException e){
+            discard(connection);
+        }finally {
+            inUse.release();
+        }
+    }
+
+    private void discard(final Connection connection){
+        if (physical.remove(connection)){
+            opened.decrementAndGet();
+        }
+        try {
+            connection.close();
+        }catch (SQLException e){
+            // shh, the process is going away anyway
+        }
+    }
+
+    private void closeIdle(){
+        Connection connection;
+        while ((connection = idle.poll()) != null){
+            discard(connection);
+        }
+    }
+
+    private void failIfClosed() throws SQLException {
+        if (closed){
+            throw new SQLException("The data source is closed");
+        }
+    }
+
+    private void log(final String message){
+        final PrintWriter writer = logWriter;
+        if (writer != null){
+            writer.println(message);
+        }
+    }
+
+    /**
+     * <p> Adds the postgres driver statement cache parameters to a jdbc url, unless already there.
+     *
+     * @param jdbcUrl The jdbc url.
+     * @param prepareThreshold Executions of a statement before it's prepared on the server.
+     * @param cacheQueries Prepared statements cached per connection.
+     * @return The jdbc url.
+     */
+    static String withStatementCache(final String jdbcUrl, final int prepareThreshold, final int cacheQueries){
+        final StringBuilder url = new StringBuilder(jdbcUrl);
+        if (!jdbcUrl.contains("prepareThreshold=")){
+            url.append(url.indexOf("?") < 0 ? '?' : '&').append("prepareThreshold=").append(prepareThreshold);
+        }
+        if (!jdbcUrl.contains("preparedStatementCacheQueries=")){
+            url.append(url.indexOf("?") < 0 ? '?' : '&').append("preparedStatementCacheQueries=").append(cacheQueries);
+        }
+        return url.toString();
+    }
+
+    private static int readInt(final String property, final int defaultValue){
+        final String value = Config.getInstance().get(property);
+        if (value == null || "".equals(value.trim())){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + property + ": " + value, e);
+        }
+    }
+
+    // Connection handed out by the pool. Closing it gives the physical connection back.
+    private class Borrowed implements InvocationHandler {
+
+        private final Connection connection;
+        private boolean returned = false;
+
+        private Borrowed(final Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public synchronized Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()){
+                case "close":
+                    if (!returned){
+                        returned = true;
+                        giveBack(connection);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled(" + connection + ")";
+                default:
+                    if (returned){
+                        throw new SQLException("The connection has been returned to the pool");
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    }catch (InvocationTargetException e){
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)){
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper of " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
@@ -0,0 +1,730 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.jdbc;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p> Loads CSV and SQL fixtures into a running cockroach db, e.g. from the {@code Listener} of the junit rule.
+ * <pre>
+ * final SeedLoader.Report report = SeedLoader.into(dataSource)
+ *         .sql("/fixtures/schema.sql")
+ *         .csv("/fixtures/logs.csv", "test.logs")
+ *         .load();
+ * </pre>
+ * <p> The files are streamed (from the classpath or the file system), never fully loaded in memory, and loaded in the declared order.
+ * <ul>
+ *     <li>CSV: the first record holds the column names. The rows are grouped in batches ( See {@link #batchSize(int)} ) written in parallel
+ *     on different connections ( See {@link #threads(int)} ), with {@code COPY ... FROM STDIN} when the server and the postgres driver
+ *     support it, otherwise with multi-row {@code INSERT}s. An empty unquoted value is {@code NULL}.</li>
+ *     <li>SQL: statements separated by {@code ;}, executed in order on a single connection in jdbc batches.</li>
+ * </ul>
+ * <p> The {@link Report} has the rows/s of each file, to size the fixtures.
+ */
+public class SeedLoader {
+
+    // Bind parameters per statement allowed by pgwire
+    private static final int MAX_PARAMETERS = 32767;
+    private static final long POLL_MS = 100;
+    private static final List<String[]> END = Collections.emptyList();
+
+    private final DataSource dataSource;
+    private final List<Source> sources = new ArrayList<>();
+    private int batchSize = 1000;
+    private int threads = 4;
+    private boolean copy = true;
+    private Charset charset = StandardCharsets.UTF_8;
+    private Appendable reportTo;
+
+    private SeedLoader(final DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * <p> Creates a loader.
+     *
+     * @param dataSource The connections to the cockroach db (e.g. a {@link PooledDataSource}).
+     * @return The loader.
+     */
+    public static SeedLoader into(final DataSource dataSource){
+        return new SeedLoader(dataSource);
+    }
+
+    /**
+     * <p> Adds a CSV classpath resource.
+     *
+     * @param resource The resource name, e.g. {@code /fixtures/logs.csv}.
+     * @param table The table, e.g. {@code test.logs}.
+     * @return The loader.
+     */
+    public SeedLoader csv(final String resource, final String table){
+        sources.add(new Source(resource, table, () -> openResource(resource)));
+        return this;
+    }
+
+    /**
+     * <p> Adds a CSV file.
+     *
+     * @param file The file.
+     * @param table The table, e.g. {@code test.logs}.
+     * @return The loader.
+     */
+    public SeedLoader csv(final Path file, final String table){
+        sources.add(new Source(file.toString(), table, () -> Files.newInputStream(file)));
+        return this;
+    }
+
+    /**
+     * <p> Adds a SQL classpath resource.
+     *
+     * @param resource The resource name, e.g. {@code /fixtures/schema.sql}.
+     * @return The loader.
+     */
+    public SeedLoader sql(final String resource){
+        sources.add(new Source(resource, null, () -> openResource(resource)));
+        return this;
+    }
+
+    /**
+     * <p> Adds a SQL file.
+     *
+     * @param file The file.
+     * @return The loader.
+     */
+    public SeedLoader sql(final Path file){
+        sources.add(new Source(file.toString(), null, () -> Files.newInputStream(file)));
+        return this;
+    }
+
+    /**
+     * <p> Sets the number of CSV rows (or SQL statements) sent together. 1000 by default.
+     *
+     * @param batchSize The batch size.
+     * @return The loader.
+     */
+    public SeedLoader batchSize(final int batchSize){
+        if (batchSize < 1){
+            throw new IllegalArgumentException("The batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * <p> Sets the number of connections writing the CSV batches in parallel. 4 by default, capped to the size of
+     *     a {@link PooledDataSource}: each writer holds its connection for the whole file.
+     *
+     * @param threads The number of connections.
+     * @return The loader.
+     */
+    public SeedLoader threads(final int threads){
+        if (threads < 1){
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * <p> Always uses multi-row {@code INSERT}s, even if {@code COPY} is supported.
+     *
+     * @return The loader.
+     */
+    public SeedLoader noCopy(){
+        this.copy = false;
+        return this;
+    }
+
+    /**
+     * <p> Sets the files charset. UTF-8 by default.
+     *
+     * @param charset The charset.
+     * @return The loader.
+     */
+    public SeedLoader charset(final Charset charset){
+        this.charset = charset;
+        return this;
+    }
+
+    /**
+     * <p> Prints a line per file (rows and rows/s) once loaded, e.g. to {@code System.out}.
+     *
+     * @param out Where to print.
+     * @return The loader.
+     */
+    public SeedLoader reportTo(final Appendable out){
+        this.reportTo = out;
+        return this;
+    }
+
+    /**
+     * <p> Loads the files, in the declared order.
+     *
+     * @return The report.
+     * @throws IllegalStateException If a file can't be read or loaded. The files before it are loaded.
+     */
+    public Report load(){
+        final List<Result> results = new ArrayList<>();
+        for (Source source : sources){
+            final long start = System.nanoTime();
+            try (Reader reader = new BufferedReader(new InputStreamReader(source.opener.open(), charset))){
+                final Result result = source.table == null ? loadSql(source, reader, start) : loadCsv(source, reader, start);
+                results.add(result);
+                if (reportTo != null){
+                    reportTo.append(result.toString()).append('\n');
+                }
+            }catch (IOException e){
+                throw new IllegalStateException("Unable to read " + source.name, e);
+            }
+        }
+        return new Report(results);
+    }
+
+    private Result loadSql(final Source source, final Reader reader, final long start){
+        long statements = 0;
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()){
+            final SqlReader sql = new SqlReader(reader);
+            int batched = 0;
+            String next;
+            while ((next = sql.next()) != null){
+                statement.addBatch(next);
+                if (++batched == batchSize){
+                    statement.executeBatch();
+                    statements += batched;
+                    batched = 0;
+                }
+            }
+            if (batched > 0){
+                statement.executeBatch();
+                statements += batched;
+            }
+        }catch (SQLException | IOException e){
+            throw new IllegalStateException("Unable to load " + source.name + " after " + statements + " statements", e);
+        }
+        return new Result(source.name, null, statements, System.nanoTime() - start, false);
+    }
+
+    // The caller thread parses the rows, the writers send the batches.
+    private Result loadCsv(final Source source, final Reader reader, final long start) throws IOException {
+        final CsvReader csv = new CsvReader(reader);
+        final String[] columns = csv.next();
+        if (columns == null){
+            return new Result(source.name, source.table, 0, System.nanoTime() - start, false);
+        }
+        final boolean useCopy = copy && copySupported(source.table, columns);
+        final int rowsPerBatch = useCopy ? batchSize : Math.max(1, Math.min(batchSize, MAX_PARAMETERS / columns.length));
+
+        final int writerCount = writerCount();
+        final ArrayBlockingQueue<List<String[]>> batches = new ArrayBlockingQueue<>(writerCount * 2);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final AtomicLong rows = new AtomicLong(0);
+        final ExecutorService writers = Executors.newFixedThreadPool(writerCount, r -> {
+            final Thread thread = new Thread(r, "crdb-seed-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < writerCount; i++){
+                running.add(writers.submit(() -> {
+                    write(source.table, columns, useCopy, batches, rows, failure);
+                    return null;
+                }));
+            }
+            try {
+                List<String[]> batch = new ArrayList<>(rowsPerBatch);
+                String[] row;
+                while (failure.get() == null && (row = csv.next()) != null){
+                    if (row.length != columns.length){
+                        failure.compareAndSet(null, new IllegalStateException("Record " + csv.records + ": expected " + columns.length + " values but found " + row.length));
+                        break;
+                    }
+                    batch.add(row);
+                    if (batch.size() == rowsPerBatch){
+                        put(batches, batch, failure);
+                        batch = new ArrayList<>(rowsPerBatch);
+                    }
+                }
+                if (!batch.isEmpty()){
+                    put(batches, batch, failure);
+                }
+            }finally {
+                for (int i = 0; i < writerCount; i++){
+                    put(batches, END, failure);
+                }
+            }
+            for (Future<?> writer : running){
+                try {
+                    writer.get();
+                }catch (ExecutionException e){
+                    failure.compareAndSet(null, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                }
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading " + source.name, e);
+        }finally {
+            writers.shutdownNow();
+        }
+        if (failure.get() != null){
+            throw new IllegalStateException("Unable to load " + source.name + " into " + source.table + " after " + rows.get() + " rows", failure.get());
+        }
+        return new Result(source.name, source.table, rows.get(), System.nanoTime() - start, useCopy);
+    }
+
+    // More writers than pooled connections would wait for the login timeout and fail
+    private int writerCount(){
+        try {
+            if (dataSource.isWrapperFor(PooledDataSource.class)){
+                return Math.min(threads, dataSource.unwrap(PooledDataSource.class).getMaxConnections());
+            }
+        }catch (SQLException e){
+            // shh, not a pool we know the size of
+        }
+        return threads;
+    }
+
+    // Writer thread: one connection, batches until the end marker
+    private void write(final String table, final String[] columns, final boolean useCopy, final ArrayBlockingQueue<List<String[]>> batches,
+                       final AtomicLong rows, final AtomicReference<Exception> failure) throws Exception {
+        PreparedStatement full = null;
+        int fullRows = 0;
+        try (Connection connection = dataSource.getConnection()){
+            List<String[]> batch;
+            while ((batch = take(batches, failure)) != END){
+                if (useCopy){
+                    copyIn(connection, copySql(table, columns), new StringReader(copyText(batch)));
+                }else if (full == null || batch.size() == fullRows){
+                    // All the batches are full but the last one: the statement is prepared once per connection
+                    if (full == null){
+                        full = connection.prepareStatement(insertSql(table, columns, batch.size()));
+                        fullRows = batch.size();
+                    }
+                    insert(full, batch);
+                }else {
+                    try (PreparedStatement last = connection.prepareStatement(insertSql(table, columns, batch.size()))){
+                        insert(last, batch);
+                    }
+                }
+                rows.addAndGet(batch.size());
+            }
+        }catch (Exception e){
+            failure.compareAndSet(null, e);
+            throw e;
+        }finally {
+            if (full != null){
+                try {
+                    full.close();
+                }catch (SQLException e){
+                    // shh, closed with the connection
+                }
+            }
+        }
+    }
+
+    private static void insert(final PreparedStatement statement, final List<String[]> batch) throws SQLException {
+        int index = 1;
+        for (String[] row : batch){
+            for (String value : row){
+                if (value == null){
+                    statement.setNull(index++, Types.OTHER);
+                }else {
+                    // Untyped, the server converts the text to the column type
+                    statement.setObject(index++, value, Types.OTHER);
+                }
+            }
+        }
+        statement.executeUpdate();
+    }
+
+    // An empty COPY tells whether both the server and the driver support it.
+    private boolean copySupported(final String table, final String[] columns){
+        try (Connection connection = dataSource.getConnection()){
+            copyIn(connection, copySql(table, columns), new StringReader(""));
+            return true;
+        }catch (Exception e){
+            // shh, not the postgres driver or not supported by this cockroach db version: multi-row inserts.
+            return false;
+        }
+    }
+
+    // CopyManager of the postgres driver, which is not a dependency
+    private static void copyIn(final Connection connection, final String sql, final Reader data) throws Exception {
+        final Class<?> pgConnection = Class.forName("org.postgresql.PGConnection", false, classLoader());
+        final Object copyApi = pgConnection.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnection));
+        try {
+            copyApi.getClass().getMethod("copyIn", String.class, Reader.class).invoke(copyApi, sql, data);
+        }catch (InvocationTargetException e){
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    static String insertSql(final String table, final String[] columns, final int rows){
+        final StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (").append(String.join(", ", columns)).append(") VALUES ");
+        for (int i = 0; i < rows; i++){
+            sql.append(i == 0 ? "(" : ", (");
+            for (int j = 0; j < columns.length; j++){
+                sql.append(j == 0 ? "?" : ", ?");
+            }
+            sql.append(')');
+        }
+        return sql.toString();
+    }
+
+    static String copySql(final String table, final String[] columns){
+        return "COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN";
+    }
+
+    // COPY text format: tab separated, \N for NULL
+    static String copyText(final List<String[]> batch){
+        final StringBuilder text = new StringBuilder();
+        for (String[] row : batch){
+            for (int i = 0; i < row.length; i++){
+                if (i > 0){
+                    text.append('\t');
+                }
+                if (row[i] == null){
+                    text.append("\\N");
+                    continue;
+                }
+                for (int j = 0; j < row[i].length(); j++){
+                    final char c = row[i].charAt(j);
+                    switch (c){
+                        case '\\': text.append("\\\\"); break;
+                        case '\t': text.append("\\t"); break;
+                        case '\n': text.append("\\n"); break;
+                        case '\r': text.append("\\r"); break;
+                        default: text.append(c);
+                    }
+                }
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void put(final ArrayBlockingQueue<List<String[]>> batches, final List<String[]> batch, final AtomicReference<Exception> failure) throws InterruptedException {
+        while (!batches.offer(batch, POLL_MS, TimeUnit.MILLISECONDS)){
+            if (failure.get() != null){
+                return;
+            }
+        }
+    }
+
+    private static List<String[]> take(final ArrayBlockingQueue<List<String[]>> batches, final AtomicReference<Exception> failure) throws InterruptedException {
+        List<String[]> batch;
+        while ((batch = batches.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null){
+            if (failure.get() != null){
+                return END;
+            }
+        }
+        return batch;
+    }
+
+    private static InputStream openResource(final String resource) throws IOException {
+        final String name = resource.startsWith("/") ? resource.substring(1) : resource;
+        InputStream in = classLoader().getResourceAsStream(name);
+        if (in == null){
+            in = SeedLoader.class.getClassLoader().getResourceAsStream(name);
+        }
+        if (in == null){
+            throw new IOException("Resource " + resource + " not found in the classpath");
+        }
+        return in;
+    }
+
+    private static ClassLoader classLoader(){
+        final ClassLoader context = Thread.currentThread().getContextClassLoader();
+        return context != null ? context : SeedLoader.class.getClassLoader();
+    }
+
+    private interface Opener {
+        InputStream open() throws IOException;
+    }
+
+    private static class Source {
+        private final String name;
+        // null for sql files
+        private final String table;
+        private final Opener opener;
+
+        private Source(final String name, final String table, final Opener opener) {
+            this.name = name;
+            this.table = table;
+            this.opener = opener;
+        }
+    }
+
+    /**
+     * <p> Streaming RFC 4180 reader: comma separated, optionally double quoted values (with {@code ""} for a quote), records
+     *     separated by new lines (also inside quoted values). Empty lines are skipped.
+     */
+    static class CsvReader {
+
+        private final PushbackReader reader;
+        private long records = 0;
+
+        CsvReader(final Reader reader) {
+            this.reader = new PushbackReader(reader, 1);
+        }
+
+        /**
+         * @return The values of the next record, {@code null} for empty unquoted values, or {@code null} at the end.
+         * @throws IOException If the reader fails or a quoted value is not terminated.
+         */
+        String[] next() throws IOException {
+            int c = reader.read();
+            while (c == '\n' || c == '\r'){
+                c = reader.read();
+            }
+            if (c == -1){
+                return null;
+            }
+            records++;
+            final List<String> values = new ArrayList<>();
+            final StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            while (true){
+                if (c == '"' && !quoted && value.length() == 0){
+                    quoted = true;
+                    while (true){
+                        c = reader.read();
+                        if (c == -1){
+                            throw new IOException("Record " + records + ": unterminated quoted value");
+                        }
+                        if (c == '"'){
+                            c = reader.read();
+                            if (c != '"'){
+                                break;
+                            }
+                        }
+                        value.append((char) c);
+                    }
+                    // c is the character after the closing quote
+                    continue;
+                }
+                if (c == ','){
+                    values.add(valueOf(value, quoted));
+                    value.setLength(0);
+                    quoted = false;
+                }else if (c == '\n' || c == -1){
+                    break;
+                }else if (c == '\r'){
+                    final int next = reader.read();
+                    if (next != '\n' && next != -1){
+                        reader.unread(next);
+                    }
+                    break;
+                }else {
+                    value.append((char) c);
+                }
+                c = reader.read();
+            }
+            values.add(valueOf(value, quoted));
+            return values.toArray(new String[0]);
+        }
+
+        private static String valueOf(final StringBuilder value, final boolean quoted){
+            return !quoted && value.length() == 0 ? null : value.toString();
+        }
+    }
+
+    /**
+     * <p> Streaming reader of the statements of a SQL file: separated by {@code ;}, ignoring the {@code ;} in quoted strings or identifiers
+     *     and in the comments ({@code --} and {@code /* ... *}{@code /}), which are removed.
+     */
+    static class SqlReader {
+
+        private final PushbackReader reader;
+
+        SqlReader(final Reader reader) {
+            this.reader = new PushbackReader(reader, 1);
+        }
+
+        /**
+         * @return The next statement, without the {@code ;}, or {@code null} at the end.
+         * @throws IOException If the reader fails.
+         */
+        String next() throws IOException {
+            final StringBuilder sql = new StringBuilder();
+            int quote = 0;
+            int c;
+            while ((c = reader.read()) != -1){
+                if (quote != 0){
+                    // An escaped quote ('') closes and reopens the string
+                    sql.append((char) c);
+                    if (c == quote){
+                        quote = 0;
+                    }
+                }else if (c == '\'' || c == '"'){
+                    quote = c;
+                    sql.append((char) c);
+                }else if (c == '-' && peek('-')){
+                    while ((c = reader.read()) != -1 && c != '\n'){
+                        // skip the comment
+                    }
+                    sql.append('\n');
+                }else if (c == '/' && peek('*')){
+                    int previous = 0;
+                    while ((c = reader.read()) != -1 && !(previous == '*' && c == '/')){
+                        previous = c;
+                    }
+                    sql.append(' ');
+                }else if (c == ';'){
+                    final String statement = sql.toString().trim();
+                    if (!statement.isEmpty()){
+                        return statement;
+                    }
+                    sql.setLength(0);
+                }else {
+                    sql.append((char) c);
+                }
+            }
+            final String statement = sql.toString().trim();
+            return statement.isEmpty() ? null : statement;
+        }
+
+        // Consumes the next character if it's the expected one
+        private boolean peek(final int expected) throws IOException {
+            final int next = reader.read();
+            if (next == expected){
+                return true;
+            }
+            if (next != -1){
+                reader.unread(next);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * <p> Rows loaded from each file.
+     */
+    public static class Report {
+
+        private final List<Result> results;
+
+        private Report(final List<Result> results) {
+            this.results = Collections.unmodifiableList(results);
+        }
+
+        public List<Result> getResults() {
+            return results;
+        }
+
+        /**
+         * @return The rows (and statements) loaded from all the files.
+         */
+        public long getRows(){
+            long rows = 0;
+            for (Result result : results){
+                rows += result.rows;
+            }
+            return rows;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder();
+            for (Result result : results){
+                report.append(result).append('\n');
+            }
+            return report.toString();
+        }
+    }
+
+    /**
+     * <p> Rows loaded from a file. For SQL files the rows are the statements.
+     */
+    public static class Result {
+
+        private final String name;
+        private final String table;
+        private final long rows;
+        private final long nanos;
+        private final boolean copy;
+
+        private Result(final String name, final String table, final long rows, final long nanos, final boolean copy) {
+            this.name = name;
+            this.table = table;
+            this.rows = rows;
+            this.nanos = nanos;
+            this.copy = copy;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows / (nanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * @return {@code true} if the rows were loaded with {@code COPY}.
+         */
+        public boolean isCopy() {
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return name + (table != null ? " -> " + table : "") + ": " + rows + (table != null ? " rows" : " statements")
+                    + " in " + getMillis() + " ms (" + Math.round(getRowsPerSecond()) + "/s" + (copy ? ", COPY" : "") + ")";
+        }
+    }
+}
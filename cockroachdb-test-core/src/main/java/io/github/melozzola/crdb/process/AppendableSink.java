@@ -0,0 +1,126 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p> {@link LineSink} that writes the lines to an {@link Appendable}, each one prefixed with 'crdb> '.
+ * <p> The lines are queued and written in batches on the {@link LogPump} writer executor. When the queue is full the reading
+ *     thread waits up to {@value #OFFER_WAIT_MS} ms for the writer, slowing down the process output. If the writer is still
+ *     behind, the lines are dropped until it catches up (a stuck {@link Appendable} must not stall the pump of the other
+ *     processes): the number of dropped lines is written once the sink catches up, and counted by {@link #getDroppedLines()}.
+ */
+class AppendableSink implements LineSink {
+
+    private static final String PREFIX = "crdb> ";
+    private static final int QUEUE_SIZE = 4096;
+    private static final int BATCH_SIZE = 256;
+    private static final long OFFER_WAIT_MS = 100;
+
+    private final Appendable out;
+    private final Executor executor;
+    private final ArrayBlockingQueue<String> lines = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong droppedTotal = new AtomicLong(0);
+    // Dropping until the writer drains the queue, instead of waiting for every line
+    private volatile boolean shedding = false;
+
+    AppendableSink(final Appendable out, final Executor executor) {
+        this.out = out;
+        this.executor = executor;
+    }
+
+    @Override
+    public void line(final byte[] buffer, final int offset, final int length) {
+        final String line = new String(buffer, offset, length, StandardCharsets.UTF_8);
+        if (!lines.offer(line) && (shedding || !offerWaiting(line))){
+            shedding = true;
+            dropped.incrementAndGet();
+            droppedTotal.incrementAndGet();
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * @return The number of lines dropped because the {@link Appendable} was too slow.
+     */
+    long getDroppedLines(){
+        return droppedTotal.get();
+    }
+
+    private boolean offerWaiting(final String line){
+        scheduleWrite();
+        try {
+            return lines.offer(line, OFFER_WAIT_MS, TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduleWrite();
+    }
+
+    private void scheduleWrite(){
+        if (scheduled.compareAndSet(false, true)){
+            executor.execute(this::write);
+        }
+    }
+
+    // Only one write runs at a time for this sink.
+    private void write(){
+        final List<String> batch = new ArrayList<>(BATCH_SIZE);
+        final StringBuilder text = new StringBuilder();
+        try {
+            while (lines.drainTo(batch, BATCH_SIZE) > 0 || dropped.get() > 0) {
+                text.setLength(0);
+                for (String line : batch) {
+                    text.append(PREFIX).append(line).append('\n');
+                }
+                final long droppedLines = dropped.getAndSet(0);
+                if (droppedLines > 0) {
+                    text.append(PREFIX).append("[").append(droppedLines).append(" lines dropped, the output is too slow]\n");
+                }
+                batch.clear();
+                if (lines.isEmpty()){
+                    shedding = false;
+                }
+                try {
+                    out.append(text);
+                } catch (Exception e) {
+                    // shh, nothing else we can do.
+                }
+            }
+        }finally {
+            scheduled.set(false);
+        }
+        // Lines queued after the last drain but before the flag was reset
+        if (!lines.isEmpty() || dropped.get() > 0){
+            scheduleWrite();
+        }
+    }
+}
@@ -15,10 +15,16 @@
  */
 package io.github.melozzola.crdb.process;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import io.github.melozzola.crdb.utils.Reaper;
+import io.github.melozzola.crdb.utils.StartupWatcher;
+import io.github.melozzola.crdb.utils.TmpfsPlacement;
+
 import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -28,9 +34,10 @@ import static io.github.melozzola.crdb.utils.Utils.*;
  * <p> CockroachDb process. This class is responsible for
  * <ul>
  *     <li>Allowing pre-configuration of cockroach (startup flags). See {@link Builder} and {@link #builder()}</li>
- *     <li>Installing the binaries from web or classpath (if needed).</li>
- *     <li>Run the CockroachDb process and wait for the database to be available. ( See {@link #startUp()} )</li>
- *     <li>Shut down the process and clean up temporary folders and resources. ( See {@link #shutDown()} )</li>
+ *     <li>Installing the binaries from web or classpath (if needed). The installation starts in background when the
+ *         process is built and the start up waits for it: building a process is cheap, also in a static initializer.</li>
+ *     <li>Run the CockroachDb process and wait for the database to be available. ( See {@link #startUp()} and {@link #startUpAsync()} )</li>
+ *     <li>Shut down the process and clean up temporary folders and resources. ( See {@link #shutDown()} and {@link #shutDownAsync()} )</li>
  * </ul>
  */
 public class Cockroach {
@@ -38,6 +45,7 @@ public class Cockroach {
     private String version = "v1.1.7";
     private boolean cleanUpDataFolder = true;
     private String executable;
+    private CompletableFuture<String> binary;
     private int startupWaitTimeMs = 10000;// 10 secs
     private int shutDownWaitingTimeMs = 10000;// 10 secs
     private Appendable stdErr = System.out;
@@ -45,11 +53,37 @@ public class Cockroach {
     private boolean redirectStdErr = false;
     private boolean redirectStdOut = false;
     private Path workFolder;
+    private String template;
+    private boolean diskStore = false;
+    private boolean storeInWorkFolder = false;
+    private TmpfsPlacement.Reservation placement;
+    private String poolKey;
+    private ResourceProfile resourceProfile;
+    private ResourceProfile.Sizing sizing;
+    private int logBufferSize = 256 * 1024;// 256 KiB
+    private LogBuffer logs;
+    private final StartupMetrics metrics = new StartupMetrics();
 
     private ProcessDetails processDetails;
     private Process crdb;
     private Flags flags = new Flags();
-    private final AtomicInteger status = new AtomicInteger(0); //0=not started, 1=started, 2=stopped
+    private Executor executor = ASYNC_EXECUTOR;
+    private StartupScheduler scheduler;
+    private final AtomicInteger status = new AtomicInteger(NOT_STARTED);
+    private final CompletableFuture<ProcessDetails> started = new CompletableFuture<>();
+
+    private static final int NOT_STARTED = 0;
+    private static final int STARTED = 1;
+    private static final int STOPPED = 2;
+    private static final int STARTING = 3;
+    private static final int STOPPING = 4;
+
+    // Default executor for startUpAsync/shutDownAsync.
+    private static final Executor ASYNC_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "crdb-async");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private Cockroach(){}
 
@@ -102,6 +136,87 @@ public class Cockroach {
             return this;
         }
 
+        /**
+         * <p> Uses a disk store in the temporary work folder instead of the in memory store. The work folder is on a memory
+         *     file system (e.g. {@code /dev/shm}) when there is one with enough space, otherwise in {@code java.io.tmpdir}.
+         *     See {@link TmpfsPlacement}.
+         *
+         * @return The builder.
+         */
+        public Builder diskStore() {
+            cockroach.diskStore = true;
+            return this;
+        }
+
+        /**
+         * <p> Addresses ({@code host:port}, comma separated) of nodes of the cluster this node should join. By default the node starts a new cluster.
+         *
+         * @param join The addresses of the nodes to join.
+         * @return The builder.
+         */
+        public Builder join(final String join){
+            cockroach.flags.setJoin(join);
+            return this;
+        }
+
+        /**
+         * <p> The locality of the node, as comma separated key-value tiers (e.g. {@code region=us,zone=us-1}). By default is not set.
+         *
+         * @param locality The node locality.
+         * @return The builder.
+         */
+        public Builder locality(final String locality){
+            cockroach.flags.setLocality(locality);
+            return this;
+        }
+
+        /**
+         * <p> The attributes of the node, colon separated (e.g. {@code ssd:ram}). By default are not set.
+         *
+         * @param attributes The node attributes.
+         * @return The builder.
+         */
+        public Builder attributes(final String attributes){
+            cockroach.flags.setAttributes(attributes);
+            return this;
+        }
+
+        /**
+         * <p> The host the node advertises to the other nodes. By default is the host.
+         *
+         * @param advertiseHost The advertised host.
+         * @return The builder.
+         */
+        public Builder advertiseHost(final String advertiseHost){
+            cockroach.flags.setAdvertiseHost(advertiseHost);
+            return this;
+        }
+
+        /**
+         * <p> Boots the node from a copy of a store template saved via {@link Cockroach#checkpoint(String)}, instead of an empty store.
+         *     If no disk store is configured via {@link #dataFolder(String, boolean)}, the store is created in the temporary work folder.
+         *
+         * @param template The template name.
+         * @return The builder.
+         */
+        public Builder fromTemplate(final String template){
+            cockroach.template = template;
+            return this;
+        }
+
+        /**
+         * <p> Sizes {@code --cache}, {@code --max-sql-memory} and the in memory store from the memory of the host and the nodes
+         *     expected on it. By default the {@code resources.profile} property, if set, otherwise 3 MiB, 3 MiB and 640 MiB.
+         *     See {@link ResourceProfile}.
+         *
+         * @param resourceProfile The profile (e.g. {@code ResourceProfile.large().nodesPerHost(2)}).
+         * @return The builder.
+         */
+        public Builder resources(final ResourceProfile resourceProfile){
+            cockroach.resourceProfile = Objects.requireNonNull(resourceProfile, "resourceProfile cannot be null");
+            return this;
+        }
+
         /**
          * <p> Sets the http port for the UI. By default is randomly generated.
          *
@@ -201,25 +316,67 @@ public class Cockroach {
             return this;
         }
 
+        /**
+         * <p> Size (bytes) of the buffer keeping the most recent lines written by cockroach db (see {@link Cockroach#getLogs()}). By default is 256 KiB.
+         *
+         * @param logBufferSize The buffer size in bytes.
+         * @return The builder.
+         */
+        public Builder logBufferSize(final int logBufferSize){
+            cockroach.logBufferSize = logBufferSize;
+            return this;
+        }
+
+        /**
+         * <p> The executor used by {@link #startUpAsync()} and {@link #shutDownAsync()}. By default is a shared pool of daemon threads.
+         *
+         * @param executor The executor.
+         * @return The builder.
+         */
+        public Builder executor(final Executor executor){
+            cockroach.executor = Objects.requireNonNull(executor, "executor cannot be null");
+            return this;
+        }
+
+        // Package private for tests, the JVM wide scheduler by default
+        Builder scheduler(final StartupScheduler scheduler){
+            cockroach.scheduler = scheduler;
+            return this;
+        }
+
         /**
          * <p> Builds a {@link Cockroach} with the specified configuration.
+         *     It doesn't block: the binary is installed in background (if needed) and the work folder is created at the start up.
+         *     Installation errors are thrown by the start up.
          *
          * @return the {@link Cockroach} rule.
          */
         public Cockroach build(){
             setDefaultsIfNeeded();
+            cockroach.logs = new LogBuffer(cockroach.logBufferSize);
             return cockroach;
         }
 
         // Sets defaults
         private void setDefaultsIfNeeded(){
             if (cockroach.executable == null) {
-                cockroach.executable = installBinariesIfNeeded(cockroach.version);
+                final Cockroach node = cockroach;
+                node.binary = CompletableFuture.supplyAsync(() -> {
+                    final long installStart = System.nanoTime();
+                    final String installed = installBinariesIfNeeded(node.version);
+                    node.recordSince(StartupMetrics.Phase.INSTALL, installStart);
+                    return installed;
+                }, node.executor);
+            }else {
+                cockroach.binary = CompletableFuture.completedFuture(cockroach.executable);
             }
-            cockroach.workFolder = createTemporaryDataFolderIn(System.getProperty("java.io.tmpdir"));
-            cockroach.flags.setPidFile(cockroach.workFolder.resolve("pid.txt"));
-            cockroach.flags.setListeningUrlFile(cockroach.workFolder.resolve("url.txt"));
-
+            // The work folder is placed and created by the start up ( See placeWorkFolder() ), a node never started reserves nothing
+            cockroach.storeInWorkFolder = cockroach.diskStore || (cockroach.template != null && StoreTemplates.storeFolderOrNull(cockroach.flags.getStore()) == null);
+            final ResourceProfile profile = cockroach.resourceProfile != null ? cockroach.resourceProfile : ResourceProfile.fromConfigOrNull();
+            cockroach.sizing = profile != null ? profile.applyTo(cockroach.flags) : ResourceProfile.Sizing.of(cockroach.flags);
+            // Before the start up adds the work folder flags
+            cockroach.poolKey = cockroach.version + "|" + (cockroach.executable == null ? "<installed>" : cockroach.executable) + "|" + cockroach.template
+                    + "|" + (cockroach.storeInWorkFolder ? "<work folder store>" : "") + "|" + cockroach.flags.getIdentity();
         }
 
     }
@@ -239,44 +396,295 @@ public class Cockroach {
      * @return The process details like the pid, host, port and url of the cockroach db.
      */
     public ProcessDetails startUp(){
-        if (status.compareAndSet(0, 1)) {
-            final String command = executable + " start" + flags.getFlags();
-            crdb = runOrThrow(command);
-            if (redirectStdOut) {
-                new Thread(new StreamReader(crdb.getInputStream(), stdOut)).start();
-            }
-            if (redirectStdErr) {
-                new Thread(new StreamReader(crdb.getErrorStream(), stdErr)).start();
-            }
-            processDetails = waitForStartup(flags.getPidFile(), flags.getListeningUrlFile(), startupWaitTimeMs);
-            return processDetails;
+        if (status.compareAndSet(NOT_STARTED, STARTING)) {
+            return doStartUp();
         }else {
             throw new IllegalStateException("Invalid status: " + status.get());
         }
     }
 
+    /**
+     * <p> Starts up the process without blocking the caller. The process is started on the executor configured via
+     *     {@link Builder#executor(Executor)}. Like {@link #startUp()}, it can be called only once, otherwise the
+     *     returned future completes exceptionally with an {@link IllegalStateException}.
+     *
+     * @return Future completed with the process details when cockroach db is up and running.
+     */
+    public CompletableFuture<ProcessDetails> startUpAsync(){
+        if (!status.compareAndSet(NOT_STARTED, STARTING)) {
+            return failedFuture(new IllegalStateException("Invalid status: " + status.get()));
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    doStartUp();
+                }catch (RuntimeException e){
+                    // shh, the error is reported via the future.
+                }
+            });
+        }catch (RuntimeException e){
+            fail(e);
+        }
+        return started.thenApply(details -> details);
+    }
+
+    private ProcessDetails doStartUp(){
+        try {
+            final String executable = getExecutable();
+            placeWorkFolder();
+            createDataFolder(workFolder);
+            final long queueStart = System.nanoTime();
+            try (StartupScheduler.Slot slot = (scheduler != null ? scheduler : StartupScheduler.getInstance()).acquire()){
+                recordSince(StartupMetrics.Phase.QUEUE, queueStart);
+                final long bootStart = System.nanoTime();
+                if (template != null){
+                    final long restoreStart = System.nanoTime();
+                    StoreTemplates.restore(template, StoreTemplates.storeFolderOrNull(flags.getStore()));
+                    recordSince(StartupMetrics.Phase.RESTORE, restoreStart);
+                }
+                final String command = executable + " start" + flags.getFlags();
+                final long execStart = System.nanoTime();
+                crdb = runOrThrow(command);
+                recordSince(StartupMetrics.Phase.EXEC, execStart);
+                // Always drained, otherwise the process blocks once the pipe buffer is full.
+                LogPump.pump(crdb, crdb.getInputStream(), redirectStdOut ? LineSink.tee(logs, new AppendableSink(stdOut, LogPump.WRITERS)) : logs);
+                LogPump.pump(crdb, crdb.getErrorStream(), redirectStdErr ? LineSink.tee(logs, new AppendableSink(stdErr, LogPump.WRITERS)) : logs);
+                processDetails = StartupWatcher.waitForStartup(crdb, !flags.getBackground(), flags.getPidFile(), flags.getListeningUrlFile(), startupWaitTimeMs, metrics)
+                        .withResources(sizing);
+                for (StartupMetrics.Phase phase : new StartupMetrics.Phase[]{StartupMetrics.Phase.PID, StartupMetrics.Phase.URL, StartupMetrics.Phase.SOCKET}){
+                    StartupStats.getInstance().record(phase, metrics.getNanos(phase));
+                }
+                recordSince(StartupMetrics.Phase.BOOT, bootStart);
+            }
+            status.set(STARTED);
+            started.complete(processDetails);
+            return processDetails;
+        }catch (RuntimeException e){
+            fail(e);
+            throw e;
+        }
+    }
+
+    // Reserves the work folder, on a memory file system if possible, and points the process files (and the store, if in it) there.
+    private void placeWorkFolder(){
+        final TmpfsPlacement tmpfs = TmpfsPlacement.getInstance();
+        placement = tmpfs.reserveWorkFolder(storeInWorkFolder);
+        workFolder = temporaryDataFolderIn(placement.getParent().toString());
+        flags.setPidFile(workFolder.resolve("pid.txt"));
+        flags.setListeningUrlFile(workFolder.resolve("url.txt"));
+        if (storeInWorkFolder){
+            final String store = workFolder.resolve("store").toString();
+            if (placement.isMemoryBacked()){
+                // Capped to the reserved space: the memory file system is the memory of the machine
+                flags.setStore("path=" + store + ",size=" + tmpfs.getStoreReserveMb() + "MiB");
+                if (flags.getMaxDiskTempStorage() == null){
+                    // The temporary storage is in memory too
+                    flags.setMaxDiskTempStorage(tmpfs.getTempStorageMb());
+                }
+            }else {
+                flags.setStore(store);
+            }
+        }
+    }
+
+    // The start up failed: the process (if any) is killed and the status moves to stopped.
+    private void fail(final RuntimeException e){
+        try {
+            if (crdb != null) {
+                crdb.destroyForcibly();
+            }
+            if (cleanUpDataFolder && workFolder != null) {
+                Reaper.getInstance().reap(workFolder);
+            }
+        }finally {
+            releasePlacement();
+            status.set(STOPPED);
+            started.completeExceptionally(e);
+        }
+    }
+
     /**
      * <p> Shuts down the process. It must be called after the {@link #startUp} otherwise it will throw an {@link IllegalStateException}.
+     *     If the process is still starting up (see {@link #startUpAsync()}) it waits for the start up to finish first.
      */
     public void shutDown(){
-        if (status.compareAndSet(1, 2)) {
+        if (status.get() == STARTING){
+            try {
+                started.join();
+            }catch (Exception e){
+                throw new IllegalStateException("Invalid status. The process failed to start up", e);
+            }
+        }
+        if (status.compareAndSet(STARTED, STOPPING)) {
+            doShutDown();
+        }else {
+            throw new IllegalStateException("Invalid status. Status: " + status.get());
+        }
+    }
+
+    /**
+     * <p> Shuts down the process without blocking the caller. The process is stopped and the data folder deleted on the
+     *     executor configured via {@link Builder#executor(Executor)}.
+     *     If the process is still starting up, the shut down happens as soon as the start up is finished.
+     *     It must be called after {@link #startUp} or {@link #startUpAsync()}, otherwise the returned future completes
+     *     exceptionally with an {@link IllegalStateException}.
+     *
+     * @return Future completed when the process is stopped and the resources cleaned up.
+     */
+    public CompletableFuture<Void> shutDownAsync(){
+        final int current = status.get();
+        if (current != STARTING && current != STARTED){
+            return failedFuture(new IllegalStateException("Invalid status. Status: " + current));
+        }
+        return started.handle((details, error) -> error).thenAcceptAsync(error -> {
+            if (error == null){
+                shutDown();
+            }
+        }, executor);
+    }
+
+    private void doShutDown(){
+        try {
             if (crdb == null){
                 return;
             }
             try {
+                final long shutDownStart = System.nanoTime();
                 killProcessOrThrow();
+                recordSince(StartupMetrics.Phase.SHUTDOWN, shutDownStart);
             }catch (Exception e){
                 throw new IllegalStateException("failed to shut down cockroach db process. Pid: " + processDetails.pid + ", Url: " + processDetails.url, e);
             }finally {
                 if (cleanUpDataFolder) {
-                    recursiveDelete(workFolder);
+                    final long cleanUpStart = System.nanoTime();
+                    Reaper.getInstance().reap(workFolder);
+                    recordSince(StartupMetrics.Phase.CLEANUP, cleanUpStart);
                 }
             }
-        }else {
-            throw new IllegalStateException("Invalid status. Status: " + status.get());
+        }finally {
+            releasePlacement();
+            status.set(STOPPED);
+        }
+    }
+
+    private void releasePlacement(){
+        if (placement != null){
+            placement.release();
+        }
+    }
+
+    /**
+     * <p> Returns the most recent lines written by cockroach db (std out and std err), also after the shut down.
+     *     Useful to make assertions on the logs or to print them when a test fails.
+     *
+     * @return The log buffer.
+     */
+    public LogBuffer getLogs(){
+        return logs;
+    }
+
+    /**
+     * <p> Returns the duration of the start up and shut down phases of this node.
+     *
+     * @return The metrics.
+     */
+    public StartupMetrics getStartupMetrics(){
+        return metrics;
+    }
+
+    // Records the phase on this node metrics and on the JVM wide stats.
+    private void recordSince(final StartupMetrics.Phase phase, final long startNanos){
+        final long nanos = System.nanoTime() - startNanos;
+        metrics.record(phase, nanos);
+        StartupStats.getInstance().record(phase, nanos);
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(final Throwable error){
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * <p> Saves the disk store of this node as a named template, so that other nodes can boot from it (see {@link Builder#fromTemplate(String)}).
+     *     It must be called after {@link #shutDown()}, on a disk store configured via {@link Builder#dataFolder(String, boolean)}
+     *     (stores in the temporary work folder are deleted on shut down).
+     *
+     * @param name The template name.
+     */
+    public void checkpoint(final String name){
+        if (status.get() != STOPPED){
+            throw new IllegalStateException("Invalid status. The node must be stopped. Status: " + status.get());
+        }
+        final Path store = StoreTemplates.storeFolderOrNull(flags.getStore());
+        if (store == null){
+            throw new IllegalStateException("Only disk stores can be saved as templates. Store: " + flags.getStore());
+        }
+        StoreTemplates.checkpoint(store, name);
+    }
+
+    /**
+     * <p> Returns the binary, waiting for its installation if needed.
+     *
+     * @return The binary path.
+     */
+    String getExecutable(){
+        try {
+            return binary.join();
+        }catch (CompletionException e){
+            // The installation error, as if the binary was installed by this thread
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to install the cockroach db binary " + version, e.getCause());
         }
     }
 
+    Flags getFlags(){
+        return flags;
+    }
+
+    ResourceProfile.Sizing getSizing(){
+        return sizing;
+    }
+
+    int getStartupWaitTimeMs(){
+        return startupWaitTimeMs;
+    }
+
+    String getTemplate(){
+        return template;
+    }
+
+    /**
+     * <p> Returns whether the disk store is created in the temporary work folder, see {@link Builder#diskStore()}.
+     *
+     * @return {@code true} if the store is in the work folder.
+     */
+    boolean isStoreInWorkFolder(){
+        return storeInWorkFolder;
+    }
+
+    /**
+     * <p> Returns the key that identifies this process configuration (version, executable, template and flags).
+     *     Used by the {@link CockroachPool} to decide if a running process can be shared.
+     *     It doesn't wait for the installation: the installed binary only depends on the version.
+     *     It is computed by the builder, so the flags of the work folder (random, set by the start up) are not part of it.
+     *
+     * @return The pool key.
+     */
+    String getPoolKey(){
+        return poolKey;
+    }
+
+    /**
+     * <p> Discards a process that has never been started. It has no work folder to clean up.
+     *     Used by the {@link CockroachPool} when a running process with the same configuration is leased instead.
+     */
+    void discard(){
+        status.compareAndSet(NOT_STARTED, STOPPED);
+    }
+
     private void killProcessOrThrow() throws Exception {
         crdb.destroyForcibly();
         boolean exited = crdb.waitFor(shutDownWaitingTimeMs, TimeUnit.MILLISECONDS);
@@ -298,35 +706,4 @@ public class Cockroach {
             throw new IllegalStateException("Failed to start the process " + command, e);
         }
     }
-
-    /**
-     * <p> {@link Runnable} that consumes a stream and pipes the data to an {@link Appendable}.
-     *     Used to output the std out and err of the cockroach process to a different place.
-     * <p> Each line will be prefixed with 'crdb>'.
-     */
-    private static class StreamReader implements Runnable {
-
-        private static final String PREFIX = "crdb> ";
-        private final BufferedReader in;
-        private final Appendable out;
-
-        private StreamReader(final InputStream in, final Appendable out) {
-            this.in = new BufferedReader(new InputStreamReader(in));
-            this.out = out;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    final String line = in.readLine();
-                    if (line != null) {
-                        out.append(PREFIX).append(line).append("\n");
-                    }
-                } catch (Exception e) {
-                    break;
-                }
-            }
-        }
-    }
 }
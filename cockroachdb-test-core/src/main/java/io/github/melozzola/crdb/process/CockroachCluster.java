@@ -0,0 +1,424 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * <p> Local multi node cockroach db cluster. This class is responsible for
+ * <ul>
+ *     <li>Configuring the nodes: the first node bootstraps the cluster, the others join it. Each node gets its own locality. See {@link Builder}.</li>
+ *     <li>Starting all the nodes in parallel and waiting for the cluster to be formed and known by every node. ( See {@link #startUp()} )</li>
+ *     <li>Shutting down all the nodes in parallel. ( See {@link #shutDown()} )</li>
+ * </ul>
+ * <p> The port of the first node is reserved upfront and passed to the other nodes via {@code --join}. The first node is started
+ *     before the others: the nodes joining the cluster can't finish booting until it is up, and they would hold the boot slots
+ *     of the {@link StartupScheduler} it waits for.
+ */
+public class CockroachCluster {
+
+    private int nodes = 3;
+    private String version = "v1.1.7";
+    private String executable;
+    private String host = "localhost";
+    private IntFunction<String> locality = node -> "region=local,zone=zone-" + (node + 1);
+    private int startupWaitTimeMs = 30000;// 30 secs
+    private int shutDownWaitingTimeMs = 10000;// 10 secs
+    private boolean redirectStdOut = false;
+    private boolean redirectStdErr = false;
+    private Executor executor;
+    private StartupScheduler scheduler;
+
+    private final List<Cockroach> cockroaches = new ArrayList<>();
+    private final AtomicInteger status = new AtomicInteger(0); //0=not started, 1=started, 2=stopped
+
+    private CockroachCluster(){}
+
+    public static class Builder {
+
+        private CockroachCluster cluster = new CockroachCluster();
+
+        /**
+         * <p> The number of nodes of the cluster. By default is 3.
+         *
+         * @param nodes The number of nodes.
+         * @return The builder.
+         */
+        public Builder nodes(final int nodes){
+            if (nodes < 1){
+                throw new IllegalArgumentException("A cluster needs at least one node");
+            }
+            cluster.nodes = nodes;
+            return this;
+        }
+
+        /**
+         * <p> What cockroach db version to use. By default is 1.1.7.
+         *
+         * @param version The version to use
+         * @return The builder.
+         */
+        public Builder version(final String version){
+            cluster.version = version;
+            return this;
+        }
+
+        /**
+         * <p> Sets the executable location. By default the executable is downloaded into a temporary folder.
+         *
+         * @param executable The path to the executable.
+         * @return The builder.
+         */
+        public Builder executable(final String executable){
+            cluster.executable = executable;
+            return this;
+        }
+
+        /**
+         * <p> Specifies the host of all the nodes. By default is 'localhost'.
+         *
+         * @param host The cockroach db host
+         * @return The builder.
+         */
+        public Builder host(final String host){
+            cluster.host = host;
+            return this;
+        }
+
+        /**
+         * <p> Function from the node index (starting from 0) to the node locality. By default is {@code region=local,zone=zone-<index+1>}.
+         *
+         * @param locality The locality function.
+         * @return The builder.
+         */
+        public Builder locality(final IntFunction<String> locality){
+            cluster.locality = locality;
+            return this;
+        }
+
+        /**
+         * <p> How long (milliseconds) to wait for the cluster to start up and form. By default is 30 seconds.
+         *
+         * @param startupWaitTimeMs How many milliseconds to wait.
+         * @return The builder.
+         */
+        public Builder startupWaitTime(final int startupWaitTimeMs) {
+            cluster.startupWaitTimeMs = startupWaitTimeMs;
+            return this;
+        }
+
+        /**
+         * <p> How long (milliseconds) to wait for each node to stop. By default is 10 seconds.
+         *
+         * @param shutDownWaitingTimeMs How many milliseconds to wait.
+         * @return The builder.
+         */
+        public Builder shutDownWaitingTime(final int shutDownWaitingTimeMs) {
+            cluster.shutDownWaitingTimeMs = shutDownWaitingTimeMs;
+            return this;
+        }
+
+        /**
+         * <p> Enables the std out redirection of all the nodes to {@code System.out}.
+         *
+         * @return The builder.
+         */
+        public Builder redirectStdOut(){
+            cluster.redirectStdOut = true;
+            return this;
+        }
+
+        /**
+         * <p> Enables the std err redirection of all the nodes to {@code System.err}.
+         *
+         * @return The builder.
+         */
+        public Builder redirectStdErr(){
+            cluster.redirectStdErr = true;
+            return this;
+        }
+
+        /**
+         * <p> The executor used to start and stop the nodes. By default is the {@link Cockroach} default executor.
+         *
+         * @param executor The executor.
+         * @return The builder.
+         */
+        public Builder executor(final Executor executor){
+            cluster.executor = executor;
+            return this;
+        }
+
+        // Package private for tests, the JVM wide scheduler by default
+        Builder scheduler(final StartupScheduler scheduler){
+            cluster.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * <p> Builds a {@link CockroachCluster} with the specified configuration.
+         *     It doesn't block: the binary is installed (if needed) when the nodes are built, see {@link Cockroach.Builder#build()}.
+         *
+         * @return the {@link CockroachCluster}.
+         */
+        public CockroachCluster build(){
+            return cluster;
+        }
+    }
+
+    /**
+     * <p> Static method that returns a builder that allows to configure the cluster.
+     *
+     * @return The builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * <p> Starts up the first node, then all the other nodes in parallel, and waits until every node accepts connections, all the nodes joined the cluster
+     *     and every node sees all the others via gossip ({@code crdb_internal.gossip_nodes}).
+     *     This method can be called only once otherwise it will throw an {@link IllegalStateException}.
+     *
+     * @return The process details of the nodes. The first one is the node that bootstrapped the cluster.
+     */
+    public List<ProcessDetails> startUp(){
+        if (!status.compareAndSet(0, 1)) {
+            throw new IllegalStateException("Invalid status: " + status.get());
+        }
+
+        final long start = System.nanoTime();
+        final int firstPort = reservePort();
+        final String join = host + ":" + firstPort;
+        for (int node = 0; node < nodes; node++){
+            final Cockroach.Builder builder = Cockroach.builder()
+                    .executable(executable)
+                    .version(version)
+                    .host(host)
+                    .locality(locality.apply(node))
+                    .startupWaitTime(startupWaitTimeMs)
+                    .shutDownWaitingTime(shutDownWaitingTimeMs);
+            if (node == 0){
+                builder.port(firstPort);
+            }else {
+                builder.join(join);
+            }
+            if (redirectStdOut){
+                builder.redirectStdOut();
+            }
+            if (redirectStdErr){
+                builder.redirectStdErr();
+            }
+            if (executor != null){
+                builder.executor(executor);
+            }
+            if (scheduler != null){
+                builder.scheduler(scheduler);
+            }
+            cockroaches.add(builder.build());
+        }
+
+        final List<ProcessDetails> details = new ArrayList<>();
+        try {
+            details.add(cockroaches.get(0).startUpAsync().join());
+            final List<CompletableFuture<ProcessDetails>> startUps = new ArrayList<>();
+            for (Cockroach cockroach : cockroaches.subList(1, cockroaches.size())){
+                startUps.add(cockroach.startUpAsync());
+            }
+            for (CompletableFuture<ProcessDetails> startUp : startUps){
+                details.add(startUp.join());
+            }
+            // The queue time for the boot slots doesn't count: the first node's, then the longest of the others
+            long queueNanos = queueNanos(details.get(0));
+            long joinersQueueNanos = 0;
+            for (ProcessDetails node : details.subList(1, details.size())){
+                joinersQueueNanos = Math.max(joinersQueueNanos, queueNanos(node));
+            }
+            queueNanos += joinersQueueNanos;
+            final long remainingMs = startupWaitTimeMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start - queueNanos);
+            waitForClusterOrThrow(details, remainingMs);
+        }catch (RuntimeException e){
+            shutDownQuietly();
+            throw new IllegalStateException("Failed to start up the cockroach db cluster", unwrap(e));
+        }
+        return Collections.unmodifiableList(details);
+    }
+
+    /**
+     * <p> Shuts down all the nodes in parallel. It must be called after the {@link #startUp} otherwise it will throw an {@link IllegalStateException}.
+     */
+    public void shutDown(){
+        if (!status.compareAndSet(1, 2)) {
+            throw new IllegalStateException("Invalid status. Status: " + status.get());
+        }
+        final List<CompletableFuture<Void>> shutDowns = new ArrayList<>();
+        for (Cockroach cockroach : cockroaches){
+            shutDowns.add(cockroach.shutDownAsync());
+        }
+        RuntimeException failure = null;
+        for (CompletableFuture<Void> shutDown : shutDowns){
+            try {
+                shutDown.join();
+            }catch (RuntimeException e){
+                failure = new IllegalStateException("Failed to shut down the cockroach db cluster", unwrap(e));
+            }
+        }
+        if (failure != null){
+            throw failure;
+        }
+    }
+
+    /**
+     * <p> Returns the nodes of the cluster. Empty until {@link #startUp()} is called.
+     *
+     * @return The nodes.
+     */
+    public List<Cockroach> getNodes(){
+        return Collections.unmodifiableList(cockroaches);
+    }
+
+    private void shutDownQuietly(){
+        status.set(2);
+        for (Cockroach cockroach : cockroaches){
+            try {
+                cockroach.shutDownAsync().join();
+            }catch (RuntimeException e){
+                // shh, the node failed to start up.
+            }
+        }
+    }
+
+    // Waits until all the nodes are listed by 'cockroach node ls', then until every node sees all the nodes via gossip.
+    private void waitForClusterOrThrow(final List<ProcessDetails> details, final long maxWaitTimeMs){
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(maxWaitTimeMs, 0));
+        long pollMs = 50;
+        int joined = 0;
+        int node = 0;
+        while (true){
+            if (joined < nodes){
+                joined = countNodes(cockroaches.get(0), details.get(0));
+            }
+            // Gossip spreads asynchronously, the nodes are checked one after the other
+            while (joined >= nodes && node < nodes && countGossipNodes(cockroaches.get(node), details.get(node)) >= nodes){
+                node++;
+            }
+            if (node >= nodes){
+                return;
+            }
+            if (System.nanoTime() > deadline){
+                throw new IllegalStateException(joined < nodes
+                        ? "Timeout while waiting for the cluster to form. Joined " + joined + " of " + nodes + " nodes"
+                        : "Timeout while waiting for the gossip of node " + (node + 1) + " to see all the " + nodes + " nodes");
+            }
+            try {
+                Thread.sleep(pollMs);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the cluster to form", e);
+            }
+            pollMs = Math.min(pollMs * 2, 500);
+        }
+    }
+
+    private static int countNodes(final Cockroach node, final ProcessDetails details){
+        int count = 0;
+        for (String line : run(node, details, "node", "ls")){
+            // Node ids, either one per line or in a table: '|  1 |'
+            if (line.replace("|", "").trim().matches("^\\d+$")){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int countGossipNodes(final Cockroach node, final ProcessDetails details){
+        for (String line : run(node, details, "sql", "-e", "SELECT count(*) FROM crdb_internal.gossip_nodes")){
+            // The count, either alone on its line or in a table: '|  3 |'
+            final String value = line.replace("|", "").trim();
+            if (value.matches("^\\d+$")){
+                return Integer.parseInt(value);
+            }
+        }
+        return 0;
+    }
+
+    // Runs a client command against a node, returning its output lines. Empty if it fails.
+    private static List<String> run(final Cockroach node, final ProcessDetails details, final String... arguments){
+        final Flags flags = node.getFlags();
+        final List<String> command = new ArrayList<>();
+        command.add(node.getExecutable());
+        command.addAll(Arrays.asList(arguments));
+        command.add("--host=" + details.getHost());
+        command.add("--port=" + details.getPort());
+        if (flags.getInsecure()){
+            command.add("--insecure");
+        }
+        if (flags.getCertsDir() != null){
+            command.add("--certs-dir=" + flags.getCertsDir());
+        }
+
+        final Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        }catch (Exception e){
+            throw new IllegalStateException("Failed to start the process " + command, e);
+        }
+        final List<String> lines = new ArrayList<>();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))){
+            String line;
+            while ((line = out.readLine()) != null){
+                lines.add(line);
+            }
+            process.waitFor(5, TimeUnit.SECONDS);
+        }catch (Exception e){
+            return Collections.emptyList();
+        }finally {
+            process.destroyForcibly();
+        }
+        return lines;
+    }
+
+    private static long queueNanos(final ProcessDetails details){
+        return details.getStartupMetrics() == null ? 0 : Math.max(details.getStartupMetrics().getNanos(StartupMetrics.Phase.QUEUE), 0);
+    }
+
+    private static int reservePort(){
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())){
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        }catch (Exception e){
+            throw new IllegalStateException("Unable to reserve a port for the cockroach db cluster", e);
+        }
+    }
+
+    private static Throwable unwrap(final Throwable e){
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.installer.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p> JVM wide pool of running cockroach db processes.
+ * <p> Processes are keyed by their configuration (version, executable and flags, see {@link Cockroach#getPoolKey()}).
+ *     The first {@link #lease(Cockroach)} starts the process, the following ones with the same configuration get the
+ *     already running process. A reference count keeps the process alive while there are open leases.
+ *     When the last lease is closed the process is shut down after an idle time to live, unless it is leased again.
+ *     Processes still running when the JVM exits are shut down by a shutdown hook.
+ * <p> The idle time to live (milliseconds) is configured via the {@code pool.idle.ttl.ms} property. See {@link Config}.
+ */
+public class CockroachPool {
+
+    private static final String IDLE_TTL_PROPERTY = "pool.idle.ttl.ms";
+    private static final long DEFAULT_IDLE_TTL_MS = 30000;// 30 secs
+
+    private static volatile CockroachPool instance = null;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final long idleTtlMs;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * <p> A lease on a running cockroach db process. Closing the lease releases the reference on the process.
+     */
+    public static class Lease implements AutoCloseable {
+
+        private final CockroachPool pool;
+        private final Entry entry;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Lease(final CockroachPool pool, final Entry entry) {
+            this.pool = pool;
+            this.entry = entry;
+        }
+
+        /**
+         * <p> Returns the details of the leased process.
+         *
+         * @return The process details like the pid, host, port and url of the cockroach db.
+         */
+        public ProcessDetails getProcessDetails(){
+            return entry.started.join();
+        }
+
+        /**
+         * <p> Returns the most recent lines written by the leased process. The process is shared, so the lines can come from other leases.
+         *
+         * @return The log buffer.
+         */
+        public LogBuffer getLogs(){
+            return entry.cockroach.getLogs();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                pool.release(entry);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final Cockroach cockroach;
+        private final CompletableFuture<ProcessDetails> started = new CompletableFuture<>();
+        private int references = 0;
+        private ScheduledFuture<?> idleShutDown;
+
+        private Entry(final String key, final Cockroach cockroach) {
+            this.key = key;
+            this.cockroach = cockroach;
+        }
+    }
+
+    /**
+     * <p> Returns the JVM wide pool.
+     *
+     * @return The pool.
+     */
+    public static CockroachPool getInstance(){
+        if (instance == null){
+            synchronized (CockroachPool.class){
+                if (instance == null){
+                    final CockroachPool pool = new CockroachPool(readIdleTtlMs());
+                    Runtime.getRuntime().addShutdownHook(new Thread(pool::close, "crdb-pool-shutdown"));
+                    instance = pool;
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Package private for tests, use getInstance()
+    CockroachPool(final long idleTtlMs) {
+        this.idleTtlMs = idleTtlMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "crdb-pool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * <p> Leases a running process with the same configuration of the given {@link Cockroach}.
+     *     If no such process is running, the given {@link Cockroach} is started and added to the pool, otherwise it is discarded.
+     *     The given {@link Cockroach} must not be started already.
+     *
+     * @param cockroach The process configuration.
+     * @return The lease. It must be closed when the process is not needed anymore.
+     */
+    public Lease lease(final Cockroach cockroach){
+        final String key = cockroach.getPoolKey();
+        final Entry entry;
+        final boolean owner;
+        synchronized (this){
+            final Entry existing = entries.get(key);
+            if (existing == null){
+                entry = new Entry(key, cockroach);
+                entries.put(key, entry);
+                owner = true;
+            }else {
+                entry = existing;
+                owner = false;
+            }
+            entry.references++;
+            if (entry.idleShutDown != null){
+                entry.idleShutDown.cancel(false);
+                entry.idleShutDown = null;
+            }
+        }
+
+        if (owner){
+            try {
+                entry.started.complete(cockroach.startUp());
+            }catch (RuntimeException e){
+                synchronized (this){
+                    entries.remove(key, entry);
+                }
+                entry.started.completeExceptionally(e);
+                throw e;
+            }
+        }else {
+            cockroach.discard();
+        }
+
+        final Lease lease = new Lease(this, entry);
+        try {
+            entry.started.join();
+        }catch (RuntimeException e){
+            throw new IllegalStateException("The pooled cockroach db process failed to start up", e);
+        }
+        return lease;
+    }
+
+    private void release(final Entry entry){
+        synchronized (this){
+            entry.references--;
+            if (entry.references > 0 || entries.get(entry.key) != entry){
+                return;
+            }
+            if (idleTtlMs > 0) {
+                entry.idleShutDown = scheduler.schedule(() -> shutDownIfIdle(entry), idleTtlMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+            entries.remove(entry.key);
+        }
+        shutDown(entry);
+    }
+
+    private void shutDownIfIdle(final Entry entry){
+        synchronized (this){
+            if (entry.references > 0 || !entries.remove(entry.key, entry)){
+                return;
+            }
+        }
+        shutDown(entry);
+    }
+
+    /**
+     * <p> Shuts down all the pooled processes, regardless of the open leases.
+     */
+    public void shutDownAll(){
+        final List<Entry> toShutDown;
+        synchronized (this){
+            toShutDown = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        for (Entry entry : toShutDown){
+            shutDown(entry);
+        }
+    }
+
+    /**
+     * <p> Shuts down all the pooled processes and stops the idle time to live scheduler.
+     *     Called by a JVM shutdown hook on the JVM wide pool.
+     */
+    public void close(){
+        scheduler.shutdownNow();
+        shutDownAll();
+    }
+
+    private static void shutDown(final Entry entry){
+        if (entry.started.isCompletedExceptionally() || !entry.started.isDone()){
+            return;
+        }
+        try {
+            entry.cockroach.shutDown();
+        }catch (Exception e){
+            // shh, nothing else we can do.
+        }
+    }
+
+    private static long readIdleTtlMs(){
+        final String ttl = Config.getInstance().get(IDLE_TTL_PROPERTY);
+        if (ttl == null || "".equals(ttl.trim())){
+            return DEFAULT_IDLE_TTL_MS;
+        }
+        try {
+            return Long.parseLong(ttl.trim());
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + IDLE_TTL_PROPERTY + ": " + ttl, e);
+        }
+    }
+}
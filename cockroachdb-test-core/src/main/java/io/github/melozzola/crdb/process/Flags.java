@@ -77,6 +77,20 @@ public class Flags {
     private String store = "type=mem,size=640MiB";
 
     public String getFlags(){
+        return getFlags(true);
+    }
+
+    /**
+     * <p> Returns the flags that identify the node configuration, leaving out the per-process files
+     *     (pid file and listening url file). Two processes with the same identity are interchangeable.
+     *
+     * @return The identity flags.
+     */
+    String getIdentity(){
+        return getFlags(false);
+    }
+
+    private String getFlags(final boolean includeProcessFiles){
         final StringBuilder flags = new StringBuilder();
         if (advertiseHost != null){
             flags.append(" --advertise-host=").append(advertiseHost);
@@ -111,7 +125,7 @@ public class Flags {
         if (insecure){
             flags.append(" --insecure");
         }
-        if (listeningUrlFile != null){
+        if (includeProcessFiles && listeningUrlFile != null){
             flags.append(" --listening-url-file=").append(listeningUrlFile.toAbsolutePath().toString());
         }
         if (maxDiskTempStorage != null){
@@ -123,7 +137,7 @@ public class Flags {
         if (maxSqlMemory != null){
             flags.append(" --max-sql-memory=").append(maxSqlMemory).append("MiB");
         }
-        if (pidFile != null){
+        if (includeProcessFiles && pidFile != null){
             flags.append(" --pid-file=").append(pidFile.toAbsolutePath().toString());
         }
         if (port != null){
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+/**
+ * <p> Destination of the lines pumped out of a cockroach db process by the {@link LogPump}.
+ * <p> Implementations must not block for long: they are called by the threads reading the process output.
+ */
+interface LineSink {
+
+    /**
+     * <p> Sink that drops everything. Used to keep the process output drained when it's not redirected.
+     */
+    LineSink DISCARD = new LineSink() {
+        @Override
+        public void line(final byte[] buffer, final int offset, final int length) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * <p> Receives a line, without the line terminator. The buffer is reused after the call returns.
+     *
+     * @param buffer The buffer containing the line.
+     * @param offset The line offset.
+     * @param length The line length.
+     */
+    void line(byte[] buffer, int offset, int length);
+
+    /**
+     * <p> Called once the end of the stream is reached.
+     */
+    void close();
+
+    /**
+     * <p> Returns a sink writing every line to both the sinks.
+     *
+     * @param first The first sink.
+     * @param second The second sink.
+     * @return The sink.
+     */
+    static LineSink tee(final LineSink first, final LineSink second){
+        return new LineSink() {
+            @Override
+            public void line(final byte[] buffer, final int offset, final int length) {
+                first.line(buffer, offset, length);
+                second.line(buffer, offset, length);
+            }
+
+            @Override
+            public void close() {
+                first.close();
+                second.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p> Fixed size ring buffer with the most recent lines written by a cockroach db process (std out and std err).
+ * <p> The lines are stored in a single byte array, each one as its length (4 bytes) followed by its bytes.
+ *     When the buffer is full the oldest lines are evicted, so appending a line doesn't allocate.
+ * <p> It is thread safe.
+ */
+public class LogBuffer implements LineSink {
+
+    private static final int HEADER = 4;
+
+    private final byte[] arena;
+    private int head = 0;// offset of the oldest line
+    private int used = 0;// bytes used
+    private int lines = 0;// lines in the buffer
+    private long total = 0;// lines ever written
+
+    /**
+     * <p> Creates a log buffer.
+     *
+     * @param capacity The buffer size in bytes.
+     */
+    public LogBuffer(final int capacity) {
+        if (capacity <= HEADER){
+            throw new IllegalArgumentException("Invalid log buffer capacity: " + capacity);
+        }
+        this.arena = new byte[capacity];
+    }
+
+    @Override
+    public synchronized void line(final byte[] buffer, final int offset, final int length) {
+        final int size = Math.min(length, arena.length - HEADER);
+        while (arena.length - used < HEADER + size){
+            evictOldest();
+        }
+        final int tail = (head + used) % arena.length;
+        writeInt(tail, size);
+        write((tail + HEADER) % arena.length, buffer, offset, size);
+        used += HEADER + size;
+        lines++;
+        total++;
+    }
+
+    @Override
+    public void close() {
+        // Keeps the lines after the end of the stream.
+    }
+
+    /**
+     * <p> Returns the most recent lines, oldest first.
+     *
+     * @param maxLines The maximum number of lines to return.
+     * @return The lines.
+     */
+    public synchronized List<String> tail(final int maxLines){
+        final int skip = Math.max(lines - maxLines, 0);
+        final List<String> result = new ArrayList<>(lines - skip);
+        int position = head;
+        for (int i = 0; i < lines; i++){
+            final int length = readInt(position);
+            if (i >= skip){
+                result.add(readString((position + HEADER) % arena.length, length));
+            }
+            position = (position + HEADER + length) % arena.length;
+        }
+        return result;
+    }
+
+    /**
+     * <p> Returns all the lines in the buffer, oldest first.
+     *
+     * @return The lines.
+     */
+    public List<String> lines(){
+        return tail(Integer.MAX_VALUE);
+    }
+
+    /**
+     * <p> Checks if a line in the buffer contains the given text.
+     *
+     * @param text The text to look for.
+     * @return {@code true} if found.
+     */
+    public boolean contains(final String text){
+        for (String line : lines()){
+            if (line.contains(text)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p> Writes all the lines in the buffer to an {@link Appendable}, each one prefixed with 'crdb> '.
+     *
+     * @param out Where to write the lines.
+     */
+    public void dump(final Appendable out){
+        final List<String> snapshot;
+        final long evicted;
+        synchronized (this){
+            snapshot = lines();
+            evicted = total - lines;
+        }
+        final StringBuilder text = new StringBuilder();
+        if (evicted > 0){
+            text.append("crdb> [").append(evicted).append(" older lines not kept]\n");
+        }
+        for (String line : snapshot){
+            text.append("crdb> ").append(line).append('\n');
+        }
+        try {
+            out.append(text);
+        }catch (IOException e){
+            // shh
+        }
+    }
+
+    /**
+     * <p> Removes all the lines.
+     */
+    public synchronized void clear(){
+        head = 0;
+        used = 0;
+        lines = 0;
+        total = 0;
+    }
+
+    /**
+     * <p> Returns the number of lines written since the creation (or the last {@link #clear()}), including the evicted ones.
+     *
+     * @return The number of lines.
+     */
+    public synchronized long getTotalLines(){
+        return total;
+    }
+
+    private void evictOldest(){
+        final int length = readInt(head);
+        head = (head + HEADER + length) % arena.length;
+        used -= HEADER + length;
+        lines--;
+    }
+
+    private void write(final int position, final byte[] buffer, final int offset, final int length){
+        final int first = Math.min(length, arena.length - position);
+        System.arraycopy(buffer, offset, arena, position, first);
+        System.arraycopy(buffer, offset + first, arena, 0, length - first);
+    }
+
+    private void writeInt(final int position, final int value){
+        for (int i = 0; i < HEADER; i++){
+            arena[(position + i) % arena.length] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+
+    private int readInt(final int position){
+        int value = 0;
+        for (int i = 0; i < HEADER; i++){
+            value = (value << 8) | (arena[(position + i) % arena.length] & 0xFF);
+        }
+        return value;
+    }
+
+    private String readString(final int position, final int length){
+        final int first = Math.min(length, arena.length - position);
+        if (first == length){
+            return new String(arena, position, length, StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = new byte[length];
+        System.arraycopy(arena, position, bytes, 0, first);
+        System.arraycopy(arena, 0, bytes, first, length - first);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p> Pumps the std out and std err of the cockroach db processes into {@link LineSink}s, splitting the output in lines.
+ * <p> All the processes share the same threads:
+ * <ul>
+ *     <li>When the runtime supports virtual threads (java 21+) each stream is read by a virtual thread with blocking reads.</li>
+ *     <li>Otherwise a single platform thread polls all the streams, reading only the available bytes.
+ *         The polling interval adapts from 1 ms, when there is output, up to {@value #MAX_POLL_MS} ms.
+ *         Once the process is gone the rest of its stream is drained by a thread of its own: a descendant (e.g. a
+ *         {@code --background} node) can keep the pipe open, and the blocking reads must not stall the other streams.</li>
+ * </ul>
+ * <p> A stream is pumped until the end of stream, then its sink is closed.
+ *     Lines longer than {@value #MAX_LINE} bytes are split, on a UTF-8 character boundary.
+ */
+final class LogPump {
+
+    private static final int MAX_LINE = 8192;
+    private static final long MAX_POLL_MS = 50;
+
+    private static final ExecutorService VIRTUAL_THREADS = virtualThreadsOrNull();
+    private static final ConcurrentLinkedQueue<Stream> POLLED = new ConcurrentLinkedQueue<>();
+    private static final Object POLLER_LOCK = new Object();
+    private static Thread poller;
+
+    // Executor writing the lines to slow sinks (see AppendableSink)
+    static final ExecutorService WRITERS = VIRTUAL_THREADS != null ? VIRTUAL_THREADS : Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "crdb-log-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LogPump(){}
+
+    /**
+     * <p> Starts pumping a process stream into a sink.
+     *
+     * @param process The process. Used to detect the end of the stream without blocking.
+     * @param in The process stream (std out or std err).
+     * @param sink The sink.
+     */
+    static void pump(final Process process, final InputStream in, final LineSink sink){
+        final Stream stream = new Stream(process, in, sink);
+        if (VIRTUAL_THREADS != null){
+            VIRTUAL_THREADS.execute(stream::readUntilEnd);
+            return;
+        }
+        POLLED.add(stream);
+        synchronized (POLLER_LOCK){
+            if (poller == null || !poller.isAlive()){
+                poller = new Thread(LogPump::poll, "crdb-log-pump");
+                poller.setDaemon(true);
+                poller.start();
+            }
+        }
+    }
+
+    private static void poll(){
+        long pollMs = 1;
+        while (true){
+            boolean read = false;
+            final Iterator<Stream> streams = POLLED.iterator();
+            while (streams.hasNext()){
+                final Stream stream = streams.next();
+                read |= stream.readAvailable();
+                if (stream.done || stream.draining){
+                    streams.remove();
+                }
+            }
+
+            synchronized (POLLER_LOCK){
+                if (POLLED.isEmpty()){
+                    poller = null;
+                    return;
+                }
+            }
+
+            pollMs = read ? 1 : Math.min(pollMs * 2, MAX_POLL_MS);
+            try {
+                Thread.sleep(pollMs);
+            }catch (InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    private static final class Stream {
+
+        private final Process process;
+        private final InputStream in;
+        private final LineSink sink;
+        private final byte[] buffer = new byte[MAX_LINE];
+        private int length = 0;
+        private volatile boolean done = false;
+        // Handed over to a drain thread
+        private boolean draining = false;
+
+        private Stream(final Process process, final InputStream in, final LineSink sink) {
+            this.process = process;
+            this.in = in;
+            this.sink = sink;
+        }
+
+        // Blocking reads, until the end of the stream.
+        private void readUntilEnd(){
+            try {
+                int read;
+                while ((read = in.read(buffer, length, buffer.length - length)) != -1){
+                    split(read);
+                }
+            }catch (IOException e){
+                // Stream closed
+            }
+            finish();
+        }
+
+        // Non blocking read. Returns true if something was read.
+        private boolean readAvailable(){
+            try {
+                final int available = in.available();
+                if (available > 0){
+                    final int read = in.read(buffer, length, Math.min(available, buffer.length - length));
+                    if (read == -1){
+                        finish();
+                        return false;
+                    }
+                    split(read);
+                    return true;
+                }
+                if (!process.isAlive()){
+                    // The process is gone, but the pipe can still be held open by a descendant
+                    draining = true;
+                    final Thread drain = new Thread(this::readUntilEnd, "crdb-log-drain");
+                    drain.setDaemon(true);
+                    drain.start();
+                }
+                return false;
+            }catch (IOException e){
+                finish();
+                return false;
+            }
+        }
+
+        private void split(final int read){
+            final int end = length + read;
+            int start = 0;
+            for (int i = length; i < end; i++){
+                if (buffer[i] == '\n'){
+                    emit(start, i);
+                    start = i + 1;
+                }
+            }
+            length = end - start;
+            if (start > 0){
+                System.arraycopy(buffer, start, buffer, 0, length);
+            }
+            if (length == buffer.length){
+                // Line too long, split it without cutting a character
+                final int cut = characterBoundary();
+                emit(0, cut);
+                length -= cut;
+                System.arraycopy(buffer, cut, buffer, 0, length);
+            }
+        }
+
+        // End of the buffer, or start of its last character if incomplete
+        private int characterBoundary(){
+            int lead = length - 1;
+            while (lead > length - 4 && lead > 0 && (buffer[lead] & 0xC0) == 0x80){
+                lead--;
+            }
+            final int first = buffer[lead] & 0xFF;
+            final int bytes = first >= 0xF0 ? 4 : first >= 0xE0 ? 3 : first >= 0xC0 ? 2 : 1;
+            return lead > 0 && lead + bytes > length ? lead : length;
+        }
+
+        private void emit(final int start, final int end){
+            final int lineEnd = end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+            sink.line(buffer, start, lineEnd - start);
+        }
+
+        private void finish(){
+            if (done){
+                return;
+            }
+            done = true;
+            if (length > 0){
+                emit(0, length);
+                length = 0;
+            }
+            try {
+                in.close();
+            }catch (IOException e){
+                // shh
+            }
+            sink.close();
+        }
+    }
+
+    private static ExecutorService virtualThreadsOrNull(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch (Exception e){
+            return null;
+        }
+    }
+}
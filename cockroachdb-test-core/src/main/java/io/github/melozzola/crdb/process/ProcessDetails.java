@@ -24,12 +24,28 @@ public class ProcessDetails {
     final int port;
     final String host;
     final String url;
+    final StartupMetrics startupMetrics;
+    final ResourceProfile.Sizing resources;
 
     public ProcessDetails(long pid, int port, String host, String url) {
+        this(pid, port, host, url, new StartupMetrics());
+    }
+
+    public ProcessDetails(long pid, int port, String host, String url, StartupMetrics startupMetrics) {
+        this(pid, port, host, url, startupMetrics, null);
+    }
+
+    public ProcessDetails(long pid, int port, String host, String url, StartupMetrics startupMetrics, ResourceProfile.Sizing resources) {
         this.pid = pid;
         this.port = port;
         this.host = host;
         this.url = url;
+        this.startupMetrics = startupMetrics;
+        this.resources = resources;
+    }
+
+    ProcessDetails withResources(final ResourceProfile.Sizing resources){
+        return new ProcessDetails(pid, port, host, url, startupMetrics, resources);
     }
 
     public long getPid() {
@@ -48,6 +64,24 @@ public class ProcessDetails {
         return url;
     }
 
+    /**
+     * <p> Returns the duration of the start up phases. The shut down phases are added once the process is stopped.
+     *
+     * @return The metrics.
+     */
+    public StartupMetrics getStartupMetrics() {
+        return startupMetrics;
+    }
+
+    /**
+     * <p> Returns the effective memory flags of the node. See {@link ResourceProfile}.
+     *
+     * @return The sizes, {@code null} if unknown.
+     */
+    public ResourceProfile.Sizing getResources() {
+        return resources;
+    }
+
     @Override
     public String toString() {
         return "ProcessDetails{" +
@@ -55,6 +89,8 @@ public class ProcessDetails {
                 ", port=" + port +
                 ", host='" + host + '\'' +
                 ", url='" + url + '\'' +
+                ", startupMetrics=" + startupMetrics +
+                ", resources=" + resources +
                 '}';
     }
 
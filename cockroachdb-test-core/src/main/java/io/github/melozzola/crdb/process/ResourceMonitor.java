@@ -0,0 +1,392 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.installer.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p> Samples the resident memory (RSS) and the CPU time of the cockroach db processes, reading {@code /proc/<pid>/status}
+ *     and {@code /proc/<pid>/stat}, every {@code monitor.interval.ms}.
+ * <p> A {@link Watch} collects the samples of a process while it's open (e.g. for a test class) into preallocated rings of the
+ *     most recent {@code monitor.window} samples; peaks, averages and CPU time cover all its samples. A process watched
+ *     more than once (e.g. a pooled process) is sampled once per interval.
+ * <p> Without {@code /proc} (not on Linux) the watches have no samples. See {@link Config}.
+ */
+public class ResourceMonitor {
+
+    private static final String INTERVAL_PROPERTY = "monitor.interval.ms";
+    private static final String WINDOW_PROPERTY = "monitor.window";
+    // USER_HZ: 100 on all the common Linux architectures
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1) / 100;
+
+    private static volatile ResourceMonitor instance = null;
+
+    private final Path proc;
+    private final long intervalMs;
+    private final int window;
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+    // Used by the sampling thread only
+    private final Sample current = new Sample();
+    private ScheduledExecutorService sampler;
+    private ScheduledFuture<?> sampling;
+
+    /**
+     * <p> Returns the monitor configured via the {@code monitor.interval.ms} and {@code monitor.window} properties.
+     *
+     * @return The monitor.
+     */
+    public static ResourceMonitor getInstance(){
+        if (instance == null){
+            synchronized (ResourceMonitor.class){
+                if (instance == null){
+                    instance = new ResourceMonitor(Paths.get("/proc"), readInt(INTERVAL_PROPERTY, 500), readInt(WINDOW_PROPERTY, 1024));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * <p> Creates a monitor.
+     *
+     * @param proc The {@code /proc} folder.
+     * @param intervalMs The sampling interval.
+     * @param window The number of recent samples kept by each watch.
+     */
+    ResourceMonitor(final Path proc, final long intervalMs, final int window) {
+        if (intervalMs < 1 || window < 1){
+            throw new IllegalArgumentException("The interval and the window must be positive");
+        }
+        this.proc = proc;
+        this.intervalMs = intervalMs;
+        this.window = window;
+    }
+
+    /**
+     * <p> Starts sampling a process. The first sample is taken immediately.
+     *
+     * @param pid The process id (see {@link ProcessDetails#getPid()}).
+     * @return The watch. It must be closed to stop the sampling.
+     */
+    public Watch watch(final long pid){
+        final Watch watch = new Watch(this, pid, window);
+        final Sample sample = new Sample();
+        if (read(pid, sample)){
+            watch.add(sample);
+        }
+        synchronized (this){
+            watches.add(watch);
+            if (sampler == null){
+                sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread thread = new Thread(r, "crdb-monitor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            if (sampling == null){
+                sampling = sampler.scheduleWithFixedDelay(this::sampleAll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return watch;
+    }
+
+    private void unwatch(final Watch watch){
+        final Sample sample = new Sample();
+        if (read(watch.pid, sample)){
+            watch.add(sample);
+        }
+        synchronized (this){
+            watches.remove(watch);
+            if (watches.isEmpty() && sampling != null){
+                sampling.cancel(false);
+                sampling = null;
+            }
+        }
+    }
+
+    // One read per process, shared by its watches
+    private void sampleAll(){
+        final Watch[] snapshot = watches.toArray(new Watch[0]);
+        for (int i = 0; i < snapshot.length; i++){
+            if (sampledBefore(snapshot, i) || !read(snapshot[i].pid, current)){
+                continue;
+            }
+            for (int j = i; j < snapshot.length; j++){
+                if (snapshot[j].pid == snapshot[i].pid){
+                    snapshot[j].add(current);
+                }
+            }
+        }
+    }
+
+    private static boolean sampledBefore(final Watch[] snapshot, final int index){
+        for (int i = 0; i < index; i++){
+            if (snapshot[i].pid == snapshot[index].pid){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean read(final long pid, final Sample sample){
+        try {
+            final Path process = proc.resolve(Long.toString(pid));
+            sample.cpuNanos = parseCpuTicks(new String(Files.readAllBytes(process.resolve("stat")), StandardCharsets.UTF_8)) * TICK_NANOS;
+            sample.rssBytes = parseRssKb(Files.readAllLines(process.resolve("status"), StandardCharsets.UTF_8)) * 1024L;
+            sample.nanos = System.nanoTime();
+            return sample.cpuNanos >= 0 && sample.rssBytes >= 0;
+        }catch (IOException | RuntimeException e){
+            // shh, gone or not on Linux
+            return false;
+        }
+    }
+
+    /**
+     * <p> The user plus system CPU time of a process.
+     *
+     * @param stat The content of {@code /proc/<pid>/stat}.
+     * @return The CPU time in clock ticks, -1 if not found.
+     */
+    static long parseCpuTicks(final String stat){
+        // The command name (2nd field) is in parentheses and may contain spaces
+        final int comm = stat.lastIndexOf(')');
+        final String[] fields = stat.substring(comm + 1).trim().split("\\s+");
+        // utime and stime are the 14th and 15th fields, the first after the name is the 3rd
+        if (comm < 0 || fields.length < 13){
+            return -1;
+        }
+        return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+    }
+
+    /**
+     * <p> The resident memory of a process.
+     *
+     * @param status The lines of {@code /proc/<pid>/status}.
+     * @return The {@code VmRSS} in kB, -1 if not found.
+     */
+    static long parseRssKb(final List<String> status){
+        for (String line : status){
+            if (line.startsWith("VmRSS:")){
+                return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim());
+            }
+        }
+        return -1;
+    }
+
+    // Reused by the sampling thread
+    private static class Sample {
+        private long nanos;
+        private long cpuNanos;
+        private long rssBytes;
+    }
+
+    /**
+     * <p> The sampling of a process. The samples are kept in preallocated rings, no allocation per sample.
+     */
+    public static class Watch implements AutoCloseable {
+
+        private final ResourceMonitor monitor;
+        private final long pid;
+        private final long[] times;
+        private final long[] cpus;
+        private final long[] rsss;
+        private long count = 0;
+        private long firstNanos;
+        private long firstCpuNanos;
+        private long rssSum = 0;
+        private long peakRss = 0;
+        private double peakCores = 0;
+        private final AtomicBoolean closing = new AtomicBoolean(false);
+        private boolean closed = false;
+
+        private Watch(final ResourceMonitor monitor, final long pid, final int window) {
+            this.monitor = monitor;
+            this.pid = pid;
+            this.times = new long[window];
+            this.cpus = new long[window];
+            this.rsss = new long[window];
+        }
+
+        private synchronized void add(final Sample sample){
+            if (closed){
+                return;
+            }
+            if (count == 0){
+                firstNanos = sample.nanos;
+                firstCpuNanos = sample.cpuNanos;
+            }else {
+                final int previous = (int) ((count - 1) % times.length);
+                final long elapsed = sample.nanos - times[previous];
+                if (elapsed > 0){
+                    peakCores = Math.max(peakCores, (sample.cpuNanos - cpus[previous]) / (double) elapsed);
+                }
+            }
+            final int slot = (int) (count % times.length);
+            times[slot] = sample.nanos;
+            cpus[slot] = sample.cpuNanos;
+            rsss[slot] = sample.rssBytes;
+            count++;
+            rssSum += sample.rssBytes;
+            peakRss = Math.max(peakRss, sample.rssBytes);
+        }
+
+        /**
+         * @return The watched process id.
+         */
+        public long getPid() {
+            return pid;
+        }
+
+        /**
+         * <p> Returns the usage measured so far.
+         *
+         * @return The usage.
+         */
+        public synchronized Usage getUsage(){
+            if (count == 0){
+                return new Usage(pid, 0, 0, 0, 0, 0, 0, 0);
+            }
+            final int last = (int) ((count - 1) % times.length);
+            final long elapsed = times[last] - firstNanos;
+            final long cpu = cpus[last] - firstCpuNanos;
+            final long[] recent = Arrays.copyOf(rsss, (int) Math.min(count, rsss.length));
+            Arrays.sort(recent);
+            final long p90Rss = recent[Math.max((int) Math.ceil(0.9 * recent.length) - 1, 0)];
+            return new Usage(pid, count, peakRss, rssSum / count, p90Rss, TimeUnit.NANOSECONDS.toMillis(cpu),
+                    elapsed > 0 ? cpu / (double) elapsed : 0, peakCores);
+        }
+
+        /**
+         * <p> Stops the sampling, after a last sample.
+         */
+        @Override
+        public void close() {
+            if (!closing.compareAndSet(false, true)){
+                return;
+            }
+            monitor.unwatch(this);
+            synchronized (this){
+                closed = true;
+            }
+        }
+    }
+
+    /**
+     * <p> The resources used by a process while watched.
+     */
+    public static class Usage {
+
+        private final long pid;
+        private final long samples;
+        private final long peakRssBytes;
+        private final long avgRssBytes;
+        private final long p90RssBytes;
+        private final long cpuTimeMs;
+        private final double avgCpuCores;
+        private final double peakCpuCores;
+
+        Usage(final long pid, final long samples, final long peakRssBytes, final long avgRssBytes, final long p90RssBytes,
+              final long cpuTimeMs, final double avgCpuCores, final double peakCpuCores) {
+            this.pid = pid;
+            this.samples = samples;
+            this.peakRssBytes = peakRssBytes;
+            this.avgRssBytes = avgRssBytes;
+            this.p90RssBytes = p90RssBytes;
+            this.cpuTimeMs = cpuTimeMs;
+            this.avgCpuCores = avgCpuCores;
+            this.peakCpuCores = peakCpuCores;
+        }
+
+        public long getPid() {
+            return pid;
+        }
+
+        /**
+         * @return The number of samples, 0 if the process couldn't be sampled.
+         */
+        public long getSamples() {
+            return samples;
+        }
+
+        public long getPeakRssBytes() {
+            return peakRssBytes;
+        }
+
+        public long getAvgRssBytes() {
+            return avgRssBytes;
+        }
+
+        /**
+         * @return The 90th percentile of the most recent samples.
+         */
+        public long getP90RssBytes() {
+            return p90RssBytes;
+        }
+
+        /**
+         * @return The CPU time (user and system) between the first and the last sample.
+         */
+        public long getCpuTimeMs() {
+            return cpuTimeMs;
+        }
+
+        /**
+         * @return The average CPU usage, in cores (1.0 is a core fully busy).
+         */
+        public double getAvgCpuCores() {
+            return avgCpuCores;
+        }
+
+        /**
+         * @return The highest CPU usage over a sampling interval, in cores.
+         */
+        public double getPeakCpuCores() {
+            return peakCpuCores;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("pid %d: rss peak %d MiB, avg %d MiB, p90 %d MiB; cpu %d ms, avg %.2f cores, peak %.2f cores (%d samples)",
+                    pid, peakRssBytes >> 20, avgRssBytes >> 20, p90RssBytes >> 20, cpuTimeMs, avgCpuCores, peakCpuCores, samples);
+        }
+    }
+
+    private static int readInt(final String property, final int defaultValue){
+        final String value = Config.getInstance().get(property);
+        if (value == null || "".equals(value.trim())){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + property + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.installer.Config;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p> Sizes the memory of a node ({@code --cache}, {@code --max-sql-memory} and the size of the in memory store) from the memory
+ *     of the machine and the number of nodes expected to run on it, instead of the fixed defaults of {@link Flags}.
+ * <p> The memory of the machine is the smallest of {@code MemTotal} in {@code /proc/meminfo} and the cgroup memory limit
+ *     (v2 {@code memory.max} or v1 {@code memory.limit_in_bytes}), so a container gets its own limit. On other systems it's
+ *     the physical memory reported by the JVM.
+ * <p> Each node gets a share of the memory divided by the nodes per host ({@code resources.nodes.per.host}, by default the
+ *     number of cores): a quarter for the cache, a quarter for the sql memory and half for the store, each within the bounds
+ *     of the chosen {@link Size}. A disk store is not sized.
+ */
+public class ResourceProfile {
+
+    private static final String PROFILE_PROPERTY = "resources.profile";
+    private static final String NODES_PER_HOST_PROPERTY = "resources.nodes.per.host";
+    private static final long MIB = 1024L * 1024L;
+    // Below it's "no limit" for cgroup v1
+    private static final long UNLIMITED = Long.MAX_VALUE / 2;
+    private static final Pattern MEM_TOTAL = Pattern.compile("MemTotal:\\s+(\\d+)\\s+kB");
+    private static final Pattern MEM_STORE_SIZE = Pattern.compile("type=mem,size=(\\d+)MiB");
+
+    /**
+     * <p> The profiles. The bounds are in MiB.
+     */
+    public enum Size {
+        /** Smoke tests and many nodes per host: just what's needed to boot. */
+        TINY(0.10, 3, 32, 3, 64, 640, 640),
+        /** Typical integration tests. */
+        DEFAULT(0.25, 16, 256, 64, 512, 640, 2048),
+        /** Realistic queries and data sets, few nodes per host. */
+        LARGE(0.50, 64, 1024, 256, 4096, 1024, 8192);
+
+        private final double share;
+        private final long minCache;
+        private final long maxCache;
+        private final long minSqlMemory;
+        private final long maxSqlMemory;
+        // Cockroach db rejects stores smaller than 640 MiB
+        private final long minStore;
+        private final long maxStore;
+
+        Size(final double share, final long minCache, final long maxCache, final long minSqlMemory, final long maxSqlMemory, final long minStore, final long maxStore) {
+            this.share = share;
+            this.minCache = minCache;
+            this.maxCache = maxCache;
+            this.minSqlMemory = minSqlMemory;
+            this.maxSqlMemory = maxSqlMemory;
+            this.minStore = minStore;
+            this.maxStore = maxStore;
+        }
+    }
+
+    private final Size size;
+    private int nodesPerHost = -1;
+    private long totalMemoryBytes = -1;
+
+    private ResourceProfile(final Size size) {
+        this.size = size;
+    }
+
+    /**
+     * @return A {@link Size#TINY} profile.
+     */
+    public static ResourceProfile tiny(){
+        return new ResourceProfile(Size.TINY);
+    }
+
+    /**
+     * @return A {@link Size#DEFAULT} profile.
+     */
+    public static ResourceProfile defaults(){
+        return new ResourceProfile(Size.DEFAULT);
+    }
+
+    /**
+     * @return A {@link Size#LARGE} profile.
+     */
+    public static ResourceProfile large(){
+        return new ResourceProfile(Size.LARGE);
+    }
+
+    /**
+     * <p> Returns a profile by name (tiny, default or large).
+     *
+     * @param name The profile name.
+     * @return The profile.
+     */
+    public static ResourceProfile of(final String name){
+        try {
+            return new ResourceProfile(Size.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+        }catch (IllegalArgumentException e){
+            throw new IllegalStateException("Invalid resource profile: " + name + ". Expected tiny, default or large", e);
+        }
+    }
+
+    /**
+     * <p> Returns the profile configured via the {@code resources.profile} property, or {@code null} if not set.
+     *
+     * @return The profile or {@code null}.
+     */
+    static ResourceProfile fromConfigOrNull(){
+        final String name = Config.getInstance().get(PROFILE_PROPERTY);
+        return name == null || "".equals(name.trim()) ? null : of(name);
+    }
+
+    /**
+     * <p> How many nodes are expected to run at the same time on the host. By default {@code resources.nodes.per.host}, or the number of cores.
+     *
+     * @param nodesPerHost The number of nodes.
+     * @return The profile.
+     */
+    public ResourceProfile nodesPerHost(final int nodesPerHost){
+        if (nodesPerHost < 1){
+            throw new IllegalArgumentException("nodesPerHost must be positive");
+        }
+        this.nodesPerHost = nodesPerHost;
+        return this;
+    }
+
+    /**
+     * <p> The memory of the host, instead of the detected one.
+     *
+     * @param totalMemoryBytes The memory in bytes.
+     * @return The profile.
+     */
+    public ResourceProfile totalMemory(final long totalMemoryBytes){
+        this.totalMemoryBytes = totalMemoryBytes;
+        return this;
+    }
+
+    /**
+     * <p> Sets the memory flags. The store is sized only if it's in memory.
+     *
+     * @param flags The flags.
+     * @return The effective sizes.
+     */
+    Sizing applyTo(final Flags flags){
+        final long totalMiB = (totalMemoryBytes > 0 ? totalMemoryBytes : detectTotalMemory()) / MIB;
+        final int nodes = nodesPerHost > 0 ? nodesPerHost : configuredNodesPerHost();
+        final long budget = (long) (totalMiB * size.share / nodes);
+        flags.setCache(clamp(budget / 4, size.minCache, size.maxCache));
+        flags.setMaxSqlMemory(clamp(budget / 4, size.minSqlMemory, size.maxSqlMemory));
+        if (isMemStore(flags.getStore())){
+            flags.setStore("type=mem,size=" + clamp(budget / 2, size.minStore, size.maxStore) + "MiB");
+        }
+        return Sizing.of(size.name().toLowerCase(Locale.ROOT), totalMiB, nodes, flags);
+    }
+
+    /**
+     * <p> The memory flags of a node.
+     */
+    public static class Sizing {
+
+        private final String profile;
+        private final long totalMemoryMiB;
+        private final int nodesPerHost;
+        private final long cacheMiB;
+        private final long maxSqlMemoryMiB;
+        private final long storeMiB;
+
+        Sizing(final String profile, final long totalMemoryMiB, final int nodesPerHost, final long cacheMiB, final long maxSqlMemoryMiB, final long storeMiB) {
+            this.profile = profile;
+            this.totalMemoryMiB = totalMemoryMiB;
+            this.nodesPerHost = nodesPerHost;
+            this.cacheMiB = cacheMiB;
+            this.maxSqlMemoryMiB = maxSqlMemoryMiB;
+            this.storeMiB = storeMiB;
+        }
+
+        /**
+         * <p> The sizes of flags set explicitly, without a profile.
+         *
+         * @param flags The flags.
+         * @return The sizes.
+         */
+        static Sizing of(final Flags flags){
+            return of("fixed", -1, -1, flags);
+        }
+
+        private static Sizing of(final String profile, final long totalMemoryMiB, final int nodesPerHost, final Flags flags){
+            final Matcher store = flags.getStore() == null ? null : MEM_STORE_SIZE.matcher(flags.getStore());
+            return new Sizing(profile, totalMemoryMiB, nodesPerHost, flags.getCache() == null ? -1 : flags.getCache(),
+                    flags.getMaxSqlMemory() == null ? -1 : flags.getMaxSqlMemory(), store != null && store.matches() ? Long.parseLong(store.group(1)) : -1);
+        }
+
+        /**
+         * @return The profile name: tiny, default, large, or fixed when no profile is used.
+         */
+        public String getProfile() {
+            return profile;
+        }
+
+        /**
+         * @return The memory of the host in MiB, or -1 when no profile is used.
+         */
+        public long getTotalMemoryMiB() {
+            return totalMemoryMiB;
+        }
+
+        /**
+         * @return The nodes expected on the host, or -1 when no profile is used.
+         */
+        public int getNodesPerHost() {
+            return nodesPerHost;
+        }
+
+        /**
+         * @return The {@code --cache} in MiB, or -1 if not set.
+         */
+        public long getCacheMiB() {
+            return cacheMiB;
+        }
+
+        /**
+         * @return The {@code --max-sql-memory} in MiB, or -1 if not set.
+         */
+        public long getMaxSqlMemoryMiB() {
+            return maxSqlMemoryMiB;
+        }
+
+        /**
+         * @return The size of the in memory store in MiB, or -1 for a disk store.
+         */
+        public long getStoreMiB() {
+            return storeMiB;
+        }
+
+        @Override
+        public String toString() {
+            return "Sizing{" +
+                    "profile='" + profile + '\'' +
+                    ", totalMemoryMiB=" + totalMemoryMiB +
+                    ", nodesPerHost=" + nodesPerHost +
+                    ", cacheMiB=" + cacheMiB +
+                    ", maxSqlMemoryMiB=" + maxSqlMemoryMiB +
+                    ", storeMiB=" + storeMiB +
+                    '}';
+        }
+    }
+
+    /**
+     * <p> Returns the memory available to the processes of this machine, or container.
+     *
+     * @return The memory in bytes.
+     */
+    public static long detectTotalMemory(){
+        final long memory = detectTotalMemory(Paths.get("/proc/meminfo"), Paths.get("/sys/fs/cgroup/memory.max"), Paths.get("/sys/fs/cgroup/memory/memory.limit_in_bytes"));
+        return memory > 0 ? memory : physicalMemoryOrDefault();
+    }
+
+    /**
+     * <p> The smallest of {@code MemTotal} and the cgroup limits.
+     *
+     * @param meminfo The {@code /proc/meminfo} file.
+     * @param cgroupV2 The cgroup v2 {@code memory.max} file.
+     * @param cgroupV1 The cgroup v1 {@code memory.limit_in_bytes} file.
+     * @return The memory in bytes, -1 if none of the files is readable.
+     */
+    static long detectTotalMemory(final Path meminfo, final Path cgroupV2, final Path cgroupV1){
+        long memory = -1;
+        for (String line : readLines(meminfo)){
+            final Matcher total = MEM_TOTAL.matcher(line.trim());
+            if (total.matches()){
+                memory = Long.parseLong(total.group(1)) * 1024L;
+                break;
+            }
+        }
+        for (Path cgroup : new Path[]{cgroupV2, cgroupV1}){
+            final List<String> limit = readLines(cgroup);
+            if (limit.isEmpty()){
+                continue;
+            }
+            try {
+                final long bytes = Long.parseLong(limit.get(0).trim());
+                if (bytes > 0 && bytes < UNLIMITED && (memory < 0 || bytes < memory)){
+                    memory = bytes;
+                }
+            }catch (NumberFormatException e){
+                // shh, "max" means no limit
+            }
+        }
+        return memory;
+    }
+
+    private static List<String> readLines(final Path file){
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8);
+        }catch (IOException | RuntimeException e){
+            return Collections.emptyList();
+        }
+    }
+
+    // com.sun.management is not available on every JVM
+    private static long physicalMemoryOrDefault(){
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            final Method totalMemory = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getTotalPhysicalMemorySize");
+            return (Long) totalMemory.invoke(os);
+        }catch (Exception e){
+            return 4096 * MIB;
+        }
+    }
+
+    private static boolean isMemStore(final String store){
+        return store != null && store.startsWith("type=mem");
+    }
+
+    private static long clamp(final long value, final long min, final long max){
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static int configuredNodesPerHost(){
+        final String value = Config.getInstance().get(NODES_PER_HOST_PROPERTY);
+        if (value == null || "".equals(value.trim())){
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            final int nodes = Integer.parseInt(value.trim());
+            return nodes > 0 ? nodes : Runtime.getRuntime().availableProcessors();
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + NODES_PER_HOST_PROPERTY + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,618 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.installer.Config;
+import io.github.melozzola.crdb.jdbc.DatabasePool;
+import io.github.melozzola.crdb.utils.StartupWatcher;
+import io.github.melozzola.crdb.utils.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p> Cockroach db nodes shared by the JVMs of the same machine, e.g. the forks of a parallel Surefire run ({@code forkCount}),
+ *     instead of a node per JVM.
+ * <p> Nodes are keyed by their configuration (see {@link Cockroach#getPoolKey()}) and live in {@code java.io.tmpdir/crdb-shared/<key>}.
+ *     The first JVM that attaches starts the node in background ({@code --background}, not a child of the JVM) and records its
+ *     {@link ProcessDetails} in a lease file. The other JVMs read the lease file and attach to the running node.
+ * <p> Every attached JVM (fork) renews a heartbeat file every {@code shared.heartbeat.ms}. When its last lease is closed, a fork stays
+ *     attached for {@code shared.idle.ttl.ms}, so that the next test classes of the JVM reuse the node and the fork database, then detaches.
+ *     When a fork detaches, the node is shut down if no other fork is attached: forks whose JVM is dead or whose heartbeat is older
+ *     than {@code shared.ttl.ms} don't count.
+ *     A watchdog process, started with the node, shuts it down when all the forks died without detaching.
+ * <p> Each fork gets its own database ( See {@link Lease#createDatabase()} ), so forks running the same tests don't collide.
+ * <p> The lease files are updated holding a file lock, shared with the other JVMs. See {@link Config} for the properties.
+ */
+public class SharedNode {
+
+    private static final String HEARTBEAT_PROPERTY = "shared.heartbeat.ms";
+    private static final String TTL_PROPERTY = "shared.ttl.ms";
+    private static final String IDLE_TTL_PROPERTY = "shared.idle.ttl.ms";
+    private static final String LEASE_FILE = "node.lease";
+    private static final String FORKS_FOLDER = "forks";
+    private static final Map<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private static volatile SharedNode instance = null;
+
+    private final Path folder;
+    private final String forkId;
+    private final long heartbeatMs;
+    private final long ttlMs;
+    private final long idleTtlMs;
+    private final boolean watchdog;
+    private final Map<String, Attachment> attachments = new HashMap<>();
+    private final Map<String, Object> keyLocks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeats;
+
+    /**
+     * <p> A lease on a shared node. Closing the lease detaches this JVM from the node, once all its leases are closed and
+     *     the idle time to live is over.
+     */
+    public static class Lease implements AutoCloseable {
+
+        private final SharedNode sharedNode;
+        private final Attachment attachment;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Lease(final SharedNode sharedNode, final Attachment attachment) {
+            this.sharedNode = sharedNode;
+            this.attachment = attachment;
+        }
+
+        /**
+         * <p> Returns the details of the shared node. The pid is the one of a process not started by this JVM.
+         *
+         * @return The process details.
+         */
+        public ProcessDetails getProcessDetails(){
+            return attachment.details;
+        }
+
+        /**
+         * <p> Returns the name of the database of this fork, e.g. {@code fork_12345}.
+         *
+         * @return The database name.
+         */
+        public String getDatabase(){
+            return attachment.database;
+        }
+
+        /**
+         * <p> (Re-)creates the database of this fork ( See {@link #getDatabase()} ), once per JVM. It is dropped when the JVM detaches.
+         *     The postgres jdbc driver must be in the classpath.
+         *
+         * @return The database name.
+         */
+        public String createDatabase(){
+            attachment.createDatabase();
+            return attachment.database;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                sharedNode.release(attachment);
+            }
+        }
+    }
+
+    // This JVM attached to a node
+    private static class Attachment {
+        private final String key;
+        private final Path nodeFolder;
+        private final Path forkFile;
+        private final ProcessDetails details;
+        private final String database;
+        private int references = 1;
+        private boolean databaseCreated = false;
+        private ScheduledFuture<?> heartbeat;
+        private ScheduledFuture<?> idleDetach;
+
+        private Attachment(final String key, final Path nodeFolder, final Path forkFile, final ProcessDetails details, final String database) {
+            this.key = key;
+            this.nodeFolder = nodeFolder;
+            this.forkFile = forkFile;
+            this.details = details;
+            this.database = database;
+        }
+
+        private synchronized void createDatabase(){
+            if (databaseCreated){
+                return;
+            }
+            execute("DROP DATABASE IF EXISTS " + database + " CASCADE", "CREATE DATABASE " + database);
+            databaseCreated = true;
+        }
+
+        private synchronized void dropDatabaseIfCreated(){
+            if (databaseCreated){
+                try {
+                    execute("DROP DATABASE IF EXISTS " + database + " CASCADE");
+                }catch (IllegalStateException e){
+                    // shh, dropped with the node, or by the next fork with the same pid
+                }
+                databaseCreated = false;
+            }
+        }
+
+        private void execute(final String... statements){
+            try (Connection connection = DriverManager.getConnection(DatabasePool.jdbcUrl(details.getHost(), details.getPort(), "system"), "root", "");
+                 Statement statement = connection.createStatement()){
+                for (String sql : statements){
+                    statement.execute(sql);
+                }
+            }catch (SQLException e){
+                throw new IllegalStateException("Unable to execute " + Arrays.toString(statements) + " on the shared node " + details.getUrl(), e);
+            }
+        }
+    }
+
+    /**
+     * <p> Returns the JVM wide instance.
+     *
+     * @return The shared nodes.
+     */
+    public static SharedNode getInstance(){
+        if (instance == null){
+            synchronized (SharedNode.class){
+                if (instance == null){
+                    instance = new SharedNode(Paths.get(System.getProperty("java.io.tmpdir"), "crdb-shared"), Long.toString(Utils.jvmPid()),
+                            readLong(HEARTBEAT_PROPERTY, 2000), readLong(TTL_PROPERTY, 20000), readLong(IDLE_TTL_PROPERTY, 30000), true);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * <p> Creates the shared nodes of a fork.
+     *
+     * @param folder The folder of the shared nodes.
+     * @param forkId The fork id, starting with the JVM pid.
+     * @param heartbeatMs How often the heartbeat is renewed.
+     * @param ttlMs After how long without heartbeat a fork is considered gone.
+     * @param idleTtlMs How long the fork stays attached after its last lease is closed. 0 to detach right away.
+     * @param watchdog Whether to start the watchdog process with the nodes.
+     */
+    SharedNode(final Path folder, final String forkId, final long heartbeatMs, final long ttlMs, final long idleTtlMs, final boolean watchdog) {
+        this.folder = folder;
+        this.forkId = forkId;
+        this.heartbeatMs = heartbeatMs;
+        this.ttlMs = ttlMs;
+        this.idleTtlMs = idleTtlMs;
+        this.watchdog = watchdog;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "crdb-shared-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(this::detachAll, "crdb-shared-detach"));
+    }
+
+    /**
+     * <p> Attaches to the shared node with the same configuration of the given {@link Cockroach}, starting it if no JVM did.
+     *     The given {@link Cockroach} must not be started already and is discarded: only its binary and flags are used.
+     *
+     * @param cockroach The node configuration.
+     * @return The lease. It must be closed when the node is not needed anymore.
+     */
+    public Lease attach(final Cockroach cockroach){
+        final String key = keyOf(cockroach);
+        // Booting a node doesn't block the attaches to the other nodes
+        synchronized (keyLockOf(key)){
+            synchronized (this){
+                final Attachment existing = attachments.get(key);
+                if (existing != null){
+                    existing.references++;
+                    if (existing.idleDetach != null){
+                        existing.idleDetach.cancel(false);
+                        existing.idleDetach = null;
+                    }
+                    cockroach.discard();
+                    return new Lease(this, existing);
+                }
+            }
+
+            final Path nodeFolder = folder.resolve(key);
+            final Path forkFile = nodeFolder.resolve(FORKS_FOLDER).resolve(forkId);
+            final ProcessDetails[] details = new ProcessDetails[1];
+            final boolean[] started = {false};
+            try {
+                Files.createDirectories(folder);
+                withLock(lockFileOf(nodeFolder), () -> {
+                    details[0] = readLeaseOrNull(nodeFolder);
+                    if (details[0] == null || !isReachable(details[0])){
+                        if (details[0] != null){
+                            // Crashed, or killed without cleaning up
+                            shutDownNode(nodeFolder);
+                        }
+                        details[0] = startNode(cockroach, nodeFolder);
+                        started[0] = true;
+                    }
+                    touch(forkFile);
+                });
+            }catch (IOException e){
+                throw new IllegalStateException("Unable to create the shared nodes folder " + folder, e);
+            }finally {
+                cockroach.discard();
+            }
+            if (started[0] && watchdog){
+                startWatchdog(nodeFolder);
+            }
+
+            final Attachment attachment = new Attachment(key, nodeFolder, forkFile, details[0].withResources(cockroach.getSizing()), "fork_" + forkId.replaceAll("[^A-Za-z0-9_]", "_"));
+            attachment.heartbeat = heartbeats.scheduleWithFixedDelay(() -> touch(forkFile), heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+            synchronized (this){
+                attachments.put(key, attachment);
+            }
+            return new Lease(this, attachment);
+        }
+    }
+
+    private Object keyLockOf(final String key){
+        return keyLocks.computeIfAbsent(key, k -> new Object());
+    }
+
+    private void release(final Attachment attachment){
+        synchronized (this){
+            attachment.references--;
+            if (attachment.references > 0 || attachments.get(attachment.key) != attachment){
+                return;
+            }
+            if (idleTtlMs > 0){
+                // Still attached, the next test class of this JVM reuses the node
+                attachment.idleDetach = heartbeats.schedule(() -> detachIfIdle(attachment), idleTtlMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        detachIfIdle(attachment);
+    }
+
+    private void detachIfIdle(final Attachment attachment){
+        // An attach to the same node waits for the detach, instead of touching the fork file being deleted
+        synchronized (keyLockOf(attachment.key)){
+            synchronized (this){
+                if (attachment.references > 0 || !attachments.remove(attachment.key, attachment)){
+                    return;
+                }
+                attachment.heartbeat.cancel(false);
+            }
+            attachment.dropDatabaseIfCreated();
+            withLock(lockFileOf(attachment.nodeFolder), () -> {
+                deleteQuietly(attachment.forkFile);
+                if (liveForks(attachment.nodeFolder, ttlMs) == 0){
+                    // Last fork out
+                    shutDownNode(attachment.nodeFolder);
+                }
+            });
+        }
+    }
+
+    // JVM shutdown hook: the forks that didn't close their leases
+    private void detachAll(){
+        final List<Attachment> attached;
+        synchronized (this){
+            attached = new ArrayList<>(attachments.values());
+            for (Attachment attachment : attached){
+                attachment.references = 0;
+                if (attachment.idleDetach != null){
+                    attachment.idleDetach.cancel(false);
+                }
+            }
+        }
+        for (Attachment attachment : attached){
+            try {
+                detachIfIdle(attachment);
+            }catch (Exception e){
+                // shh, the watchdog or the next fork cleans up
+            }
+        }
+    }
+
+    private static ProcessDetails startNode(final Cockroach cockroach, final Path nodeFolder){
+        Utils.recursiveDelete(nodeFolder);
+        final Path pidFile = nodeFolder.resolve("pid.txt");
+        final Path urlFile = nodeFolder.resolve("url.txt");
+        final Flags flags = cockroach.getFlags();
+        flags.setBackground(true);
+        flags.setPidFile(pidFile);
+        flags.setListeningUrlFile(urlFile);
+        if (cockroach.isStoreInWorkFolder()){
+            // The work folder of the given Cockroach is discarded, the store lives and dies with the node folder
+            flags.setStore(nodeFolder.resolve("store").toString());
+        }
+        final List<String> command = new ArrayList<>();
+        command.add(cockroach.getExecutable());
+        command.add("start");
+        command.addAll(Arrays.asList(flags.getFlags().trim().split("\\s+")));
+
+        Process launcher = null;
+        try {
+            Files.createDirectories(nodeFolder.resolve(FORKS_FOLDER));
+            // Output to a file: the node must outlive this JVM and its pipes
+            final ProcessDetails details;
+            try (StartupScheduler.Slot slot = StartupScheduler.getInstance().acquire()){
+                if (cockroach.getTemplate() != null){
+                    StoreTemplates.restore(cockroach.getTemplate(), StoreTemplates.storeFolderOrNull(flags.getStore()));
+                }
+                launcher = new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.appendTo(nodeFolder.resolve("node.log").toFile()))
+                        .start();
+                details = StartupWatcher.waitForStartup(launcher, false, pidFile, urlFile, cockroach.getStartupWaitTimeMs());
+            }
+            writeLease(nodeFolder, details);
+            return details;
+        }catch (IOException | RuntimeException e){
+            if (launcher != null){
+                launcher.destroyForcibly();
+            }
+            final Long pid = readPidOrNull(pidFile);
+            if (pid != null){
+                Utils.killCockroachProcess(pid);
+            }
+            throw new IllegalStateException("Unable to start the shared cockroach db node " + String.join(" ", command) + ". See " + nodeFolder.resolve("node.log"), e);
+        }
+    }
+
+    // Kills the node and deletes its folder. Holding the lock.
+    private static void shutDownNode(final Path nodeFolder){
+        final ProcessDetails details = readLeaseOrNull(nodeFolder);
+        if (details != null){
+            Utils.killCockroachProcess(details.getPid());
+        }
+        deleteQuietly(nodeFolder.resolve(LEASE_FILE));
+        Utils.recursiveDelete(nodeFolder);
+    }
+
+    /**
+     * <p> Counts the forks attached to a node, deleting the heartbeat files of the dead and stale ones.
+     *
+     * @param nodeFolder The node folder.
+     * @param ttlMs After how long without heartbeat a fork is considered gone.
+     * @return The number of live forks.
+     */
+    static int liveForks(final Path nodeFolder, final long ttlMs){
+        int live = 0;
+        final long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> forks = Files.newDirectoryStream(nodeFolder.resolve(FORKS_FOLDER))){
+            for (Path fork : forks){
+                final long lastHeartbeat = lastModifiedOrZero(fork);
+                if (now - lastHeartbeat > ttlMs || !Utils.isProcessAlive(pidOf(fork))){
+                    deleteQuietly(fork);
+                }else {
+                    live++;
+                }
+            }
+        }catch (IOException e){
+            // shh, no forks folder
+        }
+        return live;
+    }
+
+    /**
+     * <p> One round of the watchdog: shuts down the node if no fork is attached anymore.
+     *
+     * @param nodeFolder The node folder.
+     * @param ttlMs After how long without heartbeat a fork is considered gone.
+     * @return {@code false} if the node is gone and the watchdog can stop.
+     */
+    static boolean watch(final Path nodeFolder, final long ttlMs){
+        final boolean[] running = {true};
+        withLock(lockFileOf(nodeFolder), () -> {
+            if (!Files.exists(nodeFolder.resolve(LEASE_FILE))){
+                running[0] = false;
+            }else if (liveForks(nodeFolder, ttlMs) == 0){
+                shutDownNode(nodeFolder);
+                running[0] = false;
+            }
+        });
+        return running[0];
+    }
+
+    /**
+     * <p> The watchdog process of a shared node. Arguments: the node folder, the check interval and the time to live in milliseconds.
+     */
+    public static class Watchdog {
+
+        public static void main(final String[] args) throws InterruptedException {
+            final Path nodeFolder = Paths.get(args[0]);
+            final long intervalMs = Long.parseLong(args[1]);
+            final long ttlMs = Long.parseLong(args[2]);
+            do {
+                Thread.sleep(intervalMs);
+            }while (watch(nodeFolder, ttlMs));
+        }
+    }
+
+    private void startWatchdog(final Path nodeFolder){
+        try {
+            final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            // The whole classpath: the code source alone misses the dependencies of the core classes
+            final String classpath = System.getProperty("java.class.path");
+            new ProcessBuilder(java, "-Xmx16m", "-cp", classpath, Watchdog.class.getName(), nodeFolder.toString(), Long.toString(heartbeatMs), Long.toString(ttlMs))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(nodeFolder.resolve("watchdog.log").toFile()))
+                    .start();
+        }catch (Exception e){
+            // shh, the last fork out shuts the node down anyway
+        }
+    }
+
+    private static String keyOf(final Cockroach cockroach){
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(cockroach.getPoolKey().getBytes(StandardCharsets.UTF_8));
+            final StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 8; i++){
+                key.append(String.format("%02x", digest[i]));
+            }
+            return key.toString();
+        }catch (Exception e){
+            throw new IllegalStateException("Unable to compute the shared node key", e);
+        }
+    }
+
+    private static boolean isReachable(final ProcessDetails details){
+        if (!Utils.isProcessAlive(details.getPid())){
+            return false;
+        }
+        try (Socket socket = new Socket()){
+            socket.connect(new InetSocketAddress(details.getHost(), details.getPort()), 1000);
+            return true;
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    private static void writeLease(final Path nodeFolder, final ProcessDetails details) throws IOException {
+        final Properties lease = new Properties();
+        lease.setProperty("pid", Long.toString(details.getPid()));
+        lease.setProperty("host", details.getHost());
+        lease.setProperty("port", Integer.toString(details.getPort()));
+        lease.setProperty("url", details.getUrl());
+        lease.setProperty("startedBy", Long.toString(Utils.jvmPid()));
+        final Path tmp = nodeFolder.resolve(LEASE_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)){
+            lease.store(out, "Shared cockroach db node");
+        }
+        Files.move(tmp, nodeFolder.resolve(LEASE_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static ProcessDetails readLeaseOrNull(final Path nodeFolder){
+        final Path leaseFile = nodeFolder.resolve(LEASE_FILE);
+        if (!Files.exists(leaseFile)){
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(leaseFile)){
+            final Properties lease = new Properties();
+            lease.load(in);
+            return new ProcessDetails(Long.parseLong(lease.getProperty("pid")), Integer.parseInt(lease.getProperty("port")),
+                    lease.getProperty("host"), lease.getProperty("url"));
+        }catch (Exception e){
+            // Corrupted, the node is started again
+            return null;
+        }
+    }
+
+    private static Path lockFileOf(final Path nodeFolder){
+        return nodeFolder.resolveSibling(nodeFolder.getFileName() + ".lock");
+    }
+
+    // Threads of the same JVM are serialized, the file lock serializes the JVMs.
+    private static void withLock(final Path lockFile, final Runnable action){
+        synchronized (JVM_LOCKS.computeIfAbsent(lockFile.toAbsolutePath(), path -> new Object())) {
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = lockChannel.lock()) {
+                action.run();
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to lock " + lockFile, e);
+            }
+        }
+    }
+
+    // The fork file names start with the JVM pid
+    private static long pidOf(final Path fork){
+        final String name = fork.getFileName().toString();
+        final int dash = name.indexOf('-');
+        try {
+            return Long.parseLong(dash < 0 ? name : name.substring(0, dash));
+        }catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    private static void touch(final Path file){
+        try {
+            if (Files.exists(file)){
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            }else {
+                Files.createDirectories(file.getParent());
+                Files.createFile(file);
+            }
+        }catch (IOException e){
+            // shh, retried at the next heartbeat
+        }
+    }
+
+    private static Long readPidOrNull(final Path pidFile){
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(pidFile), StandardCharsets.UTF_8).trim());
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private static long lastModifiedOrZero(final Path file){
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        }catch (IOException e){
+            return 0;
+        }
+    }
+
+    private static void deleteQuietly(final Path file){
+        try {
+            Files.deleteIfExists(file);
+        }catch (IOException e){
+            // shh
+        }
+    }
+
+    private static long readLong(final String property, final long defaultValue){
+        final String value = Config.getInstance().get(property);
+        if (value == null || "".equals(value.trim())){
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + property + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Duration of the phases of the life of a cockroach db node, measured with {@link System#nanoTime()}.
+ *     Phases that didn't happen (yet) have a duration of -1.
+ * <p> The durations are also aggregated per JVM by {@link StartupStats}.
+ */
+public class StartupMetrics {
+
+    /**
+     * <p> The phases of the life of a cockroach db node.
+     */
+    public enum Phase {
+        /** Download/extraction of the binary, or the cache lookup when already installed. */
+        INSTALL,
+        /** Wait for a boot slot of the {@link StartupScheduler}. It doesn't count against the start up timeout. */
+        QUEUE,
+        /** Copy of the store template, if any. */
+        RESTORE,
+        /** {@code Runtime.exec} of the cockroach db process. */
+        EXEC,
+        /** From the process start until the pid is known. */
+        PID,
+        /** From the process start until the listening url file is written. */
+        URL,
+        /** From the pid and url being known until the port accepts connections. */
+        SOCKET,
+        /** From the boot slot being acquired until the port accepts connections. */
+        BOOT,
+        /** Stop of the process. */
+        SHUTDOWN,
+        /** Removal of the data folder (handed over to the {@code Reaper}). */
+        CLEANUP
+    }
+
+    private final Map<Phase, Long> durations = new EnumMap<>(Phase.class);
+
+    /**
+     * <p> Records the duration of a phase. Called while the node starts up and shuts down.
+     *
+     * @param phase The phase.
+     * @param nanos The duration in nanoseconds.
+     */
+    public synchronized void record(final Phase phase, final long nanos){
+        durations.put(phase, nanos);
+    }
+
+    /**
+     * <p> Returns the duration of a phase.
+     *
+     * @param phase The phase.
+     * @return The duration in nanoseconds or -1 if the phase didn't happen.
+     */
+    public synchronized long getNanos(final Phase phase){
+        final Long nanos = durations.get(phase);
+        return nanos == null ? -1 : nanos;
+    }
+
+    /**
+     * <p> Returns the duration of a phase in milliseconds.
+     *
+     * @param phase The phase.
+     * @return The duration in milliseconds or -1 if the phase didn't happen.
+     */
+    public long getMillis(final Phase phase){
+        final long nanos = getNanos(phase);
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder text = new StringBuilder("StartupMetrics{");
+        String separator = "";
+        for (Map.Entry<Phase, Long> duration : durations.entrySet()){
+            text.append(separator).append(duration.getKey().name().toLowerCase()).append('=')
+                    .append(String.format("%.3fms", duration.getValue() / 1000000.0));
+            separator = ", ";
+        }
+        return text.append('}').toString();
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.installer.Config;
+import io.github.melozzola.crdb.utils.Utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p> Host wide admission control of the cockroach db start ups: at most {@code startup.max.concurrent} nodes boot at the same time
+ *     (by default the number of cores), the others wait in a queue. Many nodes booting together (e.g. parallel forks and test
+ *     classes) compete for the cores and the disk and end up exceeding their start up timeout.
+ * <p> The slots are lock files ({@code java.io.tmpdir/crdb-startup/slot-<n>.lock}) shared by all the JVMs of the host. Within a JVM
+ *     the waiting threads are served in order by a fair semaphore; across JVMs each waiter has a ticket file in the queue folder
+ *     and only the oldest waiters (as many as the slots) compete for a free slot.
+ * <p> The queue time doesn't count against the start up timeout. It is recorded as the {@link StartupMetrics.Phase#QUEUE} phase,
+ *     and the time holding the slot as the {@link StartupMetrics.Phase#BOOT} phase, also in {@link StartupStats}.
+ *     A start up waiting more than {@code startup.queue.timeout.ms} fails.
+ */
+public class StartupScheduler {
+
+    private static final String MAX_CONCURRENT_PROPERTY = "startup.max.concurrent";
+    private static final String QUEUE_TIMEOUT_PROPERTY = "startup.queue.timeout.ms";
+    private static final long POLL_MS = 20;
+    private static final AtomicLong TICKETS = new AtomicLong(0);
+
+    private static volatile StartupScheduler instance = null;
+
+    private final Path folder;
+    private final Path queue;
+    private final int slots;
+    private final long queueTimeoutMs;
+    private final Semaphore jvmSlots;
+    // Slots held by this JVM, a file can be locked only once per JVM
+    private final Set<Integer> held = new HashSet<>();
+
+    /**
+     * <p> A boot slot. Closing it lets the next node boot.
+     */
+    public class Slot implements AutoCloseable {
+
+        private final int index;
+        private final FileChannel channel;
+        private final FileLock lock;
+        private final long queueNanos;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Slot(final int index, final FileChannel channel, final FileLock lock, final long queueNanos) {
+            this.index = index;
+            this.channel = channel;
+            this.lock = lock;
+            this.queueNanos = queueNanos;
+        }
+
+        /**
+         * @return How long the start up waited for the slot, in nanoseconds.
+         */
+        public long getQueueNanos() {
+            return queueNanos;
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)){
+                return;
+            }
+            try {
+                lock.release();
+                channel.close();
+            }catch (IOException e){
+                // shh, released when the JVM exits
+            }finally {
+                synchronized (held){
+                    held.remove(index);
+                }
+                jvmSlots.release();
+            }
+        }
+    }
+
+    /**
+     * <p> Returns the scheduler configured via the {@code startup.max.concurrent} and {@code startup.queue.timeout.ms} properties.
+     *
+     * @return The scheduler.
+     */
+    public static StartupScheduler getInstance(){
+        if (instance == null){
+            synchronized (StartupScheduler.class){
+                if (instance == null){
+                    final long maxConcurrent = readLong(MAX_CONCURRENT_PROPERTY, 0);
+                    instance = new StartupScheduler(Paths.get(System.getProperty("java.io.tmpdir"), "crdb-startup"),
+                            maxConcurrent > 0 ? (int) maxConcurrent : Runtime.getRuntime().availableProcessors(), readLong(QUEUE_TIMEOUT_PROPERTY, 300000));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * <p> Creates a scheduler.
+     *
+     * @param folder The folder of the slots and of the queue, shared by the JVMs.
+     * @param slots The maximum number of concurrent boots.
+     * @param queueTimeoutMs How long to wait for a slot.
+     */
+    StartupScheduler(final Path folder, final int slots, final long queueTimeoutMs) {
+        if (slots < 1){
+            throw new IllegalArgumentException("At least one slot is needed");
+        }
+        this.folder = folder;
+        this.queue = folder.resolve("queue");
+        this.slots = slots;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.jvmSlots = new Semaphore(slots, true);
+    }
+
+    /**
+     * @return The maximum number of concurrent boots.
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * <p> Waits for a boot slot.
+     *
+     * @return The slot. It must be closed once the node is up and running (or failed to start).
+     * @throws IllegalStateException If no slot is free within {@code startup.queue.timeout.ms}.
+     */
+    public Slot acquire(){
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        try {
+            if (!jvmSlots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)){
+                throw timeout();
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a start up slot", e);
+        }
+
+        Path ticket = null;
+        try {
+            Files.createDirectories(queue);
+            ticket = queue.resolve(String.format("%020d-%020d-%020d", System.currentTimeMillis(), Utils.jvmPid(), TICKETS.incrementAndGet()));
+            Files.createFile(ticket);
+            while (true){
+                if (waitersBefore(ticket) < slots){
+                    final Slot slot = tryLockAnySlot(System.nanoTime() - start);
+                    if (slot != null){
+                        return slot;
+                    }
+                }
+                if (System.nanoTime() > deadline){
+                    throw timeout();
+                }
+                Thread.sleep(POLL_MS);
+            }
+        }catch (IOException e){
+            jvmSlots.release();
+            throw new IllegalStateException("Unable to create the start up queue in " + folder, e);
+        }catch (InterruptedException e){
+            jvmSlots.release();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a start up slot", e);
+        }catch (RuntimeException e){
+            jvmSlots.release();
+            throw e;
+        }finally {
+            if (ticket != null){
+                deleteQuietly(ticket);
+            }
+        }
+    }
+
+    // Tickets older than the given one, deleting the ones of dead JVMs and the ones older than the queue timeout
+    // (their waiter gave up, or the pid can't be verified and was recycled)
+    private int waitersBefore(final Path ticket) throws IOException {
+        final String name = ticket.getFileName().toString();
+        final long now = System.currentTimeMillis();
+        int before = 0;
+        try (DirectoryStream<Path> tickets = Files.newDirectoryStream(queue)){
+            for (Path other : tickets){
+                final String otherName = other.getFileName().toString();
+                if (otherName.compareTo(name) >= 0){
+                    continue;
+                }
+                if (now - createdAtOf(otherName) <= queueTimeoutMs && Utils.isProcessAlive(pidOf(otherName))){
+                    before++;
+                }else {
+                    deleteQuietly(other);
+                }
+            }
+        }
+        return before;
+    }
+
+    private Slot tryLockAnySlot(final long queueNanos) throws IOException {
+        for (int i = 0; i < slots; i++){
+            synchronized (held){
+                if (held.contains(i)){
+                    continue;
+                }
+                final FileChannel channel = FileChannel.open(folder.resolve("slot-" + i + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = null;
+                try {
+                    lock = channel.tryLock();
+                }catch (OverlappingFileLockException e){
+                    // Held by another scheduler of this JVM
+                }
+                if (lock == null){
+                    channel.close();
+                    continue;
+                }
+                held.add(i);
+                return new Slot(i, channel, lock, queueNanos);
+            }
+        }
+        return null;
+    }
+
+    private IllegalStateException timeout(){
+        return new IllegalStateException("No start up slot free within " + queueTimeoutMs + " ms: " + slots
+                + " nodes are booting. See the " + MAX_CONCURRENT_PROPERTY + " and " + QUEUE_TIMEOUT_PROPERTY + " properties");
+    }
+
+    // <millis>-<pid>-<sequence>
+    private static long createdAtOf(final String ticket){
+        final String[] parts = ticket.split("-");
+        try {
+            return parts.length == 3 ? Long.parseLong(parts[0]) : 0;
+        }catch (NumberFormatException e){
+            return 0;
+        }
+    }
+
+    private static long pidOf(final String ticket){
+        final String[] parts = ticket.split("-");
+        try {
+            return parts.length == 3 ? Long.parseLong(parts[1]) : -1;
+        }catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    private static void deleteQuietly(final Path file){
+        try {
+            Files.deleteIfExists(file);
+        }catch (IOException e){
+            // shh
+        }
+    }
+
+    private static long readLong(final String property, final long defaultValue){
+        final String value = Config.getInstance().get(property);
+        if (value == null || "".equals(value.trim())){
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + property + ": " + value, e);
+        }
+    }
+}
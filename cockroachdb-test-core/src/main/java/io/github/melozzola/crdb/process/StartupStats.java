@@ -0,0 +1,212 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> JVM wide statistics of the {@link StartupMetrics} of all the cockroach db nodes.
+ * <p> For each phase it keeps the count, min and max of all the samples and the percentiles of the most recent
+ *     {@value #WINDOW} samples. It is registered in the platform MBean server as {@value #OBJECT_NAME}.
+ */
+public class StartupStats implements StartupStatsMXBean {
+
+    /**
+     * <p> The JMX object name.
+     */
+    public static final String OBJECT_NAME = "io.github.melozzola.crdb:type=StartupStats";
+
+    private static final int WINDOW = 1024;
+
+    private static final StartupStats INSTANCE = register(new StartupStats());
+
+    private final Map<StartupMetrics.Phase, Samples> samples = new EnumMap<>(StartupMetrics.Phase.class);
+
+    StartupStats() {
+        for (StartupMetrics.Phase phase : StartupMetrics.Phase.values()){
+            samples.put(phase, new Samples());
+        }
+    }
+
+    /**
+     * <p> Returns the JVM wide statistics.
+     *
+     * @return The statistics.
+     */
+    public static StartupStats getInstance(){
+        return INSTANCE;
+    }
+
+    /**
+     * <p> Adds the duration of a phase.
+     *
+     * @param phase The phase.
+     * @param nanos The duration in nanoseconds.
+     */
+    void record(final StartupMetrics.Phase phase, final long nanos){
+        final Samples phaseSamples = samples.get(phase);
+        synchronized (phaseSamples){
+            phaseSamples.add(nanos);
+        }
+    }
+
+    /**
+     * <p> Returns the statistics of a phase.
+     *
+     * @param phase The phase.
+     * @return The statistics.
+     */
+    public PhaseStats getPhase(final StartupMetrics.Phase phase){
+        final Samples phaseSamples = samples.get(phase);
+        synchronized (phaseSamples){
+            return phaseSamples.stats();
+        }
+    }
+
+    @Override
+    public Map<String, PhaseStats> getPhases() {
+        final Map<String, PhaseStats> phases = new LinkedHashMap<>();
+        for (StartupMetrics.Phase phase : StartupMetrics.Phase.values()){
+            phases.put(phase.name(), getPhase(phase));
+        }
+        return phases;
+    }
+
+    @Override
+    public void reset() {
+        for (Samples phaseSamples : samples.values()){
+            synchronized (phaseSamples){
+                phaseSamples.clear();
+            }
+        }
+    }
+
+    /**
+     * <p> Statistics of a phase. The durations are in milliseconds.
+     */
+    public static class PhaseStats {
+
+        private final long count;
+        private final double minMs;
+        private final double maxMs;
+        private final double p50Ms;
+        private final double p90Ms;
+        private final double p99Ms;
+
+        @ConstructorProperties({"count", "minMs", "maxMs", "p50Ms", "p90Ms", "p99Ms"})
+        public PhaseStats(final long count, final double minMs, final double maxMs, final double p50Ms, final double p90Ms, final double p99Ms) {
+            this.count = count;
+            this.minMs = minMs;
+            this.maxMs = maxMs;
+            this.p50Ms = p50Ms;
+            this.p90Ms = p90Ms;
+            this.p99Ms = p99Ms;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMinMs() {
+            return minMs;
+        }
+
+        public double getMaxMs() {
+            return maxMs;
+        }
+
+        public double getP50Ms() {
+            return p50Ms;
+        }
+
+        public double getP90Ms() {
+            return p90Ms;
+        }
+
+        public double getP99Ms() {
+            return p99Ms;
+        }
+
+        @Override
+        public String toString() {
+            return "PhaseStats{" +
+                    "count=" + count +
+                    ", minMs=" + minMs +
+                    ", maxMs=" + maxMs +
+                    ", p50Ms=" + p50Ms +
+                    ", p90Ms=" + p90Ms +
+                    ", p99Ms=" + p99Ms +
+                    '}';
+        }
+    }
+
+    // All time count/min/max and a ring of the most recent samples for the percentiles.
+    private static class Samples {
+
+        private final long[] window = new long[WINDOW];
+        private long count = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        private void add(final long nanos){
+            window[(int) (count % WINDOW)] = nanos;
+            count++;
+            min = Math.min(min, nanos);
+            max = Math.max(max, nanos);
+        }
+
+        private void clear(){
+            count = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+        }
+
+        private PhaseStats stats(){
+            if (count == 0){
+                return new PhaseStats(0, 0, 0, 0, 0, 0);
+            }
+            final long[] sorted = Arrays.copyOf(window, (int) Math.min(count, WINDOW));
+            Arrays.sort(sorted);
+            return new PhaseStats(count, millis(min), millis(max), millis(percentile(sorted, 50)), millis(percentile(sorted, 90)), millis(percentile(sorted, 99)));
+        }
+
+        // Nearest rank
+        private static long percentile(final long[] sorted, final int percentile){
+            final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(rank - 1, 0)];
+        }
+
+        private static double millis(final long nanos){
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    private static StartupStats register(final StartupStats stats){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(OBJECT_NAME));
+        }catch (Exception e){
+            // shh, already registered by another class loader or JMX not available.
+        }
+        return stats;
+    }
+}
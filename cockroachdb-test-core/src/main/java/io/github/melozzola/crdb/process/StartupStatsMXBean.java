@@ -0,0 +1,36 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import java.util.Map;
+
+/**
+ * <p> JMX view of the {@link StartupStats}, registered as {@value StartupStats#OBJECT_NAME}.
+ */
+public interface StartupStatsMXBean {
+
+    /**
+     * <p> Returns the statistics of each phase, by phase name (see {@link StartupMetrics.Phase}).
+     *
+     * @return The statistics.
+     */
+    Map<String, StartupStats.PhaseStats> getPhases();
+
+    /**
+     * <p> Clears the statistics.
+     */
+    void reset();
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.installer.Config;
+import io.github.melozzola.crdb.utils.Reaper;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p> Named templates of cockroach db disk stores.
+ * <p> A stopped disk store can be saved as a template ({@link #checkpoint(Path, String)}), and new nodes can boot from a copy
+ *     of the template ({@link #restore(String, Path)}) instead of re-running the database initialization.
+ * <p> The store files are copied in parallel. The {@code .sst} files are immutable once written, so they are hard linked
+ *     when the template and the store are on the same file system. All the other files (e.g. write ahead logs, manifest)
+ *     can be modified by the node and are always copied.
+ * <p> The templates are kept in the {@code templates.folder} folder ({@code java.io.tmpdir/crdb-templates} by default). See {@link Config}.
+ */
+public class StoreTemplates {
+
+    private static final String TEMPLATES_FOLDER_PROPERTY = "templates.folder";
+
+    private StoreTemplates(){}
+
+    /**
+     * <p> Saves a stopped disk store as a named template. An existing template with the same name is replaced.
+     *
+     * @param store The store folder. The node using it must be stopped.
+     * @param name The template name.
+     */
+    public static void checkpoint(final Path store, final String name){
+        if (!Files.isDirectory(store)){
+            throw new IllegalStateException("Store folder " + store + " not found");
+        }
+        final Path templates = templatesFolder();
+        final Path template = templates.resolve(name);
+        final Path tmpTemplate = templates.resolve(name + ".tmp-" + UUID.randomUUID());
+        try {
+            Files.createDirectories(templates);
+            copy(store, tmpTemplate);
+            if (Files.exists(template)) {
+                Reaper.getInstance().reap(template);
+            }
+            Files.move(tmpTemplate, template, StandardCopyOption.ATOMIC_MOVE);
+        }catch (Exception e){
+            Reaper.getInstance().reap(tmpTemplate);
+            throw new IllegalStateException("Unable to checkpoint the store " + store + " as template " + name, e);
+        }
+    }
+
+    /**
+     * <p> Copies a named template into a store folder.
+     *
+     * @param name The template name.
+     * @param store The store folder. It must not exist or be empty.
+     */
+    public static void restore(final String name, final Path store){
+        final Path template = templatesFolder().resolve(name);
+        if (!Files.isDirectory(template)){
+            throw new IllegalStateException("Store template " + name + " not found in " + templatesFolder());
+        }
+        try {
+            copy(template, store);
+        }catch (Exception e){
+            throw new IllegalStateException("Unable to restore the store template " + name + " into " + store, e);
+        }
+    }
+
+    /**
+     * <p> Checks if a named template exists.
+     *
+     * @param name The template name.
+     * @return {@code true} if the template exists.
+     */
+    public static boolean exists(final String name){
+        return Files.isDirectory(templatesFolder().resolve(name));
+    }
+
+    /**
+     * <p> Deletes a named template, if it exists.
+     *
+     * @param name The template name.
+     */
+    public static void delete(final String name){
+        Reaper.getInstance().reap(templatesFolder().resolve(name));
+    }
+
+    /**
+     * <p> Returns the folder of a disk store from the value of the {@code --store} flag, or {@code null} for memory stores.
+     *
+     * @param store The {@code --store} flag value (e.g. {@code /data}, {@code path=/data,size=20%} or {@code type=mem,size=1GiB}).
+     * @return The store folder or {@code null}.
+     */
+    static Path storeFolderOrNull(final String store){
+        if (store == null || store.contains("type=mem")){
+            return null;
+        }
+        for (String attribute : store.split(",")){
+            if (attribute.startsWith("path=")){
+                return Paths.get(attribute.substring("path=".length()));
+            }
+        }
+        return store.contains("=") ? null : Paths.get(store);
+    }
+
+    private static Path templatesFolder(){
+        final String folder = Config.getInstance().get(TEMPLATES_FOLDER_PROPERTY);
+        if (folder == null || "".equals(folder.trim())){
+            return Paths.get(System.getProperty("java.io.tmpdir"), "crdb-templates");
+        }
+        return Paths.get(folder.trim());
+    }
+
+    // Creates the folders, then links or copies the files in parallel.
+    private static void copy(final Path from, final Path to) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        files.parallelStream().forEach(file -> {
+            final Path target = to.resolve(from.relativize(file).toString());
+            try {
+                if (!file.getFileName().toString().endsWith(".sst") || !linkOrFalse(target, file)) {
+                    Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }catch (IOException e){
+                throw new IllegalStateException("Unable to copy " + file + " to " + target, e);
+            }
+        });
+    }
+
+    private static boolean linkOrFalse(final Path link, final Path existing){
+        try {
+            Files.createLink(link, existing);
+            return true;
+        }catch (Exception e){
+            // Different file systems or links not supported.
+            return false;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import io.github.melozzola.crdb.installer.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Deletes the cockroach db temporary folders in background.
+ * <p> A folder to delete is renamed to a tombstone ({@value #TOMBSTONE_PREFIX}...) and deleted on a bounded pool of daemon threads,
+ *     so the caller doesn't wait for the recursive delete.
+ *     Tombstones not deleted when the JVM exits are swept by the next JVM.
+ * <p> The space taken by the tombstones on the temporary folder is bounded by a quota: if the usable space of the file system
+ *     is below {@code reaper.min.free.mb} the caller waits for the pending deletes to complete and deletes the folder itself.
+ * <p> When first used, the reaper sweeps the {@code java.io.tmpdir} folder and the memory backed ones of the {@link TmpfsPlacement}:
+ *     data folders and tombstones left behind by crashed JVMs are deleted and their orphaned cockroach processes are killed.
+ * <p> The reaper is configured via the {@code reaper.threads} and {@code reaper.min.free.mb} properties. See {@link Config}.
+ */
+public class Reaper {
+
+    static final String TOMBSTONE_PREFIX = "crdb-tomb";
+
+    private static final String THREADS_PROPERTY = "reaper.threads";
+    private static final String MIN_FREE_PROPERTY = "reaper.min.free.mb";
+    private static final String PID_FILE = "pid.txt";
+
+    private static volatile Reaper instance = null;
+
+    private final ThreadPoolExecutor executor;
+    private final long minFreeBytes;
+    private int pending = 0;
+
+    /**
+     * <p> Returns the JVM wide reaper. The first call triggers the sweep of {@code java.io.tmpdir} and of the memory backed folders.
+     *
+     * @return The reaper.
+     */
+    public static Reaper getInstance(){
+        if (instance == null){
+            synchronized (Reaper.class){
+                if (instance == null){
+                    final Reaper reaper = new Reaper(readInt(THREADS_PROPERTY, 2), readInt(MIN_FREE_PROPERTY, 1024) * 1024L * 1024L);
+                    reaper.sweepInBackground(Paths.get(System.getProperty("java.io.tmpdir")));
+                    for (Path folder : TmpfsPlacement.getInstance().getCandidates()){
+                        reaper.sweepInBackground(folder);
+                    }
+                    instance = reaper;
+                }
+            }
+        }
+        return instance;
+    }
+
+    Reaper(final int threads, final long minFreeBytes) {
+        this.minFreeBytes = minFreeBytes;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "crdb-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * <p> Renames the folder to a tombstone and deletes it in background.
+     *     If the folder cannot be renamed it is deleted by the caller.
+     *
+     * @param folder The folder to delete.
+     */
+    public void reap(final Path folder){
+        if (folder == null || !Files.exists(folder)){
+            return;
+        }
+        final Path parent = folder.toAbsolutePath().getParent();
+        final Path tombstone = parent.resolve(TOMBSTONE_PREFIX + "-" + UUID.randomUUID());
+        try {
+            Files.move(folder, tombstone, StandardCopyOption.ATOMIC_MOVE);
+        }catch (Exception e){
+            Utils.recursiveDelete(folder);
+            return;
+        }
+
+        if (!hasEnoughSpace(parent)){
+            // Over quota: wait for the pending deletes and delete this one in place.
+            awaitPendingDeletes();
+            Utils.recursiveDelete(tombstone);
+            return;
+        }
+        submitDelete(tombstone);
+    }
+
+    /**
+     * <p> Waits until all the pending deletes are completed.
+     */
+    public void awaitPendingDeletes(){
+        synchronized (this){
+            while (pending > 0){
+                try {
+                    wait();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p> Deletes the data folders and tombstones left behind by dead JVMs in the given folder.
+     *     The cockroach processes still running from those folders are killed.
+     *
+     * @param tmpFolder The folder to sweep.
+     */
+    void sweep(final Path tmpFolder){
+        final long self = Utils.jvmPid();
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(tmpFolder, entry ->
+                Files.isDirectory(entry) &&
+                (entry.getFileName().toString().startsWith(Utils.DATA_FOLDER_PREFIX) || entry.getFileName().toString().startsWith(TOMBSTONE_PREFIX)))) {
+            for (Path folder : folders){
+                final Long owner = readLongOrNull(folder.resolve(Utils.OWNER_FILE));
+                if (owner == null || owner == self || Utils.isProcessAlive(owner)){
+                    // Unknown or alive owner, leave it alone.
+                    continue;
+                }
+                final Long cockroachPid = readLongOrNull(folder.resolve(PID_FILE));
+                if (cockroachPid != null){
+                    Utils.killCockroachProcess(cockroachPid);
+                }
+                // Already in background
+                Utils.recursiveDelete(folder);
+            }
+        }catch (IOException e){
+            // shh, best effort
+        }
+    }
+
+    private void sweepInBackground(final Path tmpFolder){
+        submit(() -> sweep(tmpFolder));
+    }
+
+    private void submitDelete(final Path tombstone){
+        submit(() -> Utils.recursiveDelete(tombstone));
+    }
+
+    private void submit(final Runnable task){
+        synchronized (this){
+            pending++;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                }finally {
+                    done();
+                }
+            });
+        }catch (RuntimeException e){
+            done();
+            throw e;
+        }
+    }
+
+    private void done(){
+        synchronized (this){
+            pending--;
+            notifyAll();
+        }
+    }
+
+    private boolean hasEnoughSpace(final Path folder){
+        try {
+            return Files.getFileStore(folder).getUsableSpace() >= minFreeBytes;
+        }catch (IOException e){
+            return true;
+        }
+    }
+
+    private static Long readLongOrNull(final Path file){
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private static int readInt(final String property, final int defaultValue){
+        final String value = Config.getInstance().get(property);
+        if (value == null || "".equals(value.trim())){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + property + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import io.github.melozzola.crdb.process.ProcessDetails;
+import io.github.melozzola.crdb.process.StartupMetrics;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p> Waits for a cockroach db process to be ready to accept connections.
+ * <p> The process is ready when
+ * <ul>
+ *     <li>the pid is known. It is taken from the {@link Process} handle when the JVM allows it (java 9+), otherwise from the pid file.</li>
+ *     <li>the listening url file has been written.</li>
+ *     <li>the port in the listening url accepts connections.</li>
+ * </ul>
+ * <p> The folder containing the files is watched with a {@link WatchService}, so the files are read as soon as they are written.
+ *     If the folder cannot be watched (or the events are late, like with polling watch services) the files are checked
+ *     with an adaptive polling: the interval starts at {@value #MIN_POLL_MS} ms and doubles up to {@value #MAX_POLL_MS} ms.
+ */
+public class StartupWatcher {
+
+    // (1:protocol)(2:domain)(3:port)(4:uri)
+    private static final Pattern URL_PATTERN = Pattern.compile("(postgresql?://)([^:^/]*):(\\d*)?(.*)?");
+
+    private static final long MIN_POLL_MS = 2;
+    private static final long MAX_POLL_MS = 100;
+
+    // Process.pid() is available from java 9
+    private static final Method PID_METHOD = pidMethodOrNull();
+
+    private final Process process;
+    private final Path pidFile;
+    private final Path urlFile;
+    private final long maxWaitTimeMs;
+    private final StartupMetrics metrics;
+    private final long startNanos = System.nanoTime();
+
+    private Long pid;
+    private String url;
+    private String host;
+    private Integer port;
+    private long socketNanos = 0;// when the pid and url are known
+
+    // Content of a file that was read without the trailing new line. It's accepted if stable in the following check.
+    private String partialPid;
+    private String partialUrl;
+
+    private StartupWatcher(final Process process, final Path pidFile, final Path urlFile, final long maxWaitTimeMs, final StartupMetrics metrics) {
+        this.process = process;
+        this.pidFile = pidFile;
+        this.urlFile = urlFile;
+        this.maxWaitTimeMs = maxWaitTimeMs;
+        this.metrics = metrics;
+    }
+
+    /**
+     * <p> Waits for cockroach db to start up.
+     *
+     * @param process The cockroach db process. If {@code null} the pid is read from the pid file and the process liveness is not checked.
+     * @param pidFromProcess If the process handle is the cockroach db server. It must be {@code false} when cockroach
+     *                       runs in background, in that case the pid is read from the pid file and the process liveness is not checked.
+     * @param pidFile The pid file where cockrach is writing the process pid
+     * @param urlFile The url file where cockroach is writing the url
+     * @param maxWaitTimeMs Maximum wait time in milliseconds.
+     * @return The process details.
+     */
+    public static ProcessDetails waitForStartup(final Process process, final boolean pidFromProcess, final Path pidFile, final Path urlFile, final long maxWaitTimeMs) {
+        return waitForStartup(process, pidFromProcess, pidFile, urlFile, maxWaitTimeMs, new StartupMetrics());
+    }
+
+    /**
+     * <p> Waits for cockroach db to start up, recording the duration of the {@link StartupMetrics.Phase#PID}, {@link StartupMetrics.Phase#URL}
+     *     and {@link StartupMetrics.Phase#SOCKET} phases. The first two are measured from the call of this method.
+     *
+     * @param process The cockroach db process. If {@code null} the pid is read from the pid file and the process liveness is not checked.
+     * @param pidFromProcess If the process handle is the cockroach db server. It must be {@code false} when cockroach
+     *                       runs in background, in that case the pid is read from the pid file and the process liveness is not checked.
+     * @param pidFile The pid file where cockrach is writing the process pid
+     * @param urlFile The url file where cockroach is writing the url
+     * @param maxWaitTimeMs Maximum wait time in milliseconds.
+     * @param metrics Where to record the phases.
+     * @return The process details, carrying the metrics.
+     */
+    public static ProcessDetails waitForStartup(final Process process, final boolean pidFromProcess, final Path pidFile, final Path urlFile, final long maxWaitTimeMs, final StartupMetrics metrics) {
+        final StartupWatcher watcher = new StartupWatcher(pidFromProcess ? process : null, pidFile, urlFile, maxWaitTimeMs, metrics);
+        if (watcher.process != null){
+            watcher.pid = pidOf(process);
+            watcher.recordSince(StartupMetrics.Phase.PID, watcher.startNanos);
+        }
+        return watcher.await();
+    }
+
+    private ProcessDetails await(){
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitTimeMs);
+        try (WatchService watchService = watchOrNull(urlFile.toAbsolutePath().getParent())) {
+            long pollMs = MIN_POLL_MS;
+            while (true) {
+                if (process != null && !process.isAlive()){
+                    throw new IllegalStateException("Cockroach db process exited with code " + process.exitValue() + " before starting up");
+                }
+
+                if (pid == null){
+                    pid = readPidOrNull();
+                    if (pid != null){
+                        recordSince(StartupMetrics.Phase.PID, startNanos);
+                    }
+                }
+                if (url == null){
+                    readUrlIfWritten();
+                    if (url != null){
+                        recordSince(StartupMetrics.Phase.URL, startNanos);
+                    }
+                }
+                if (pid != null && url != null){
+                    if (socketNanos == 0){
+                        socketNanos = System.nanoTime();
+                    }
+                    if (accepts(host, port)) {
+                        recordSince(StartupMetrics.Phase.SOCKET, socketNanos);
+                        return new ProcessDetails(pid, port, host, url, metrics);
+                    }
+                }
+
+                final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0){
+                    break;
+                }
+
+                final long waitMs = Math.min(pollMs, remainingMs);
+                if (watchService != null && (pid == null || url == null)){
+                    final WatchKey key = watchService.poll(waitMs, TimeUnit.MILLISECONDS);
+                    if (key != null){
+                        key.pollEvents();
+                        key.reset();
+                        pollMs = MIN_POLL_MS;
+                        continue;
+                    }
+                }else {
+                    Thread.sleep(waitMs);
+                }
+                pollMs = Math.min(pollMs * 2, MAX_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting fot cockroach to start up", e);
+        } catch (IOException e) {
+            // Only the watch service close can get here.
+            throw new IllegalStateException("Failed while waiting fot cockroach to start up", e);
+        }
+
+        throw new IllegalStateException("Timeout while waiting for cockroach db to start up " + port);
+    }
+
+    private void recordSince(final StartupMetrics.Phase phase, final long sinceNanos){
+        metrics.record(phase, System.nanoTime() - sinceNanos);
+    }
+
+    private Long readPidOrNull(){
+        final String content = readOrNull(pidFile);
+        if (content == null){
+            return null;
+        }
+        final String line = completeLineOrNull(content, partialPid);
+        partialPid = content;
+        if (line == null || !line.matches("^\\d+$")){
+            return null;
+        }
+        return Long.parseLong(line);
+    }
+
+    private void readUrlIfWritten(){
+        final String content = readOrNull(urlFile);
+        if (content == null){
+            return;
+        }
+        final String line = completeLineOrNull(content, partialUrl);
+        partialUrl = content;
+        if (line == null || !line.toLowerCase().startsWith("postgres")){
+            return;
+        }
+
+        final Matcher matcher = URL_PATTERN.matcher(line);
+        if (!matcher.find()){
+            throw new IllegalStateException("Cannot find the port number in the url: " + line);
+        }
+        String urlHost = matcher.group(2);
+        if (urlHost.indexOf('@') > 0){
+            urlHost = urlHost.substring(urlHost.indexOf('@')+1);
+        }
+        port = Integer.parseInt(matcher.group(3));
+        host = urlHost;
+        url = line;
+    }
+
+    /**
+     * <p> Returns the first line of the content if it has been completely written, {@code null} otherwise.
+     *     A line is complete if it's terminated by a new line or if the content didn't change since the previous read.
+     */
+    private static String completeLineOrNull(final String content, final String previousContent){
+        final int newLine = content.indexOf('\n');
+        if (newLine >= 0){
+            return content.substring(0, newLine).trim();
+        }
+        if (content.equals(previousContent)){
+            return content.trim();
+        }
+        return null;
+    }
+
+    private static String readOrNull(final Path file){
+        try {
+            final byte[] content = Files.readAllBytes(file);
+            return content.length == 0 ? null : new String(content, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e){
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean accepts(final String host, final int port){
+        try (SocketChannel ignored = SocketChannel.open(new InetSocketAddress(host, port))){
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static WatchService watchOrNull(final Path folder){
+        if (folder == null){
+            return null;
+        }
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            return watchService;
+        }catch (Exception e){
+            closeQuietly(watchService);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(final WatchService watchService){
+        if (watchService == null){
+            return;
+        }
+        try {
+            watchService.close();
+        }catch (IOException e){
+            // shh
+        }
+    }
+
+    /**
+     * <p> Returns the pid of the process or {@code null} if the JVM doesn't allow to get it.
+     *
+     * @param process The process.
+     * @return The pid or {@code null}.
+     */
+    public static Long pidOf(final Process process){
+        if (PID_METHOD == null){
+            return null;
+        }
+        try {
+            return (Long) PID_METHOD.invoke(process);
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private static Method pidMethodOrNull(){
+        try {
+            return Process.class.getMethod("pid");
+        }catch (NoSuchMethodException e){
+            return null;
+        }
+    }
+}
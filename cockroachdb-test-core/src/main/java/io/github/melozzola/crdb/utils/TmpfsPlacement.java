@@ -0,0 +1,320 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import io.github.melozzola.crdb.installer.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p> Chooses where the cockroach db work folders are created: on a memory backed file system ({@code /dev/shm} or another
+ *     tmpfs/ramfs mount listed in {@code /proc/mounts}) when there is one with enough free space, otherwise in {@code java.io.tmpdir}.
+ *     On a slow (e.g. network) temporary disk the tests using a disk store are bound by its I/O.
+ * <p> A memory file system is used only if, once the space needed by the node is taken, at least {@code placement.tmpfs.min.free.mb}
+ *     are left: its space is the memory of the machine. The candidates can be listed in {@code placement.tmpfs.dirs} (comma separated)
+ *     instead of being detected, and the placement disabled with {@code placement.tmpfs=false}. See {@link Config}.
+ * <p> A disk store on a memory file system is capped to {@code placement.store.reserve.mb} ({@code --store=path=...,size=...}),
+ *     and its temporary storage to {@code placement.temp.storage.mb} ({@code --max-disk-temp-storage}) unless set.
+ *     The space of the work folders placed by this JVM ( See {@link #reserveWorkFolder(boolean)} ) is reserved until they are released,
+ *     so the nodes created before their stores grow don't all land on the same memory file system.
+ */
+public class TmpfsPlacement {
+
+    private static final String ENABLED_PROPERTY = "placement.tmpfs";
+    private static final String DIRS_PROPERTY = "placement.tmpfs.dirs";
+    private static final String MIN_FREE_PROPERTY = "placement.tmpfs.min.free.mb";
+    private static final String STORE_RESERVE_PROPERTY = "placement.store.reserve.mb";
+    private static final String TEMP_STORAGE_PROPERTY = "placement.temp.storage.mb";
+    // Pid, url and log files of a node with an in memory store
+    private static final long WORK_FOLDER_BYTES = 64 * 1024L * 1024L;
+    private static final long MIB = 1024L * 1024L;
+    private static final Path DEV_SHM = Paths.get("/dev/shm");
+
+    private static volatile TmpfsPlacement instance = null;
+
+    private final List<Path> candidates;
+    private final Path fallback;
+    private final long minFreeBytes;
+    private final long storeReserveBytes;
+    private final long tempStorageMb;
+    // Bytes reserved by the live work folders of this JVM, per candidate
+    private final Map<Path, Long> reserved = new HashMap<>();
+
+    /**
+     * <p> The space of a work folder, reserved until released.
+     */
+    public class Reservation {
+
+        private final Path parent;
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Reservation(final Path parent, final long bytes) {
+            this.parent = parent;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return The folder where to create the work folder.
+         */
+        public Path getParent() {
+            return parent;
+        }
+
+        /**
+         * @return {@code true} if the folder is memory backed.
+         */
+        public boolean isMemoryBacked() {
+            return TmpfsPlacement.this.isMemoryBacked(parent);
+        }
+
+        /**
+         * <p> Releases the space, once the work folder is deleted or the node is stopped. Idempotent.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)){
+                unreserve(parent, bytes);
+            }
+        }
+    }
+
+    /**
+     * <p> Returns the placement configured via the {@code placement.*} properties.
+     *
+     * @return The placement.
+     */
+    public static TmpfsPlacement getInstance(){
+        if (instance == null){
+            synchronized (TmpfsPlacement.class){
+                if (instance == null){
+                    final Config config = Config.getInstance();
+                    final Path fallback = Paths.get(System.getProperty("java.io.tmpdir"));
+                    final List<Path> candidates;
+                    if ("false".equalsIgnoreCase(trimToEmpty(config.get(ENABLED_PROPERTY)))){
+                        candidates = Collections.emptyList();
+                    }else if (!trimToEmpty(config.get(DIRS_PROPERTY)).isEmpty()){
+                        candidates = new ArrayList<>();
+                        for (String dir : config.get(DIRS_PROPERTY).split(",")){
+                            if (!dir.trim().isEmpty()){
+                                candidates.add(Paths.get(dir.trim()));
+                            }
+                        }
+                    }else {
+                        candidates = memoryMounts(Paths.get("/proc/mounts"));
+                    }
+                    instance = new TmpfsPlacement(candidates, fallback, readLong(MIN_FREE_PROPERTY, 512) * MIB,
+                            readLong(STORE_RESERVE_PROPERTY, 1024) * MIB, readLong(TEMP_STORAGE_PROPERTY, 512));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * <p> Creates a placement.
+     *
+     * @param candidates The memory backed folders, in order of preference.
+     * @param fallback The folder used when no candidate has enough space.
+     * @param minFreeBytes The space to leave free on a candidate.
+     * @param storeReserveBytes The space taken by a disk store.
+     * @param tempStorageMb The temporary storage of a disk store on a candidate, in MiB.
+     */
+    TmpfsPlacement(final List<Path> candidates, final Path fallback, final long minFreeBytes, final long storeReserveBytes, final long tempStorageMb) {
+        this.candidates = Collections.unmodifiableList(new ArrayList<>(candidates));
+        this.fallback = fallback;
+        this.minFreeBytes = minFreeBytes;
+        this.storeReserveBytes = storeReserveBytes;
+        this.tempStorageMb = tempStorageMb;
+    }
+
+    /**
+     * <p> Returns the folder where to create the work folder of a node.
+     *
+     * @param withStore If the disk store of the node is in the work folder.
+     * @return The folder.
+     */
+    public Path parentForWorkFolder(final boolean withStore){
+        return parentFor(workFolderBytes(withStore));
+    }
+
+    /**
+     * <p> Chooses the folder where to create the work folder of a node, like {@link #parentForWorkFolder(boolean)}, and reserves
+     *     its space on a memory file system until the reservation is released.
+     *
+     * @param withStore If the disk store of the node is in the work folder.
+     * @return The reservation.
+     */
+    public synchronized Reservation reserveWorkFolder(final boolean withStore){
+        final long bytes = workFolderBytes(withStore);
+        final Path parent = parentFor(bytes);
+        if (isMemoryBacked(parent)){
+            reserved.merge(parent, bytes, Long::sum);
+        }
+        return new Reservation(parent, bytes);
+    }
+
+    /**
+     * @return The bytes reserved on the memory file systems by the work folders of this JVM not released yet.
+     */
+    public synchronized long getReservedBytes() {
+        long total = 0;
+        for (long bytes : reserved.values()){
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return The size (MiB) of a disk store on a memory file system.
+     */
+    public long getStoreReserveMb() {
+        return storeReserveBytes / MIB;
+    }
+
+    /**
+     * @return The {@code --max-disk-temp-storage} (MiB) of a disk store on a memory file system.
+     */
+    public long getTempStorageMb() {
+        return tempStorageMb;
+    }
+
+    /**
+     * <p> Returns the folder where to create a work folder.
+     *
+     * @param neededBytes The space the node is expected to use.
+     * @return The first writable memory backed folder with enough space, not counting the reserved one, otherwise {@code java.io.tmpdir}.
+     */
+    public synchronized Path parentFor(final long neededBytes){
+        for (Path candidate : candidates){
+            final long free = usableSpace(candidate) - reserved.getOrDefault(candidate, 0L);
+            if (Files.isDirectory(candidate) && Files.isWritable(candidate) && free - neededBytes >= minFreeBytes){
+                return candidate;
+            }
+        }
+        return fallback;
+    }
+
+    private synchronized void unreserve(final Path parent, final long bytes){
+        reserved.computeIfPresent(parent, (folder, total) -> total > bytes ? total - bytes : null);
+    }
+
+    private long workFolderBytes(final boolean withStore){
+        return withStore ? storeReserveBytes + tempStorageMb * MIB : WORK_FOLDER_BYTES;
+    }
+
+    /**
+     * <p> Tells if a folder is one of the memory backed folders.
+     *
+     * @param folder The folder.
+     * @return {@code true} if memory backed.
+     */
+    public boolean isMemoryBacked(final Path folder){
+        return candidates.contains(folder);
+    }
+
+    /**
+     * @return The memory backed folders, in order of preference.
+     */
+    public List<Path> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * <p> Lists the tmpfs and ramfs mount points, {@code /dev/shm} first. The system ones ({@code /sys}, {@code /proc}, {@code /dev}) are skipped.
+     *
+     * @param mounts The {@code /proc/mounts} file.
+     * @return The mount points, empty if the file cannot be read (e.g. not on Linux).
+     */
+    static List<Path> memoryMounts(final Path mounts){
+        final List<Path> points = new ArrayList<>();
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(mounts, StandardCharsets.UTF_8);
+        }catch (IOException | RuntimeException e){
+            return points;
+        }
+        for (String line : lines){
+            // <device> <mount point> <type> <options> ...
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4 || !("tmpfs".equals(fields[2]) || "ramfs".equals(fields[2])) || !fields[3].matches("(^|.*,)rw(,.*|$)")){
+                continue;
+            }
+            final Path point = Paths.get(unescape(fields[1]));
+            if (points.contains(point) || (!point.equals(DEV_SHM) && isSystem(point))){
+                continue;
+            }
+            if (point.equals(DEV_SHM)){
+                points.add(0, point);
+            }else {
+                points.add(point);
+            }
+        }
+        return points;
+    }
+
+    private static boolean isSystem(final Path point){
+        return point.startsWith("/sys") || point.startsWith("/proc") || point.startsWith("/dev");
+    }
+
+    // Spaces, tabs and backslashes are octal escaped (e.g. \040)
+    private static String unescape(final String field){
+        final StringBuilder unescaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++){
+            final char c = field.charAt(i);
+            if (c == '\\' && i + 3 < field.length() && field.substring(i + 1, i + 4).matches("[0-7]{3}")){
+                unescaped.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                i += 3;
+            }else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private static long usableSpace(final Path folder){
+        try {
+            return Files.getFileStore(folder).getUsableSpace();
+        }catch (IOException e){
+            return 0;
+        }
+    }
+
+    private static String trimToEmpty(final String value){
+        return value == null ? "" : value.trim();
+    }
+
+    private static long readLong(final String property, final long defaultValue){
+        final String value = trimToEmpty(Config.getInstance().get(property));
+        if (value.isEmpty()){
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        }catch (NumberFormatException e){
+            throw new IllegalStateException("Invalid " + property + ": " + value, e);
+        }
+    }
+}
@@ -15,31 +15,33 @@
  */
 package io.github.melozzola.crdb.utils;
 
+import io.github.melozzola.crdb.installer.ArchiveEntries;
+import io.github.melozzola.crdb.installer.BinaryCache;
 import io.github.melozzola.crdb.installer.Config;
-import io.github.melozzola.crdb.installer.Installer;
 import io.github.melozzola.crdb.process.ProcessDetails;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.channels.SocketChannel;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * <p> A bunch of utilities...
  */
 public class Utils {
 
-    // (1:protocol)(2:domain)(3:port)(4:uri)
-    private static final Pattern URL_PATTERN = Pattern.compile("(postgresql?://)([^:^/]*):(\\d*)?(.*)?");
-
     public static void waitFroFile(final Path file, long milliseconds){
 
         long totalWait = 0;
@@ -65,8 +67,8 @@ public class Utils {
 
     public static String readUrl(final Path urlFile){
         waitFroFile(urlFile, 5000);
-        try {
-            final Optional<String> url = Files.lines(urlFile).filter(s -> s != null && s.toLowerCase().startsWith("postgres")).findFirst();
+        try (Stream<String> lines = Files.lines(urlFile)) {
+            final Optional<String> url = lines.filter(s -> s != null && s.toLowerCase().startsWith("postgres")).findFirst();
             return url.orElseThrow(() -> new IllegalStateException("Url not found in file " + urlFile));
         } catch (Exception e) {
             throw new IllegalStateException("Unable to read the url from the file " + urlFile, e);
@@ -75,92 +77,77 @@ public class Utils {
 
     public static Long readPid(final Path pidFile){
         waitFroFile(pidFile, 5000);
-        try {
-            final Optional<String> pid = Files.lines(pidFile).filter(s -> s != null && s.matches("^\\d+$")).findFirst();
+        try (Stream<String> lines = Files.lines(pidFile)) {
+            final Optional<String> pid = lines.filter(s -> s != null && s.matches("^\\d+$")).findFirst();
             return pid.flatMap((Function<String, Optional<Long>>) s -> Optional.of(Long.parseLong(s))).orElseThrow(() -> new IllegalStateException("Pid not found in file " + pidFile));
         }catch (Exception e){
             throw new IllegalStateException("Unable to read the pid from the file " + pidFile, e);
         }
     }
 
-    private static boolean fileHasContent(final Path file){
-        try{
-            return Files.size(file) > 0;
-        }catch (Exception e){
-            return false;
-        }
-    }
-
     /**
-     * <p> Waits for cockroach db to start up.
+     * <p> Waits for cockroach db to start up. See {@link StartupWatcher}.
      *
      * @param pidFile The pid file where cockrach is writing the process pid
      * @param urlFile The url file where cockroach is writing the url
      * @param maxWaitTimeMs Maximum wait time in milliseconds.
+     * @return The process details.
      */
     public static ProcessDetails waitForStartup(final Path pidFile, final Path urlFile, long maxWaitTimeMs) {
-        long totalWait = 0;
-
-        String host = null;
-        Integer port = null;
-        Long pid = null;
-        String url = null;
-        while(totalWait < maxWaitTimeMs){
-
-            try {
-                Thread.sleep(100);
-                totalWait = totalWait + 100;
-            }catch (Exception e){
-                throw new IllegalStateException("Interrupted while waiting fot cockroach to start up", e);
-            }
-
-            if (pid == null && Files.exists(pidFile) && fileHasContent(pidFile)){
-                pid = readPid(pidFile);
-            }else{
-                continue;
-            }
-
-            if (url == null && Files.exists(urlFile) && fileHasContent(urlFile)){
-                url = readUrl(urlFile);
-                final Matcher matcher = URL_PATTERN.matcher(url);
-                if (!matcher.find()){
-                    throw new IllegalStateException("Cannot find the port number in the url: " + url);
-                }
-                port = Integer.parseInt(matcher.group(3));
-                host = matcher.group(2);
-                if (host.indexOf('@') > 0){
-                    host = host.substring(host.indexOf('@')+1);
-                }
+        return StartupWatcher.waitForStartup(null, false, pidFile, urlFile, maxWaitTimeMs);
+    }
 
-            }else{
-                continue;
-            }
+    /**
+     * <p> Prefix of the temporary folders created for the cockroachDB data.
+     */
+    public static final String DATA_FOLDER_PREFIX = "crdb-data";
 
-            final SocketAddress address = new InetSocketAddress(host, port);
-            try {
-                SocketChannel.open(address);
-                return new ProcessDetails(pid, port, host, url);
-            } catch (IOException e) {
-                // Shh
-            }
-        }
+    /**
+     * <p> File, inside the temporary data folder, containing the pid of the JVM that created the folder.
+     */
+    public static final String OWNER_FILE = "owner.pid";
 
-        throw new IllegalStateException("Timeout while waiting for cockroach db to start up " + port);
-    }
+    // ProcessHandle is available from java 9
+    private static final Method PROCESS_HANDLE_OF = processHandleMethodOrNull("of", long.class);
+    private static final Method PROCESS_HANDLE_IS_ALIVE = processHandleMethodOrNull("isAlive");
+    private static final Method PROCESS_HANDLE_DESTROY = processHandleMethodOrNull("destroyForcibly");
+    private static final Method PROCESS_HANDLE_INFO = processHandleMethodOrNull("info");
+    private static final Method PROCESS_INFO_COMMAND_LINE = processInfoMethodOrNull("commandLine");
+    private static final Method PROCESS_INFO_COMMAND = processInfoMethodOrNull("command");
 
     /**
      * <p> Utility method to create a tmp folder for the cockroachDB data.
+     *     The folder contains the {@value #OWNER_FILE} file, so that folders left behind by crashed JVMs can be recognised.
      *
      * @param parentFolder The parent folder
      * @return The temporary folder.
      */
     public static Path createTemporaryDataFolderIn(final String parentFolder) {
+        return createDataFolder(temporaryDataFolderIn(parentFolder));
+    }
+
+    /**
+     * <p> Utility method to choose a unique tmp folder for the cockroachDB data, without creating it.
+     *     See {@link #createDataFolder(Path)}.
+     *
+     * @param parentFolder The parent folder
+     * @return The temporary folder path.
+     */
+    public static Path temporaryDataFolderIn(final String parentFolder) {
+        return new File(parentFolder).toPath().resolve(DATA_FOLDER_PREFIX + UUID.randomUUID());
+    }
+
+    /**
+     * <p> Utility method to create a folder for the cockroachDB data, with the {@value #OWNER_FILE} file.
+     *
+     * @param folder The folder to create. It must not exist.
+     * @return The folder.
+     */
+    public static Path createDataFolder(final Path folder) {
         try {
-            File parent = new File(parentFolder);
-            File createdFolder = File.createTempFile("crdb-data", "", parent);
-            createdFolder.delete();
-            createdFolder.mkdir();
-            return createdFolder.toPath();
+            Files.createDirectory(folder);
+            Files.write(folder.resolve(OWNER_FILE), Long.toString(jvmPid()).getBytes(StandardCharsets.UTF_8));
+            return folder;
         }catch (Exception e){
             throw new IllegalStateException("Unable to create the cockroachDB data folder");
         }
@@ -168,6 +155,7 @@ public class Utils {
 
     /**
      * <p> Utility method to recursively delete a folder. Used to clean up the cockroachDB data after the test finished.
+     *     See {@link Reaper} to delete in background.
      *
      * @param folder The folder to delete.
      */
@@ -175,14 +163,155 @@ public class Utils {
         if (!Files.exists(folder)){
             return;
         }
-        File f = folder.toFile();
-        File[] files = f.listFiles();
-        if (files != null) {
-            for (File each : files) {
-                recursiveDelete(each.toPath());
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                    Files.deleteIfExists(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }catch (IOException e){
+            // shh, best effort
+        }
+    }
+
+    /**
+     * <p> Returns the pid of the running JVM.
+     *
+     * @return The JVM pid.
+     */
+    public static long jvmPid(){
+        // The runtime name is 'pid@hostname'
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        }catch (Exception e){
+            throw new IllegalStateException("Unable to get the JVM pid from " + name, e);
+        }
+    }
+
+    /**
+     * <p> Checks if a process is alive.
+     *
+     * @param pid The process pid.
+     * @return {@code true} if the process is alive. If it cannot be determined, {@code true}.
+     */
+    public static boolean isProcessAlive(final long pid){
+        final Object handle = processHandleOrNull(pid);
+        if (handle != null){
+            try {
+                return (Boolean) PROCESS_HANDLE_IS_ALIVE.invoke(handle);
+            }catch (Exception e){
+                return true;
+            }
+        }
+        if (PROCESS_HANDLE_OF != null){
+            return false;
+        }
+        final Path proc = Paths.get("/proc");
+        if (Files.isDirectory(proc)){
+            return Files.exists(proc.resolve(Long.toString(pid)));
+        }
+        return true;
+    }
+
+    /**
+     * <p> Forcibly kills a process, if it's a cockroach process. The command line is checked to avoid killing
+     *     a different process that got a recycled pid. If the command line cannot be read, the process is not killed.
+     *
+     * @param pid The process pid.
+     */
+    public static void killCockroachProcess(final long pid){
+        if (!isProcessAlive(pid) || !isCockroachProcess(pid)){
+            return;
+        }
+        final Object handle = processHandleOrNull(pid);
+        try {
+            if (handle != null) {
+                PROCESS_HANDLE_DESTROY.invoke(handle);
+            }else if ("win".equals(getOsId())) {
+                Runtime.getRuntime().exec(new String[]{"taskkill", "/F", "/PID", Long.toString(pid)}).waitFor();
+            }else {
+                Runtime.getRuntime().exec(new String[]{"kill", "-9", Long.toString(pid)}).waitFor();
             }
+        }catch (Exception e){
+            // shh, best effort
+        }
+    }
+
+    // If the process can't be verified it's not a cockroach process: better a leaked process than killing an unrelated one.
+    private static boolean isCockroachProcess(final long pid){
+        final Path cmdline = Paths.get("/proc", Long.toString(pid), "cmdline");
+        if (Files.exists(cmdline)){
+            try {
+                return new String(Files.readAllBytes(cmdline), StandardCharsets.UTF_8).contains("cockroach");
+            }catch (IOException e){
+                return false;
+            }
+        }
+        final String command = processCommandOrNull(pid);
+        return command != null && command.contains("cockroach");
+    }
+
+    // The command line (or only the executable, if the arguments are not available) via ProcessHandle.Info, from java 9
+    private static String processCommandOrNull(final long pid){
+        final Object handle = processHandleOrNull(pid);
+        if (handle == null || PROCESS_HANDLE_INFO == null){
+            return null;
+        }
+        try {
+            final Object info = PROCESS_HANDLE_INFO.invoke(handle);
+            for (Method method : new Method[]{PROCESS_INFO_COMMAND_LINE, PROCESS_INFO_COMMAND}){
+                if (method != null){
+                    final Optional<?> command = (Optional<?>) method.invoke(info);
+                    if (command.isPresent()){
+                        return command.get().toString();
+                    }
+                }
+            }
+            return null;
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private static Object processHandleOrNull(final long pid){
+        if (PROCESS_HANDLE_OF == null){
+            return null;
+        }
+        try {
+            return ((Optional<?>) PROCESS_HANDLE_OF.invoke(null, pid)).orElse(null);
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private static Method processHandleMethodOrNull(final String name, final Class<?>... parameterTypes){
+        try {
+            return Class.forName("java.lang.ProcessHandle").getMethod(name, parameterTypes);
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private static Method processInfoMethodOrNull(final String name){
+        try {
+            return Class.forName("java.lang.ProcessHandle$Info").getMethod(name);
+        }catch (Exception e){
+            return null;
         }
-        f.delete();
     }
 
     /**
@@ -196,41 +325,63 @@ public class Utils {
     }
 
     /**
-     * <p> Utility method to install the binaries in a temp folder.
-     *     The temp folder is always the same so is not installing the file at every test run.
+     * <p> Utility method to install the binaries in the {@link BinaryCache}.
+     *     The cache is persistent, so is not installing the file at every test run.
      *
      * @param version The version
      * @return The full path of the binary.
      */
     public static String installBinariesIfNeeded(final String version){
+        return installBinariesIfNeeded(version, BinaryCache.getInstance());
+    }
 
-        final File tmpFolder = new File(System.getProperty("java.io.tmpdir"), "crdb-bin");
-        if (!tmpFolder.exists()) {
-            tmpFolder.mkdirs();
-        }
+    /**
+     * <p> Utility method to install the binaries in the given {@link BinaryCache}.
+     *
+     * @param version The version
+     * @param cache The cache.
+     * @return The full path of the binary.
+     */
+    public static String installBinariesIfNeeded(final String version, final BinaryCache cache){
+        return installBinariesIfNeeded(version, cache, Config.getInstance());
+    }
+
+    /**
+     * <p> Utility method to install the binaries in the given {@link BinaryCache}, from the resources of the given configuration.
+     *
+     * @param version The version
+     * @param cache The cache.
+     * @param config The configuration with the binary resources.
+     * @return The full path of the binary.
+     */
+    public static String installBinariesIfNeeded(final String version, final BinaryCache cache, final Config config){
 
         final String osId = getOsId();
         final String binaryName = getBinaryName(osId, version);
-        final File binary = new File(tmpFolder, binaryName);
-        if (binary.exists()){
-            return binary.getAbsolutePath();
+        final Path cached = cache.lookup(binaryName);
+        if (cached != null){
+            return cached.toAbsolutePath().toString();
         }
 
         // Get the binary for the classpath first...
-        String resource = Config.getInstance().get(String.format("%s.%s.classpath", osId, version));
-        String compression = Config.getInstance().get(String.format("%s.%s.classpath.compression", osId, version));
+        String source = "classpath";
+        String resource = config.get(String.format("%s.%s.classpath", osId, version));
 
         // If binaries are not in the classpath, download from the web....
         if (resource == null){
-            resource = Config.getInstance().get(String.format("%s.%s.web", osId, version));
-            compression = Config.getInstance().get(String.format("%s.%s.web.compression", osId, version));
+            source = "web";
+            resource = config.get(String.format("%s.%s.web", osId, version));
         }
+        final String compression = config.get(String.format("%s.%s.%s.compression", osId, version, source));
+        final String sha256 = config.get(String.format("%s.%s.%s.sha256", osId, version, source));
+        final ArchiveEntries entries = ArchiveEntries.of(
+                config.get(String.format("%s.%s.%s.entry", osId, version, source)),
+                config.get(String.format("%s.%s.%s.files", osId, version, source)));
 
-        Installer.install(resource, tmpFolder.toPath(), binaryName, compression);
-        return binary.getAbsolutePath();
+        return cache.install(binaryName, resource, compression, sha256, entries).toAbsolutePath().toString();
     }
 
-    private static String getOsId(){
+    static String getOsId(){
 
         final String arch = System.getProperty("os.arch");
         final String osName = System.getProperty("os.name", "generic").toLowerCase(Locale.ENGLISH);
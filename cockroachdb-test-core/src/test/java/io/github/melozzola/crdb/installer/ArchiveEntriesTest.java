@@ -0,0 +1,51 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p> ArchiveEntries test
+ */
+public class ArchiveEntriesTest {
+
+    @Test
+    public void selectByNameOrGlob() {
+        final ArchiveEntries entries = ArchiveEntries.of(" cockroach ", "*/lib/*.so, LICENSE*");
+        Assert.assertTrue(entries.isBinary("cockroach-v20.2.3.linux-amd64/cockroach"));
+        Assert.assertTrue(entries.isBinary("./cockroach"));
+        Assert.assertFalse(entries.isBinary("cockroach-v20.2.3.linux-amd64/cockroach.sha256"));
+        Assert.assertTrue(entries.isFile("cockroach-v20.2.3.linux-amd64/lib/libgeos.so"));
+        Assert.assertFalse(entries.isFile("cockroach-v20.2.3.linux-amd64/lib/nested/libgeos.so"));
+        Assert.assertTrue(entries.isFile("cockroach-v20.2.3.linux-amd64/LICENSE.txt"));
+        Assert.assertTrue(entries.hasFiles());
+    }
+
+    @Test
+    public void firstFileByDefault() {
+        Assert.assertSame(ArchiveEntries.FIRST_FILE, ArchiveEntries.of(null, " "));
+        Assert.assertTrue(ArchiveEntries.FIRST_FILE.isBinary("anything/at/all"));
+        Assert.assertFalse(ArchiveEntries.FIRST_FILE.hasFiles());
+    }
+
+    @Test
+    public void filesAreExtractedWithoutTheReleaseFolder() {
+        Assert.assertEquals("lib/libgeos.so", ArchiveEntries.relativePath("cockroach-v20.2.3.linux-amd64/lib/libgeos.so"));
+        Assert.assertEquals("lib/libgeos.so", ArchiveEntries.relativePath("./cockroach-v20.2.3.linux-amd64/lib/libgeos.so"));
+        Assert.assertEquals("libgeos.so", ArchiveEntries.relativePath("libgeos.so"));
+    }
+}
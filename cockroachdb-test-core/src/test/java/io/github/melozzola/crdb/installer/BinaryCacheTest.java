@@ -0,0 +1,150 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * <p> BinaryCache test
+ */
+public class BinaryCacheTest {
+
+    private static final String STAND_IN = "classpath:/installer/stand-in-cockroach";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String standInSha256;
+
+    @Before
+    public void setUp() throws Exception {
+        // Registers the classpath protocol
+        Config.getInstance();
+        final byte[] standIn = Files.readAllBytes(Paths.get(getClass().getResource("/installer/stand-in-cockroach").toURI()));
+        standInSha256 = sha256(standIn);
+    }
+
+    @Test
+    public void installsByContentHash() throws Exception {
+        final BinaryCache cache = new BinaryCache(temporaryFolder.getRoot().toPath(), Long.MAX_VALUE);
+        Assert.assertNull(cache.lookup("cockroach-test"));
+
+        final Path binary = cache.install("cockroach-test", STAND_IN, null, standInSha256);
+        Assert.assertEquals(standInSha256, binary.getFileName().toString());
+        Assert.assertTrue(Files.isExecutable(binary));
+        Assert.assertEquals(binary, cache.lookup("cockroach-test"));
+
+        // Same content, different name: same object
+        Assert.assertEquals(binary, cache.install("cockroach-other", STAND_IN, null, null));
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws Exception {
+        final BinaryCache cache = new BinaryCache(temporaryFolder.getRoot().toPath(), Long.MAX_VALUE);
+        try {
+            cache.install("cockroach-test", STAND_IN, null, sha256("something else".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail("The checksum doesn't match");
+        }catch (IllegalStateException e){
+            Assert.assertTrue(e.getMessage().contains("Checksum mismatch"));
+        }
+        Assert.assertNull(cache.lookup("cockroach-test"));
+        try (Stream<Path> objects = Files.list(temporaryFolder.getRoot().toPath().resolve("objects"))) {
+            Assert.assertEquals(0, objects.count());
+        }
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedBinaries() throws Exception {
+        final Path folder = temporaryFolder.getRoot().toPath();
+        final Path objects = Files.createDirectories(folder.resolve("objects"));
+        final Path old = Files.write(objects.resolve("old"), new byte[100]);
+        final Path recent = Files.write(objects.resolve("recent"), new byte[100]);
+        Files.setLastModifiedTime(old, FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(recent, FileTime.fromMillis(2000));
+
+        final BinaryCache cache = new BinaryCache(folder, 250);
+        final Path binary = cache.install("cockroach-test", STAND_IN, null, null);
+
+        Assert.assertFalse(Files.exists(old));
+        Assert.assertTrue(Files.exists(recent));
+        Assert.assertTrue(Files.exists(binary));
+    }
+
+    @Test
+    public void evictionSkipsTheRecentlyUsedBinariesAndDeletesTheRefsOfTheEvictedOnes() throws Exception {
+        final Path folder = temporaryFolder.getRoot().toPath();
+        final Path objects = Files.createDirectories(folder.resolve("objects"));
+        final Path refs = Files.createDirectories(folder.resolve("refs"));
+        final Path old = Files.write(objects.resolve("old"), new byte[100]);
+        final Path used = Files.write(objects.resolve("used"), new byte[100]);
+        Files.setLastModifiedTime(old, FileTime.fromMillis(1000));
+        Files.write(refs.resolve("cockroach-old"), "old".getBytes(StandardCharsets.UTF_8));
+        Files.write(refs.resolve("cockroach-old-alias"), "old".getBytes(StandardCharsets.UTF_8));
+        Files.write(refs.resolve("cockroach-used"), "used".getBytes(StandardCharsets.UTF_8));
+        final Path oldFiles = Files.createDirectories(folder.resolve("files").resolve("old"));
+
+        final BinaryCache cache = new BinaryCache(folder, 50);
+        cache.evictIfNeeded(null);
+
+        Assert.assertFalse(Files.exists(old));
+        Assert.assertFalse(Files.exists(oldFiles));
+        Assert.assertFalse(Files.exists(refs.resolve("cockroach-old")));
+        Assert.assertFalse(Files.exists(refs.resolve("cockroach-old-alias")));
+        // Used just now: another JVM may be about to execute it, even if the cache is still too big
+        Assert.assertTrue(Files.exists(used));
+        Assert.assertEquals(used, cache.lookup("cockroach-used"));
+    }
+
+    @Test
+    public void installsTheOtherFilesWithTheBinary() throws Exception {
+        final Path served = temporaryFolder.newFolder("served").toPath();
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("cockroach-v20.2.3/cockroach", "binary".getBytes(StandardCharsets.UTF_8));
+        entries.put("cockroach-v20.2.3/lib/libgeos.so", "library".getBytes(StandardCharsets.UTF_8));
+        StandInServer.tgz(served.resolve("cockroach.tgz"), entries);
+
+        final BinaryCache cache = new BinaryCache(temporaryFolder.newFolder("cache").toPath(), Long.MAX_VALUE);
+        try (StandInServer server = new StandInServer(served)) {
+            // Cached without the files first, then again with them
+            final Path binary = cache.install("cockroach-test", server.url("cockroach.tgz"), "tgz", null);
+            Assert.assertFalse(Files.exists(cache.filesOf(binary)));
+            Assert.assertEquals(binary, cache.install("cockroach-test", server.url("cockroach.tgz"), "tgz", null, ArchiveEntries.of("cockroach", "*/lib/*")));
+            Assert.assertEquals("library", new String(Files.readAllBytes(cache.filesOf(binary).resolve("lib/libgeos.so")), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String sha256(final byte[] content) throws Exception {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content)){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
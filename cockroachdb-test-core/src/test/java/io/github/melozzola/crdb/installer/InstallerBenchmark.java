@@ -0,0 +1,125 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import io.github.melozzola.crdb.utils.Utils;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p> Throughput benchmark of the {@link Installer} pipeline against the previous single thread copy with a 4 KiB buffer.
+ * <p> A fake ~100 MB binary is packed as tgz and served by a local {@link StandInServer}, also through a slowed down link to
+ *     compare the pipeline with the download alone; the uncompressed stand in binary is installed from the classpath.
+ *     It is not run by the build, run it with:
+ * <pre>
+ *     {@code
+ *     ./mvnw -pl cockroachdb-test-core test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=io.github.melozzola.crdb.installer.InstallerBenchmark
+ *     }
+ * </pre>
+ */
+public class InstallerBenchmark {
+
+    private static final int SIZE = 100 * 1024 * 1024;
+    private static final int WARM_UP = 2;
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        // Registers the classpath protocol
+        Config.getInstance();
+        final Path root = Files.createTempDirectory("crdb-bench");
+        final Path served = Files.createDirectories(root.resolve("served"));
+        final Path binary = StandInServer.binary(served.resolve("cockroach"), SIZE);
+        StandInServer.tgz(binary, served.resolve("cockroach.tgz"));
+
+        try (StandInServer server = new StandInServer(served)){
+            final String tgz = server.url("cockroach.tgz");
+            run("tgz, legacy copy", root, file -> legacyInstall(tgz, file, false));
+            run("tgz, legacy copy, sha256, fsync", root, file -> legacyInstall(tgz, file, true));
+            run("tgz, pipeline", root, file -> Installer.download(tgz, "tgz", null, file));
+            // Slow link: the pipeline extracts while the archive is downloaded, so it should take about the download alone
+            server.slowDown(1);
+            run("tgz, download only, slow link", root, file -> new RangedDownloader(4, 0).download(new URL(tgz), file));
+            run("tgz, pipeline, slow link", root, file -> Installer.download(tgz, "tgz", null, file));
+            server.slowDown(0);
+            final String raw = server.url("cockroach");
+            run("none, legacy copy", root, file -> legacyCopy(new URL(raw).openStream(), file, false));
+            run("none, legacy copy, sha256, fsync", root, file -> legacyCopy(new URL(raw).openStream(), file, true));
+            run("none, transferFrom", root, file -> Installer.download(raw, null, null, file));
+            run("classpath, transferFrom", root, file -> Installer.download("classpath:/installer/stand-in-cockroach", null, null, file));
+        } finally {
+            Utils.recursiveDelete(root);
+        }
+    }
+
+    private interface Install {
+        void install(Path file) throws Exception;
+    }
+
+    private static void run(final String name, final Path root, final Install install) throws Exception {
+        final long[] nanos = new long[ITERATIONS];
+        long bytes = 0;
+        for (int i = 0; i < WARM_UP + ITERATIONS; i++){
+            final Path file = root.resolve("installed-" + i);
+            final long start = System.nanoTime();
+            install.install(file);
+            final long elapsed = System.nanoTime() - start;
+            bytes = Files.size(file);
+            Files.delete(file);
+            if (i >= WARM_UP){
+                nanos[i - WARM_UP] = elapsed;
+            }
+        }
+        Arrays.sort(nanos);
+        final double medianMs = nanos[ITERATIONS / 2] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        System.out.println(String.format("%-32s median %8.1f ms  %8.1f MB/s", name, medianMs, bytes / 1024.0 / 1024.0 / (medianMs / 1000.0)));
+    }
+
+    // The installation before the pipeline: one thread, 4 KiB buffer.
+    // With verify, it also does what the pipeline does on top of the copy (sha256 of the binary, fsync) for a fair comparison.
+    private static void legacyInstall(final String tgz, final Path file, final boolean verify) throws Exception {
+        final TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(new URL(tgz).openStream()));
+        while (tar.getNextTarEntry().isDirectory()){
+            // skip the folders
+        }
+        legacyCopy(tar, file, verify);
+    }
+
+    private static void legacyCopy(final InputStream source, final Path file, final boolean verify) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = source; FileOutputStream out = new FileOutputStream(file.toFile())){
+            final byte[] buffer = new byte[1024*4];
+            int len;
+            while ((len = in.read(buffer)) != -1){
+                out.write(buffer, 0, len);
+                if (verify){
+                    digest.update(buffer, 0, len);
+                }
+            }
+            if (verify){
+                out.getFD().sync();
+            }
+        }
+    }
+}
@@ -20,8 +20,23 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * <p> Installer test
@@ -55,4 +70,172 @@ public class InstallerTest {
         Path binary = destination.resolve("cockroach");
         Assert.assertTrue(Files.exists(binary));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void concurrentInstalls() throws Exception {
+
+        // Registers the classpath protocol
+        Config.getInstance();
+        final Path destination = temporaryFolder.newFolder("binaries").toPath();
+        // Left behind by a crashed installer, it must not block the installation
+        Files.write(destination.resolve("cockroach.tmp"), "partial".getBytes(StandardCharsets.UTF_8));
+        final byte[] expected = Files.readAllBytes(Paths.get(getClass().getResource("/installer/stand-in-cockroach").toURI()));
+
+        final int installers = 16;
+        final ExecutorService executor = Executors.newFixedThreadPool(installers);
+        final CountDownLatch go = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        try {
+            final List<Future<?>> installs = new ArrayList<>();
+            for (int i = 0; i < installers; i++){
+                installs.add(executor.submit(() -> {
+                    go.await();
+                    Installer.install("classpath:/installer/stand-in-cockroach", destination, "cockroach", null);
+                    // Visible only once completely written
+                    Assert.assertArrayEquals(expected, Files.readAllBytes(destination.resolve("cockroach")));
+                    return null;
+                }));
+            }
+            go.countDown();
+            for (Future<?> install : installs){
+                install.get(30, TimeUnit.SECONDS);
+            }
+        }finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+        Assert.assertTrue(Files.isExecutable(destination.resolve("cockroach")));
+        Assert.assertFalse(Files.exists(destination.resolve("cockroach.tmp")));
+    }
+
+    @Test
+    public void installTgzFromLocalServer() throws Exception {
+
+        final Path served = temporaryFolder.newFolder("served").toPath();
+        final Path binary = StandInServer.binary(served.resolve("cockroach"), 3 * 1024 * 1024 + 17);
+        final Path archive = StandInServer.tgz(binary, served.resolve("cockroach.tgz"));
+        final Path destination = temporaryFolder.newFolder("binaries").toPath();
+
+        try (StandInServer server = new StandInServer(served)){
+            final String sha256 = Installer.download(server.url("cockroach.tgz"), "tgz", sha256(Files.readAllBytes(archive)), destination.resolve("cockroach"));
+            Assert.assertEquals(sha256(Files.readAllBytes(binary)), sha256);
+            Assert.assertArrayEquals(Files.readAllBytes(binary), Files.readAllBytes(destination.resolve("cockroach")));
+
+            try {
+                Installer.download(server.url("cockroach.tgz"), "tgz", sha256(new byte[0]), destination.resolve("corrupted"));
+                Assert.fail("The checksum doesn't match");
+            }catch (IllegalStateException e){
+                Assert.assertTrue(e.getMessage().contains("Checksum mismatch"));
+            }
+            Assert.assertFalse(Files.exists(destination.resolve("corrupted")));
+
+            try {
+                Installer.download(server.url("missing.tgz"), "tgz", null, destination.resolve("missing"));
+                Assert.fail("The resource doesn't exist");
+            }catch (IllegalStateException e){
+                Assert.assertFalse(Files.exists(destination.resolve("missing")));
+            }
+        }
+    }
+
+    @Test
+    public void selectEntriesFromTgz() throws Exception {
+
+        final Path served = temporaryFolder.newFolder("served").toPath();
+        final Map<String, byte[]> entries = releaseEntries();
+        StandInServer.tgz(served.resolve("cockroach.tgz"), entries);
+        final Path destination = temporaryFolder.newFolder("binaries").toPath();
+
+        try (StandInServer server = new StandInServer(served)){
+            Installer.install(server.url("cockroach.tgz"), destination, "cockroach", "tgz", ArchiveEntries.of("cockroach", "*/lib/*.so"));
+        }
+
+        Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/cockroach"), Files.readAllBytes(destination.resolve("cockroach")));
+        Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/lib/libgeos.so"), Files.readAllBytes(destination.resolve("lib/libgeos.so")));
+        Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/lib/libgeos_c.so"), Files.readAllBytes(destination.resolve("lib/libgeos_c.so")));
+        Assert.assertFalse(Files.exists(destination.resolve("README")));
+        Assert.assertFalse(Files.exists(destination.resolve("share")));
+    }
+
+    @Test
+    public void installFromZip() throws Exception {
+
+        final Path served = temporaryFolder.newFolder("served").toPath();
+        final Map<String, byte[]> entries = releaseEntries();
+        StandInServer.zip(served.resolve("cockroach.zip"), entries);
+        final Path destination = temporaryFolder.newFolder("binaries").toPath();
+
+        try (StandInServer server = new StandInServer(served)){
+            // The first file of the archive
+            Installer.install(server.url("cockroach.zip"), destination, "readme", "zip");
+            Installer.install(server.url("cockroach.zip"), destination, "cockroach", "zip", ArchiveEntries.of("cockroach-v20.2.3/cockroach", "libgeos_c.so"));
+        }
+
+        Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/README"), Files.readAllBytes(destination.resolve("readme")));
+        Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/cockroach"), Files.readAllBytes(destination.resolve("cockroach")));
+        Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/lib/libgeos_c.so"), Files.readAllBytes(destination.resolve("lib/libgeos_c.so")));
+        Assert.assertFalse(Files.exists(destination.resolve("lib/libgeos.so")));
+    }
+
+    @Test
+    public void indexedArchivesAreReadUpToTheLastNeededEntry() throws Exception {
+
+        final Path served = temporaryFolder.newFolder("served").toPath();
+        final Map<String, byte[]> entries = releaseEntries();
+        final Path archive = StandInServer.tgz(served.resolve("cockroach.tgz"), entries);
+        final Path destination = temporaryFolder.newFolder("binaries").toPath();
+        final ArchiveEntries selection = ArchiveEntries.of("cockroach", "*/lib/*.so");
+
+        try (StandInServer server = new StandInServer(served)){
+            Installer.download(server.url("cockroach.tgz"), "tgz", selection, null, destination.resolve("first"), destination.resolve("first-files"));
+            try (Stream<Path> files = Files.list(destination)) {
+                Assert.assertTrue(files.anyMatch(file -> file.getFileName().toString().startsWith(".index-")));
+            }
+
+            // Truncated in the middle of the last entry: the indexed installation doesn't get there.
+            final byte[] content = Files.readAllBytes(archive);
+            Files.write(archive, Arrays.copyOf(content, content.length - 128 * 1024));
+            Installer.download(server.url("cockroach.tgz"), "tgz", selection, null, destination.resolve("second"), destination.resolve("second-files"));
+            Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/cockroach"), Files.readAllBytes(destination.resolve("second")));
+            Assert.assertArrayEquals(entries.get("cockroach-v20.2.3/lib/libgeos_c.so"), Files.readAllBytes(destination.resolve("second-files/lib/libgeos_c.so")));
+
+            // Without the index the whole archive is read
+            final Path other = temporaryFolder.newFolder("other").toPath();
+            try {
+                Installer.download(server.url("cockroach.tgz"), "tgz", selection, null, other.resolve("third"), other.resolve("third-files"));
+                Assert.fail("The archive is truncated");
+            }catch (IllegalStateException e){
+                Assert.assertFalse(Files.exists(other.resolve("third")));
+            }
+        }
+    }
+
+    // Like the newer releases: the binary, the geospatial libraries and other files.
+    private static Map<String, byte[]> releaseEntries(){
+        final Random random = new Random(7);
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("cockroach-v20.2.3/", new byte[0]);
+        entries.put("cockroach-v20.2.3/README", "Stand-in release".getBytes(StandardCharsets.UTF_8));
+        entries.put("cockroach-v20.2.3/cockroach", randomBytes(random, 300 * 1024));
+        entries.put("cockroach-v20.2.3/lib/", new byte[0]);
+        entries.put("cockroach-v20.2.3/lib/libgeos.so", randomBytes(random, 40 * 1024));
+        entries.put("cockroach-v20.2.3/lib/libgeos_c.so", randomBytes(random, 20 * 1024));
+        entries.put("cockroach-v20.2.3/share/big.bin", randomBytes(random, 1024 * 1024));
+        return entries;
+    }
+
+    private static byte[] randomBytes(final Random random, final int size){
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256(final byte[] content) throws Exception {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content)){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
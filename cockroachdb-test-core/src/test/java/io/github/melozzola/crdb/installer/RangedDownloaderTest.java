@@ -0,0 +1,126 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * <p> RangedDownloader test
+ */
+public class RangedDownloaderTest {
+
+    private static final int SIZE = 4 * 1024 * 1024 + 123;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void downloadsSegmentsInParallel() throws Exception {
+        final Path served = StandInServer.binary(temporaryFolder.newFolder("served").toPath().resolve("cockroach"), SIZE);
+        final Path part = temporaryFolder.getRoot().toPath().resolve("cockroach.part");
+        try (StandInServer server = new StandInServer(served.getParent())) {
+            new RangedDownloader(4, 0).download(new URL(server.url("cockroach")), part);
+            Assert.assertEquals(4, server.getRangeRequests());
+            Assert.assertEquals(SIZE, server.getServedBytes());
+        }
+        Assert.assertArrayEquals(Files.readAllBytes(served), Files.readAllBytes(part));
+        Assert.assertFalse(Files.exists(part.resolveSibling("cockroach.part.state")));
+    }
+
+    @Test
+    public void resumesAnInterruptedDownload() throws Exception {
+        final Path served = StandInServer.binary(temporaryFolder.newFolder("served").toPath().resolve("cockroach"), SIZE);
+        final Path part = temporaryFolder.getRoot().toPath().resolve("cockroach.part");
+        try (StandInServer server = new StandInServer(served.getParent())) {
+            server.dropAfter(512 * 1024);
+            try {
+                new RangedDownloader(4, 0).download(new URL(server.url("cockroach")), part);
+                Assert.fail("The connections are dropped");
+            }catch (IllegalStateException e){
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("The next download resumes from there"));
+            }
+            Assert.assertTrue(Files.exists(part));
+            Assert.assertTrue(Files.exists(part.resolveSibling("cockroach.part.state")));
+
+            server.dropAfter(-1);
+            new RangedDownloader(4, 0).download(new URL(server.url("cockroach")), part);
+            // Only the missing bytes are downloaded again, not the whole file
+            Assert.assertTrue(server.getServedBytes() < SIZE + SIZE / 2);
+        }
+        Assert.assertArrayEquals(Files.readAllBytes(served), Files.readAllBytes(part));
+        Assert.assertFalse(Files.exists(part.resolveSibling("cockroach.part.state")));
+    }
+
+    @Test
+    public void fallsBackToASingleRequestWithoutRanges() throws Exception {
+        final Path served = StandInServer.binary(temporaryFolder.newFolder("served").toPath().resolve("cockroach"), SIZE);
+        final Path part = temporaryFolder.getRoot().toPath().resolve("cockroach.part");
+        try (StandInServer server = new StandInServer(served.getParent())) {
+            server.disableRanges();
+            new RangedDownloader(4, 1).download(new URL(server.url("cockroach")), part);
+            Assert.assertEquals(0, server.getRangeRequests());
+        }
+        Assert.assertArrayEquals(Files.readAllBytes(served), Files.readAllBytes(part));
+    }
+
+    @Test
+    public void streamsTheResourceWhileItIsDownloaded() throws Exception {
+        final Path served = StandInServer.binary(temporaryFolder.newFolder("served").toPath().resolve("cockroach"), SIZE);
+        final Path part = temporaryFolder.getRoot().toPath().resolve("cockroach.part");
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (StandInServer server = new StandInServer(served.getParent())) {
+            server.slowDown(1);
+            try (InputStream in = new RangedDownloader(4, 0).stream(new URL(server.url("cockroach")), part)) {
+                final byte[] buffer = new byte[64 * 1024];
+                int len = in.read(buffer);
+                // The first bytes are read before the download is over
+                Assert.assertTrue(server.getServedBytes() < SIZE);
+                while (len != -1) {
+                    read.write(buffer, 0, len);
+                    len = in.read(buffer);
+                }
+            }
+        }
+        Assert.assertArrayEquals(Files.readAllBytes(served), read.toByteArray());
+        Assert.assertFalse(Files.exists(part));
+        Assert.assertFalse(Files.exists(part.resolveSibling("cockroach.part.state")));
+    }
+
+    @Test
+    public void closingTheStreamStopsTheDownload() throws Exception {
+        final Path served = StandInServer.binary(temporaryFolder.newFolder("served").toPath().resolve("cockroach"), SIZE);
+        final Path part = temporaryFolder.getRoot().toPath().resolve("cockroach.part");
+        try (StandInServer server = new StandInServer(served.getParent())) {
+            server.slowDown(2);
+            try (InputStream in = new RangedDownloader(4, 0).stream(new URL(server.url("cockroach")), part)) {
+                Assert.assertTrue(in.read(new byte[64 * 1024]) > 0);
+            }
+            Thread.sleep(200);
+            Assert.assertTrue(server.getServedBytes() < SIZE / 2);
+        }
+        Assert.assertFalse(Files.exists(part));
+        Assert.assertFalse(Files.exists(part.resolveSibling("cockroach.part.state")));
+    }
+}
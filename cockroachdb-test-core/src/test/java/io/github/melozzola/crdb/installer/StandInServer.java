@@ -0,0 +1,250 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.installer;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p> Local http server standing in for the cockroach db binaries web site. It serves the files of a folder.
+ * <p> It supports {@code HEAD} and single {@code Range} requests (unless disabled), and can drop the connections
+ *     after a number of bytes to simulate a flaky link.
+ */
+public class StandInServer implements AutoCloseable {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final HttpServer server;
+    private volatile boolean ranges = true;
+    private volatile long dropAfterBytes = -1;
+    private volatile long chunkDelayMs = 0;
+    private final AtomicLong servedBytes = new AtomicLong();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    public StandInServer(final Path folder) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "stand-in-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/", exchange -> {
+            final Path file = folder.resolve(exchange.getRequestURI().getPath().substring(1));
+            if (!Files.isRegularFile(file)){
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            final long size = Files.size(file);
+            if (ranges){
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            }
+            exchange.getResponseHeaders().add("ETag", "\"" + size + "-" + Files.getLastModifiedTime(file).toMillis() + "\"");
+            if ("HEAD".equals(exchange.getRequestMethod())){
+                exchange.getResponseHeaders().add("Content-Length", Long.toString(size));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+
+            long from = 0;
+            long to = size - 1;
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            final Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (ranges && matcher != null && matcher.matches()){
+                rangeRequests.incrementAndGet();
+                from = Long.parseLong(matcher.group(1));
+                to = Math.min(Long.parseLong(matcher.group(2)), size - 1);
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + size);
+                exchange.sendResponseHeaders(206, to - from + 1);
+            }else {
+                exchange.sendResponseHeaders(200, size);
+            }
+
+            try (OutputStream out = exchange.getResponseBody(); FileChannel channel = FileChannel.open(file)){
+                final long drop = dropAfterBytes;
+                final ByteBuffer buffer = ByteBuffer.allocate(8192);
+                long position = from;
+                long sent = 0;
+                while (position <= to){
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), to - position + 1));
+                    final int read = channel.read(buffer, position);
+                    if (drop >= 0 && sent + read > drop){
+                        // Flaky link: close the connection in the middle of the response
+                        out.write(buffer.array(), 0, (int) (drop - sent));
+                        servedBytes.addAndGet(drop - sent);
+                        throw new IOException("Dropped");
+                    }
+                    out.write(buffer.array(), 0, read);
+                    servedBytes.addAndGet(read);
+                    position += read;
+                    sent += read;
+                    if (chunkDelayMs > 0){
+                        try {
+                            Thread.sleep(chunkDelayMs);
+                        }catch (InterruptedException e){
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted");
+                        }
+                    }
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * <p> Disables the byte ranges: the range requests get the whole file.
+     */
+    public void disableRanges(){
+        ranges = false;
+    }
+
+    /**
+     * <p> Drops every response after the given number of bytes. -1 to disable.
+     *
+     * @param bytes The bytes sent before dropping the connection.
+     */
+    public void dropAfter(final long bytes){
+        dropAfterBytes = bytes;
+    }
+
+    /**
+     * <p> Slows down the responses: waits after every 8 KiB chunk. 0 to disable.
+     *
+     * @param millis The wait after each chunk.
+     */
+    public void slowDown(final long millis){
+        chunkDelayMs = millis;
+    }
+
+    public long getServedBytes(){
+        return servedBytes.get();
+    }
+
+    public int getRangeRequests(){
+        return rangeRequests.get();
+    }
+
+    public String url(final String file){
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/" + file;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    /**
+     * <p> Writes a fake binary of the given size. The content is compressible, like a real binary.
+     *
+     * @param file The file to write.
+     * @param size The size in bytes.
+     * @return The file.
+     * @throws IOException If the file cannot be written.
+     */
+    public static Path binary(final Path file, final int size) throws IOException {
+        final Random random = new Random(42);
+        final byte[] content = new byte[size];
+        for (int i = 0; i < size; i++){
+            // Few distinct values, ~3:1 compression ratio
+            content[i] = (byte) (random.nextInt(16) * random.nextInt(16));
+        }
+        return Files.write(file, content);
+    }
+
+    /**
+     * <p> Packs a file into a tgz archive, in a folder like the cockroach db releases.
+     *
+     * @param binary The file to pack.
+     * @param archive The archive to write.
+     * @return The archive.
+     * @throws IOException If the archive cannot be written.
+     */
+    public static Path tgz(final Path binary, final Path archive) throws IOException {
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(Files.newOutputStream(archive)))){
+            tar.putArchiveEntry(new TarArchiveEntry("cockroach/", TarArchiveEntry.LF_DIR));
+            tar.closeArchiveEntry();
+            final TarArchiveEntry entry = new TarArchiveEntry("cockroach/cockroach");
+            entry.setSize(Files.size(binary));
+            tar.putArchiveEntry(entry);
+            Files.copy(binary, tar);
+            tar.closeArchiveEntry();
+        }
+        return archive;
+    }
+
+    /**
+     * <p> Packs files into a tgz archive. Entries ending with / are folders.
+     *
+     * @param archive The archive to write.
+     * @param entries The content of the entries, by entry name, in order.
+     * @return The archive.
+     * @throws IOException If the archive cannot be written.
+     */
+    public static Path tgz(final Path archive, final Map<String, byte[]> entries) throws IOException {
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(Files.newOutputStream(archive)))){
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()){
+                final TarArchiveEntry tarEntry = entry.getKey().endsWith("/") ? new TarArchiveEntry(entry.getKey(), TarArchiveEntry.LF_DIR) : new TarArchiveEntry(entry.getKey());
+                tarEntry.setSize(entry.getValue().length);
+                tar.putArchiveEntry(tarEntry);
+                tar.write(entry.getValue());
+                tar.closeArchiveEntry();
+            }
+        }
+        return archive;
+    }
+
+    /**
+     * <p> Packs files into a zip archive. Entries ending with / are folders.
+     *
+     * @param archive The archive to write.
+     * @param entries The content of the entries, by entry name, in order.
+     * @return The archive.
+     * @throws IOException If the archive cannot be written.
+     */
+    public static Path zip(final Path archive, final Map<String, byte[]> entries) throws IOException {
+        try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(Files.newOutputStream(archive))){
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()){
+                zip.putArchiveEntry(new ZipArchiveEntry(entry.getKey()));
+                zip.write(entry.getValue());
+                zip.closeArchiveEntry();
+            }
+        }
+        return archive;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.jdbc;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> DatabasePool test, with the stand in driver.
+ */
+public class DatabasePoolTest {
+
+    private static StandInDriver driver;
+
+    @BeforeClass
+    public static void registerDriver() {
+        driver = StandInDriver.register();
+    }
+
+    @AfterClass
+    public static void deregisterDriver() {
+        driver.deregister();
+    }
+
+    @Test
+    public void theDatabasesAndUsersAreDroppedOnClose() throws Exception {
+        final String prefix = StandInDriver.PREFIX + "drop-";
+        final DatabasePool.Database database;
+        try (DatabasePool pool = new DatabasePool(name -> prefix + name, 2, null)) {
+            database = pool.acquire(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(pool.acquire(5, TimeUnit.SECONDS));
+        }
+        final List<String> statements = driver.database(prefix + "system").statements();
+        Assert.assertTrue(statements.contains("DROP USER IF EXISTS " + database.getUser()));
+        final String lastStatement = statements.get(statements.size() - 1);
+        Assert.assertTrue(lastStatement, lastStatement.startsWith("DROP USER IF EXISTS "));
+    }
+
+    @Test
+    public void acquireFailsWithTheCreationError() throws Exception {
+        final String prefix = StandInDriver.PREFIX + "failing-";
+        driver.database(prefix + "system").failOn("CREATE DATABASE");
+        try (DatabasePool pool = new DatabasePool(name -> prefix + name, 1, null)) {
+            final long start = System.currentTimeMillis();
+            try {
+                pool.acquire(1, TimeUnit.MINUTES);
+                Assert.fail("The database cannot be created");
+            }catch (IllegalStateException e){
+                Assert.assertTrue(e.getCause().getMessage().contains("CREATE DATABASE"));
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(30));
+        }
+    }
+
+    @Test
+    public void acquireWaitsForTheDatabasesInUse() throws Exception {
+        final String prefix = StandInDriver.PREFIX + "in-use-";
+        try (DatabasePool pool = new DatabasePool(name -> prefix + name, 2, null)) {
+            final DatabasePool.Database first = pool.acquire(5, TimeUnit.SECONDS);
+            final DatabasePool.Database second = pool.acquire(5, TimeUnit.SECONDS);
+            driver.database(prefix + "system").failOn("CREATE DATABASE");
+            pool.release(first);
+            // The first database can't be re-created, the second one is still in use
+            Thread.sleep(1000);
+            driver.database(prefix + "system").failOn(null);
+            final Thread releaser = new Thread(() -> {
+                try {
+                    Thread.sleep(300);
+                }catch (InterruptedException e){
+                    return;
+                }
+                pool.release(second);
+            });
+            releaser.start();
+            Assert.assertEquals(second.getName(), pool.acquire(5, TimeUnit.SECONDS).getName());
+            releaser.join();
+        }
+    }
+
+    @Test
+    public void initializerFailuresAreRetried() throws Exception {
+        final String prefix = StandInDriver.PREFIX + "retry-";
+        final int[] calls = {0};
+        try (DatabasePool pool = new DatabasePool(name -> prefix + name, 1, (connection, database) -> {
+            if (++calls[0] == 1) {
+                throw new IllegalStateException("First initialization fails");
+            }
+        })) {
+            Assert.assertNotNull(pool.acquire(5, TimeUnit.SECONDS));
+            Assert.assertEquals(2, calls[0]);
+        }
+    }
+}
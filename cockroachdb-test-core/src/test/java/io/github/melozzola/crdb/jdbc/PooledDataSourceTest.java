@@ -0,0 +1,143 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.jdbc;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> PooledDataSource test
+ */
+public class PooledDataSourceTest {
+
+    private static StandInDriver driver;
+
+    @BeforeClass
+    public static void registerDriver() {
+        driver = StandInDriver.register();
+    }
+
+    @AfterClass
+    public static void deregisterDriver() {
+        driver.deregister();
+    }
+
+    @Test
+    public void connectionsAreOpenedInBackgroundAndReused() throws Exception {
+        final String url = StandInDriver.PREFIX + "warm";
+        try (PooledDataSource dataSource = new PooledDataSource(url, "root", "", 3)){
+            waitFor(() -> dataSource.getIdleConnections() == 3);
+            Assert.assertEquals(3, driver.database(url).opened());
+
+            for (int i = 0; i < 10; i++){
+                try (Connection connection = dataSource.getConnection()){
+                    connection.setAutoCommit(false);
+                }
+            }
+            Assert.assertEquals(3, driver.database(url).opened());
+            Assert.assertEquals(3, dataSource.getIdleConnections());
+        }
+        Assert.assertEquals(0, driver.database(url).open());
+    }
+
+    @Test
+    public void theConnectionsInUseAreBounded() throws Exception {
+        final String url = StandInDriver.PREFIX + "bounded";
+        try (PooledDataSource dataSource = new PooledDataSource(url, "root", "", 1)){
+            dataSource.setLoginTimeout(1);
+            final Connection first = dataSource.getConnection();
+            final CompletableFuture<Connection> second = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return dataSource.getConnection();
+                }catch (SQLException e){
+                    throw new IllegalStateException(e);
+                }
+            });
+            Thread.sleep(200);
+            Assert.assertFalse(second.isDone());
+
+            first.close();
+            Assert.assertTrue(first.isClosed());
+            try {
+                first.createStatement();
+                Assert.fail("The connection has been returned to the pool");
+            }catch (SQLException e){
+                // expected
+            }
+            second.get(5, TimeUnit.SECONDS).close();
+            Assert.assertEquals(1, driver.database(url).opened());
+
+            final Connection busy = dataSource.getConnection();
+            try {
+                dataSource.getConnection();
+                Assert.fail("No connection should be available");
+            }catch (SQLException e){
+                // expected
+            }
+            busy.close();
+        }
+    }
+
+    @Test
+    public void closeWaitsForTheConnectionsInUse() throws Exception {
+        final String url = StandInDriver.PREFIX + "drain";
+        final PooledDataSource dataSource = new PooledDataSource(url, "root", "", 2);
+        final Connection connection = dataSource.getConnection();
+        final CompletableFuture<Void> closing = CompletableFuture.runAsync(dataSource::close);
+        Thread.sleep(200);
+        Assert.assertFalse(closing.isDone());
+        Assert.assertEquals(1, driver.database(url).open());
+
+        connection.close();
+        closing.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, driver.database(url).open());
+        try {
+            dataSource.getConnection();
+            Assert.fail("The data source is closed");
+        }catch (SQLException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void theStatementCacheIsEnabled() {
+        Assert.assertEquals("jdbc:postgresql://localhost:26257/system?sslmode=disable&prepareThreshold=1&preparedStatementCacheQueries=256",
+                PooledDataSource.withStatementCache("jdbc:postgresql://localhost:26257/system?sslmode=disable", 1, 256));
+        Assert.assertEquals("jdbc:postgresql://localhost:26257/system?prepareThreshold=3&preparedStatementCacheQueries=256",
+                PooledDataSource.withStatementCache("jdbc:postgresql://localhost:26257/system?prepareThreshold=3", 1, 256));
+        Assert.assertEquals("jdbc:postgresql://localhost:26257/system?prepareThreshold=1&preparedStatementCacheQueries=16",
+                PooledDataSource.withStatementCache("jdbc:postgresql://localhost:26257/system", 1, 16));
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void waitFor(final Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.met()){
+            Assert.assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
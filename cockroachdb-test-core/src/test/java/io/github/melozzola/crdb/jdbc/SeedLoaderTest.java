@@ -0,0 +1,171 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.jdbc;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p> SeedLoader test
+ */
+public class SeedLoaderTest {
+
+    private static StandInDriver driver;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void registerDriver() {
+        driver = StandInDriver.register();
+    }
+
+    @AfterClass
+    public static void deregisterDriver() {
+        driver.deregister();
+    }
+
+    @Test
+    public void csvRowsAreInsertedInParallelMultiRowBatches() throws Exception {
+        final Path csv = temporaryFolder.getRoot().toPath().resolve("logs.csv");
+        try (Writer writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)){
+            writer.write("id,log\n");
+            for (int i = 0; i < 2500; i++){
+                writer.write(i + ",value " + i + "\n");
+            }
+        }
+
+        final String url = StandInDriver.PREFIX + "csv";
+        final StringBuilder printed = new StringBuilder();
+        final SeedLoader.Report report;
+        try (PooledDataSource dataSource = new PooledDataSource(url, "root", "", 3)){
+            report = SeedLoader.into(dataSource).batchSize(1000).threads(2).reportTo(printed).csv(csv, "test.logs").load();
+        }
+
+        Assert.assertEquals(2500, report.getRows());
+        Assert.assertFalse("The stand in driver doesn't support COPY", report.getResults().get(0).isCopy());
+        Assert.assertEquals(report.toString(), printed.toString());
+
+        final List<Integer> batches = new ArrayList<>();
+        final Set<Object> ids = new HashSet<>();
+        final List<String> statements = driver.database(url).statements();
+        final List<List<Object>> parameters = driver.database(url).parameters();
+        for (int i = 0; i < statements.size(); i++){
+            Assert.assertTrue(statements.get(i).startsWith("INSERT INTO test.logs (id, log) VALUES (?, ?), (?, ?)"));
+            batches.add(parameters.get(i).size() / 2);
+            for (int j = 0; j < parameters.get(i).size(); j += 2){
+                ids.add(parameters.get(i).get(j));
+            }
+        }
+        batches.sort(null);
+        Assert.assertEquals(Arrays.asList(500, 1000, 1000), batches);
+        Assert.assertEquals(2500, ids.size());
+    }
+
+    @Test
+    public void theWritersAreCappedToThePoolSize() throws Exception {
+        final Path csv = temporaryFolder.getRoot().toPath().resolve("small-pool.csv");
+        try (Writer writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)){
+            writer.write("id,log\n");
+            for (int i = 0; i < 250; i++){
+                writer.write(i + ",value " + i + "\n");
+            }
+        }
+
+        final String url = StandInDriver.PREFIX + "small-pool";
+        final SeedLoader.Report report;
+        final long start = System.currentTimeMillis();
+        try (PooledDataSource dataSource = new PooledDataSource(url, "root", "", 1)){
+            report = SeedLoader.into(dataSource).batchSize(100).csv(csv, "test.logs").load();
+        }
+        Assert.assertEquals(250, report.getRows());
+        Assert.assertEquals(3, driver.database(url).statements().size());
+        // No writer waited for a connection
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public void sqlStatementsAreExecutedInOrder() {
+        final String url = StandInDriver.PREFIX + "sql";
+        final SeedLoader.Report report;
+        try (PooledDataSource dataSource = new PooledDataSource(url, "root", "", 1)){
+            report = SeedLoader.into(dataSource).batchSize(2).sql("/seed/schema.sql").load();
+        }
+        Assert.assertEquals(3, report.getRows());
+        Assert.assertEquals(Arrays.asList(
+                "CREATE DATABASE IF NOT EXISTS test",
+                "CREATE TABLE IF NOT EXISTS test.logs (id INT PRIMARY KEY, log STRING)",
+                "INSERT INTO test.logs (id, log) VALUES (0, 'it''s; here')"), driver.database(url).statements());
+    }
+
+    @Test
+    public void failuresNameTheFile() throws Exception {
+        final Path csv = temporaryFolder.getRoot().toPath().resolve("broken.csv");
+        Files.write(csv, "id,log\n1,one\n2,two\n".getBytes(StandardCharsets.UTF_8));
+        final String url = StandInDriver.PREFIX + "failure";
+        driver.database(url).failOn("INSERT");
+        try (PooledDataSource dataSource = new PooledDataSource(url, "root", "", 2)){
+            SeedLoader.into(dataSource).csv(csv, "test.logs").load();
+            Assert.fail("The insert fails");
+        }catch (IllegalStateException e){
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("broken.csv"));
+        }
+
+        Files.write(csv, "id,log\n1,one\n2\n".getBytes(StandardCharsets.UTF_8));
+        driver.database(url).failOn(null);
+        try (PooledDataSource dataSource = new PooledDataSource(url, "root", "", 2)){
+            SeedLoader.into(dataSource).csv(csv, "test.logs").load();
+            Assert.fail("The second row has a missing value");
+        }catch (IllegalStateException e){
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("Record 3"));
+        }
+    }
+
+    @Test
+    public void csvValuesCanBeQuoted() throws IOException {
+        final SeedLoader.CsvReader csv = new SeedLoader.CsvReader(new StringReader(
+                "id,log\r\n1,\"a, \"\"quoted\"\"\nvalue\"\r\n\n2,\n3,\"\"\n"));
+        Assert.assertArrayEquals(new String[]{"id", "log"}, csv.next());
+        Assert.assertArrayEquals(new String[]{"1", "a, \"quoted\"\nvalue"}, csv.next());
+        Assert.assertArrayEquals(new String[]{"2", null}, csv.next());
+        Assert.assertArrayEquals(new String[]{"3", ""}, csv.next());
+        Assert.assertNull(csv.next());
+    }
+
+    @Test
+    public void copyTextIsEscaped() {
+        Assert.assertEquals("1\ta\\tb\\\\c\\nd\n2\t\\N\n",
+                SeedLoader.copyText(Arrays.asList(new String[]{"1", "a\tb\\c\nd"}, new String[]{"2", null})));
+        Assert.assertEquals("COPY test.logs (id, log) FROM STDIN", SeedLoader.copySql("test.logs", new String[]{"id", "log"}));
+        Assert.assertEquals("INSERT INTO test.logs (id, log) VALUES (?, ?), (?, ?)", SeedLoader.insertSql("test.logs", new String[]{"id", "log"}, 2));
+    }
+}
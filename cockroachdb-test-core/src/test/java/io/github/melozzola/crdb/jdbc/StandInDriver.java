@@ -0,0 +1,252 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.jdbc;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * <p> Jdbc driver of {@code jdbc:crdb-stand-in:<name>} urls, standing in for cockroach db in the tests.
+ *     It counts the connections and records the executed statements, with their parameters. Nothing is stored.
+ */
+class StandInDriver implements Driver {
+
+    static final String PREFIX = "jdbc:crdb-stand-in:";
+    // setNull marker, the parameters are kept in a concurrent map
+    private static final Object NULL = new Object();
+
+    private final Map<String, Database> databases = new ConcurrentHashMap<>();
+
+    /**
+     * <p> What happened on the connections to a url.
+     */
+    static class Database {
+        private final AtomicInteger opened = new AtomicInteger(0);
+        private final AtomicInteger open = new AtomicInteger(0);
+        private final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+        private final List<List<Object>> parameters = Collections.synchronizedList(new ArrayList<>());
+        private volatile String failOn;
+
+        int opened(){
+            return opened.get();
+        }
+
+        int open(){
+            return open.get();
+        }
+
+        List<String> statements(){
+            synchronized (statements){
+                return new ArrayList<>(statements);
+            }
+        }
+
+        List<List<Object>> parameters(){
+            synchronized (parameters){
+                return new ArrayList<>(parameters);
+            }
+        }
+
+        // The statements containing the given text fail
+        void failOn(final String text){
+            this.failOn = text;
+        }
+
+        private void execute(final String sql, final List<Object> values) throws SQLException {
+            if (failOn != null && sql.contains(failOn)){
+                throw new SQLException("Stand in failure on " + sql);
+            }
+            synchronized (this){
+                statements.add(sql);
+                parameters.add(values);
+            }
+        }
+    }
+
+    static StandInDriver register(){
+        final StandInDriver driver = new StandInDriver();
+        try {
+            DriverManager.registerDriver(driver);
+        }catch (SQLException e){
+            throw new IllegalStateException(e);
+        }
+        return driver;
+    }
+
+    void deregister(){
+        try {
+            DriverManager.deregisterDriver(this);
+        }catch (SQLException e){
+            // shh
+        }
+    }
+
+    Database database(final String url){
+        // Without the url parameters
+        final int parameters = url.indexOf('?');
+        return databases.computeIfAbsent(parameters < 0 ? url : url.substring(0, parameters), key -> new Database());
+    }
+
+    @Override
+    public Connection connect(final String url, final Properties info) {
+        if (!acceptsURL(url)){
+            return null;
+        }
+        final Database database = database(url);
+        database.opened.incrementAndGet();
+        database.open.incrementAndGet();
+        // auto commit, closed
+        final boolean[] state = {true, false};
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "close":
+                    if (!state[1]){
+                        state[1] = true;
+                        database.open.decrementAndGet();
+                    }
+                    return null;
+                case "isClosed":
+                    return state[1];
+                case "getAutoCommit":
+                    return state[0];
+                case "setAutoCommit":
+                    state[0] = (Boolean) args[0];
+                    return null;
+                case "createStatement":
+                    return statement(database);
+                case "prepareStatement":
+                    return preparedStatement(database, (String) args[0]);
+                case "unwrap":
+                    throw new SQLException("Not a wrapper");
+                case "isWrapperFor":
+                    return false;
+                default:
+                    return defaults(proxy, method.getName(), args, url);
+            }
+        });
+    }
+
+    private static Statement statement(final Database database){
+        final List<String> batch = new ArrayList<>();
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{Statement.class}, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "addBatch":
+                    batch.add((String) args[0]);
+                    return null;
+                case "executeBatch":
+                    final int[] counts = new int[batch.size()];
+                    for (String sql : batch){
+                        database.execute(sql, Collections.emptyList());
+                    }
+                    batch.clear();
+                    return counts;
+                case "execute":
+                    database.execute((String) args[0], Collections.emptyList());
+                    return false;
+                case "executeUpdate":
+                    database.execute((String) args[0], Collections.emptyList());
+                    return 0;
+                default:
+                    return defaults(proxy, method.getName(), args, "statement");
+            }
+        });
+    }
+
+    private static PreparedStatement preparedStatement(final Database database, final String sql){
+        final Map<Integer, Object> values = new ConcurrentHashMap<>();
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "setObject":
+                case "setString":
+                    values.put((Integer) args[0], args[1]);
+                    return null;
+                case "setNull":
+                    values.put((Integer) args[0], NULL);
+                    return null;
+                case "executeUpdate":
+                case "execute":
+                    final Object[] ordered = new Object[values.size()];
+                    for (Map.Entry<Integer, Object> value : values.entrySet()){
+                        ordered[value.getKey() - 1] = value.getValue() == NULL ? null : value.getValue();
+                    }
+                    values.clear();
+                    database.execute(sql, Arrays.asList(ordered));
+                    return "execute".equals(method.getName()) ? (Object) false : (Object) 1;
+                default:
+                    return defaults(proxy, method.getName(), args, sql);
+            }
+        });
+    }
+
+    private static Object defaults(final Object proxy, final String method, final Object[] args, final String description){
+        switch (method){
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return description;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) {
+        return url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
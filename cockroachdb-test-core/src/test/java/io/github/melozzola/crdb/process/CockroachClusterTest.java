@@ -0,0 +1,81 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.utils.StubCockroach;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> CockroachCluster test, using a stub executable.
+ */
+public class CockroachClusterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private StubCockroach stub;
+    private CockroachCluster cluster;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeFalse(System.getProperty("os.name").toLowerCase().contains("win"));
+        stub = new StubCockroach(temporaryFolder.getRoot().toPath(), "0.1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cluster != null && !cluster.getNodes().isEmpty()) {
+            try {
+                cluster.shutDown();
+            }catch (IllegalStateException e){
+                // shh, failed to start up
+            }
+        }
+        stub.close();
+    }
+
+    @Test
+    public void theStartUpWaitsForTheGossipOfEveryNode() throws Exception {
+        cluster = CockroachCluster.builder().nodes(3).executable(stub.getExecutable().toString()).build();
+        final List<ProcessDetails> nodes = cluster.startUp();
+        Assert.assertEquals(3, nodes.size());
+        // The stub gossips the nodes one second after they are up
+        final Path gossip = temporaryFolder.getRoot().toPath().resolve("cockroach-stub.gossip");
+        Assert.assertEquals(3, Files.readAllLines(gossip, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void theJoinersDontTakeTheSlotOfTheFirstNode() throws Exception {
+        // The joiners can't boot until the first node is up: holding the only slot they would wait for it until the timeout
+        final StartupScheduler scheduler = new StartupScheduler(temporaryFolder.newFolder("crdb-startup").toPath(), 1, TimeUnit.MINUTES.toMillis(1));
+        cluster = CockroachCluster.builder().nodes(4).executable(stub.getExecutable().toString()).startupWaitTime(20000).scheduler(scheduler).build();
+        final long start = System.currentTimeMillis();
+        Assert.assertEquals(4, cluster.startUp().size());
+        Assert.assertTrue(System.currentTimeMillis() - start < 15000);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.utils.StubCockroach;
+import io.github.melozzola.crdb.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <p> CockroachPool test, using a stub executable.
+ */
+public class CockroachPoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private StubCockroach stub;
+    private CockroachPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeFalse(System.getProperty("os.name").toLowerCase().contains("win"));
+        stub = new StubCockroach(temporaryFolder.getRoot().toPath(), "0.1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        if (stub != null) {
+            stub.close();
+        }
+    }
+
+    private Cockroach.Builder stubBuilder() {
+        return Cockroach.builder().executable(stub.getExecutable().toString());
+    }
+
+    @Test
+    public void theSameConfigurationIsLeasedOnce() throws Exception {
+        pool = new CockroachPool(0);
+        final Cockroach duplicate = stubBuilder().build();
+        try (CockroachPool.Lease first = pool.lease(stubBuilder().build());
+             CockroachPool.Lease second = pool.lease(duplicate)) {
+            Assert.assertEquals(first.getProcessDetails().getPid(), second.getProcessDetails().getPid());
+            Assert.assertSame(first.getLogs(), second.getLogs());
+        }
+        // The duplicate has been discarded, it can't be started anymore
+        try {
+            duplicate.startUp();
+            Assert.fail("The duplicate builder should have been discarded");
+        }catch (IllegalStateException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void theLastLeaseOutShutsDownTheProcess() throws Exception {
+        pool = new CockroachPool(0);
+        final CockroachPool.Lease first = pool.lease(stubBuilder().build());
+        final CockroachPool.Lease second = pool.lease(stubBuilder().build());
+        final long pid = first.getProcessDetails().getPid();
+
+        first.close();
+        first.close();// closing twice releases once
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+
+        second.close();
+        waitForDeath(pid);
+    }
+
+    @Test
+    public void idleProcessesAreShutDownAfterTheTimeToLive() throws Exception {
+        pool = new CockroachPool(300);
+        final CockroachPool.Lease first = pool.lease(stubBuilder().build());
+        final long pid = first.getProcessDetails().getPid();
+        first.close();
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+
+        // Leased again within the time to live: the same process
+        final CockroachPool.Lease second = pool.lease(stubBuilder().build());
+        Assert.assertEquals(pid, second.getProcessDetails().getPid());
+        Thread.sleep(500);
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+
+        second.close();
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+        waitForDeath(pid);
+    }
+
+    @Test
+    public void differentConfigurationsGetDifferentProcesses() throws Exception {
+        pool = new CockroachPool(0);
+        try (CockroachPool.Lease first = pool.lease(stubBuilder().build());
+             CockroachPool.Lease second = pool.lease(stubBuilder().locality("region=eu").build())) {
+            Assert.assertNotEquals(first.getProcessDetails().getPid(), second.getProcessDetails().getPid());
+        }
+    }
+
+    private static void waitForDeath(final long pid) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (Utils.isProcessAlive(pid)){
+            Assert.assertTrue("The process is still running", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+}
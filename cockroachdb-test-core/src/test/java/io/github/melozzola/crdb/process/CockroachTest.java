@@ -0,0 +1,193 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.utils.StubCockroach;
+import io.github.melozzola.crdb.utils.TmpfsPlacement;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> Cockroach process test, using a stub executable.
+ */
+public class CockroachTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private StubCockroach stub;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeFalse(System.getProperty("os.name").toLowerCase().contains("win"));
+        stub = new StubCockroach(temporaryFolder.getRoot().toPath(), "0.1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (stub != null) {
+            stub.close();
+        }
+    }
+
+    private Cockroach.Builder stubBuilder() {
+        return Cockroach.builder().executable(stub.getExecutable().toString());
+    }
+
+    @Test
+    public void startUpAndShutDown() throws Exception {
+        final Cockroach cockroach = stubBuilder().build();
+        final ProcessDetails details = cockroach.startUp();
+        Assert.assertEquals(stub.getPort(), details.getPort());
+        cockroach.shutDown();
+    }
+
+    @Test
+    public void reportsTheEffectiveResources() throws Exception {
+        final Cockroach cockroach = stubBuilder().resources(ResourceProfile.defaults().totalMemory(32L * 1024L * 1024L * 1024L).nodesPerHost(8)).build();
+        Assert.assertTrue(cockroach.getFlags().getFlags().contains(" --cache=256MiB --"));
+        final ProcessDetails details = cockroach.startUp();
+        Assert.assertEquals("default", details.getResources().getProfile());
+        Assert.assertEquals(256, details.getResources().getMaxSqlMemoryMiB());
+        cockroach.shutDown();
+    }
+
+    @Test
+    public void theDiskStoreIsInTheWorkFolder() throws Exception {
+        final Cockroach cockroach = stubBuilder().diskStore().build();
+        cockroach.startUp();
+        final Path store = StoreTemplates.storeFolderOrNull(cockroach.getFlags().getStore());
+        Assert.assertEquals(cockroach.getFlags().getPidFile().getParent(), store.getParent());
+        final Path parent = store.getParent().getParent();
+        if (TmpfsPlacement.getInstance().isMemoryBacked(parent)){
+            // Capped on a memory file system
+            Assert.assertTrue(cockroach.getFlags().getStore(), cockroach.getFlags().getStore().endsWith(",size=" + TmpfsPlacement.getInstance().getStoreReserveMb() + "MiB"));
+        }else {
+            Assert.assertEquals(Paths.get(System.getProperty("java.io.tmpdir")), parent);
+        }
+        cockroach.shutDown();
+    }
+
+    @Test
+    public void theWorkFolderIsReservedOnlyByTheStartUp() throws Exception {
+        final TmpfsPlacement tmpfs = TmpfsPlacement.getInstance();
+        final long reserved = tmpfs.getReservedBytes();
+        // E.g. the nodes of lazy rules never used
+        for (int i = 0; i < 10; i++){
+            stubBuilder().diskStore().build();
+        }
+        Assert.assertEquals(reserved, tmpfs.getReservedBytes());
+
+        final Cockroach cockroach = stubBuilder().diskStore().build();
+        cockroach.startUp();
+        if (tmpfs.isMemoryBacked(cockroach.getFlags().getPidFile().getParent().getParent())){
+            Assert.assertTrue(tmpfs.getReservedBytes() > reserved);
+        }
+        cockroach.shutDown();
+        Assert.assertEquals(reserved, tmpfs.getReservedBytes());
+    }
+
+    @Test
+    public void recordsTheStartUpAndShutDownPhases() throws Exception {
+        final long socketSamples = StartupStats.getInstance().getPhase(StartupMetrics.Phase.SOCKET).getCount();
+        final Cockroach cockroach = stubBuilder().build();
+        final ProcessDetails details = cockroach.startUp();
+        final StartupMetrics metrics = details.getStartupMetrics();
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.EXEC) >= 0);
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.PID) >= 0);
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.URL) >= 0);
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.SOCKET) >= 0);
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.QUEUE) >= 0);
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.BOOT) >= metrics.getNanos(StartupMetrics.Phase.SOCKET));
+        // Executable given, nothing installed
+        Assert.assertEquals(-1, metrics.getNanos(StartupMetrics.Phase.INSTALL));
+        Assert.assertEquals(-1, metrics.getNanos(StartupMetrics.Phase.SHUTDOWN));
+
+        cockroach.shutDown();
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.SHUTDOWN) >= 0);
+        Assert.assertTrue(metrics.getNanos(StartupMetrics.Phase.CLEANUP) >= 0);
+        Assert.assertTrue(StartupStats.getInstance().getPhase(StartupMetrics.Phase.SOCKET).getCount() > socketSamples);
+        Assert.assertTrue(StartupStats.getInstance().getPhases().containsKey("CLEANUP"));
+        Assert.assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(StartupStats.OBJECT_NAME), "Phases"));
+    }
+
+    @Test
+    public void startUpAsyncAndShutDownAsync() throws Exception {
+        final Cockroach cockroach = stubBuilder().build();
+        final CompletableFuture<ProcessDetails> startUp = cockroach.startUpAsync();
+
+        // Concurrent start ups are rejected
+        final CompletableFuture<ProcessDetails> second = cockroach.startUpAsync();
+        try {
+            second.get(5, TimeUnit.SECONDS);
+            Assert.fail("Second start up should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // The shut down waits for the start up
+        final CompletableFuture<Void> shutDown = cockroach.shutDownAsync();
+        Assert.assertEquals(stub.getPort(), startUp.get(10, TimeUnit.SECONDS).getPort());
+        shutDown.get(10, TimeUnit.SECONDS);
+
+        try {
+            cockroach.shutDownAsync().get(5, TimeUnit.SECONDS);
+            Assert.fail("Second shut down should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void failedStartUpIsReportedByTheFuture() throws Exception {
+        final Cockroach cockroach = Cockroach.builder().executable("/bin/false").startupWaitTime(2000).build();
+        try {
+            cockroach.startUpAsync().get(10, TimeUnit.SECONDS);
+            Assert.fail("Start up should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // A failed start up leaves the process stopped
+        Assert.assertTrue(cockroach.shutDownAsync().isCompletedExceptionally());
+    }
+
+    @Test
+    public void installationErrorsAreThrownByTheStartUp() throws Exception {
+        // Doesn't throw: the installation runs in background
+        final Cockroach cockroach = Cockroach.builder().version("v0.0.0-missing").build();
+        try {
+            cockroach.startUp();
+            Assert.fail("The version is not configured");
+        } catch (IllegalStateException e) {
+            // The installation error itself, not a wrapper
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("v0.0.0-missing"));
+        }
+        Assert.assertTrue(cockroach.shutDownAsync().isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p> LogBuffer test
+ */
+public class LogBufferTest {
+
+    @Test
+    public void keepsTheLinesInOrder() {
+        final LogBuffer buffer = new LogBuffer(1024);
+        write(buffer, "first", "second", "third");
+
+        Assert.assertEquals(Arrays.asList("first", "second", "third"), buffer.lines());
+        Assert.assertEquals(Arrays.asList("second", "third"), buffer.tail(2));
+        Assert.assertTrue(buffer.contains("eco"));
+        Assert.assertFalse(buffer.contains("fourth"));
+    }
+
+    @Test
+    public void evictsTheOldestLinesWhenFull() {
+        // Room for 3 lines of 6 bytes (4 bytes header each), so the writes wrap around the end of the buffer
+        final LogBuffer buffer = new LogBuffer(32);
+        for (int i = 0; i < 100; i++){
+            write(buffer, "line" + (i % 10) + "x");
+        }
+
+        final List<String> lines = buffer.lines();
+        Assert.assertEquals(Arrays.asList("line7x", "line8x", "line9x"), lines);
+        Assert.assertEquals(100, buffer.getTotalLines());
+
+        final StringBuilder out = new StringBuilder();
+        buffer.dump(out);
+        Assert.assertEquals("crdb> [97 older lines not kept]\ncrdb> line7x\ncrdb> line8x\ncrdb> line9x\n", out.toString());
+    }
+
+    @Test
+    public void truncatesLinesLongerThanTheBuffer() {
+        final LogBuffer buffer = new LogBuffer(8);
+        write(buffer, "a very long line");
+
+        Assert.assertEquals(Arrays.asList("a ve"), buffer.lines());
+    }
+
+    private static void write(final LogBuffer buffer, final String... lines){
+        for (String line : lines){
+            final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            buffer.line(bytes, 0, bytes.length);
+        }
+    }
+}
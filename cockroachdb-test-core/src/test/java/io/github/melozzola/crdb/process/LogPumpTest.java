@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> LogPump test
+ */
+public class LogPumpTest {
+
+    @Test
+    public void pumpsLinesUntilTheEndOfTheStream() throws Exception {
+        final Process process = new ProcessBuilder("sh", "-c", "printf 'first\\r\\nsecond\\n\\nlast'").start();
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch closed = new CountDownLatch(1);
+        LogPump.pump(process, process.getInputStream(), new LineSink() {
+            @Override
+            public void line(final byte[] buffer, final int offset, final int length) {
+                lines.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        });
+
+        Assert.assertTrue("The sink must be closed at the end of the stream", closed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(4, lines.size());
+        Assert.assertEquals("first", lines.get(0));
+        Assert.assertEquals("second", lines.get(1));
+        Assert.assertEquals("", lines.get(2));
+        Assert.assertEquals("last", lines.get(3));
+    }
+
+    @Test
+    public void longLinesAreSplitOnACharacterBoundary() throws Exception {
+        // 8191 bytes, then a two bytes character across the split
+        final Process process = new ProcessBuilder("sh", "-c", "head -c 8191 /dev/zero | tr '\\000' a; printf '\\303\\251\\n'").start();
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch closed = new CountDownLatch(1);
+        LogPump.pump(process, process.getInputStream(), collect(lines, closed));
+
+        Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals(8191, lines.get(0).length());
+        Assert.assertEquals("\u00e9", lines.get(1));
+    }
+
+    @Test
+    public void aPipeHeldByADescendantDoesNotStallTheOtherStreams() throws Exception {
+        // A dead process whose pipe is still open, e.g. held by a --background child
+        final Process dead = new ProcessBuilder("true").start();
+        dead.waitFor(10, TimeUnit.SECONDS);
+        final PipedOutputStream held = new PipedOutputStream();
+        LogPump.pump(dead, new PipedInputStream(held), LineSink.DISCARD);
+        // Let the pump notice the dead process
+        Thread.sleep(200);
+
+        final Process process = new ProcessBuilder("sh", "-c", "echo other").start();
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch closed = new CountDownLatch(1);
+        LogPump.pump(process, process.getInputStream(), collect(lines, closed));
+        Assert.assertTrue("The other stream must still be pumped", closed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonList("other"), lines);
+        held.close();
+    }
+
+    @Test
+    public void writesPrefixedLinesToTheAppendable() throws Exception {
+        final Process process = new ProcessBuilder("sh", "-c", "for i in 1 2 3; do echo line-$i; done").start();
+        final StringBuffer out = new StringBuffer();
+        LogPump.pump(process, process.getInputStream(), new AppendableSink(out, LogPump.WRITERS));
+        process.waitFor(10, TimeUnit.SECONDS);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!out.toString().contains("line-3") && System.nanoTime() < deadline){
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("crdb> line-1\ncrdb> line-2\ncrdb> line-3\n", out.toString());
+    }
+
+    @Test
+    public void dropsLinesWhenTheAppendableIsTooSlow() throws Exception {
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final StringBuffer out = new StringBuffer();
+        final Appendable slow = new Appendable() {
+            @Override
+            public Appendable append(final CharSequence csq) {
+                try {
+                    unblock.await();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                out.append(csq);
+                return this;
+            }
+
+            @Override
+            public Appendable append(final CharSequence csq, final int start, final int end) {
+                return append(csq.subSequence(start, end));
+            }
+
+            @Override
+            public Appendable append(final char c) {
+                return append(String.valueOf(c));
+            }
+        };
+
+        final AppendableSink sink = new AppendableSink(slow, LogPump.WRITERS);
+        final byte[] line = "line".getBytes(StandardCharsets.UTF_8);
+        // Waits for the stuck writer once, then drops
+        for (int i = 0; i < 10000; i++){
+            sink.line(line, 0, line.length);
+        }
+        sink.close();
+        unblock.countDown();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!out.toString().contains("lines dropped") && System.nanoTime() < deadline){
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(out.toString().contains("lines dropped, the output is too slow]"));
+        Assert.assertTrue(sink.getDroppedLines() > 0);
+    }
+
+    private static LineSink collect(final List<String> lines, final CountDownLatch closed){
+        return new LineSink() {
+            @Override
+            public void line(final byte[] buffer, final int offset, final int length) {
+                lines.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+    }
+}
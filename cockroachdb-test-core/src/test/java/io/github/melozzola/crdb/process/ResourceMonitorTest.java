@@ -0,0 +1,116 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.utils.Utils;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> ResourceMonitor test, with a fake {@code /proc} and with this JVM.
+ */
+public class ResourceMonitorTest {
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void parsesStatAndStatus() {
+        // The command name can contain spaces and parentheses
+        Assert.assertEquals(1234 + 56, ResourceMonitor.parseCpuTicks("42 (cockroach (x) y) S 1 42 42 0 -1 4194560 100 0 0 0 1234 56 0 0 20 0 12 0 100 200 300"));
+        Assert.assertEquals(-1, ResourceMonitor.parseCpuTicks("42 (cockroach) S 1"));
+        Assert.assertEquals(2048, ResourceMonitor.parseRssKb(Arrays.asList("Name:\tcockroach", "VmHWM:\t    4096 kB", "VmRSS:\t    2048 kB")));
+        Assert.assertEquals(-1, ResourceMonitor.parseRssKb(Collections.singletonList("Name:\tcockroach")));
+    }
+
+    @Test
+    public void reportsPeakAndAverage() throws Exception {
+        final Path proc = temporaryFolder.newFolder("proc").toPath();
+        // Only the first and the last sample
+        final ResourceMonitor monitor = new ResourceMonitor(proc, HOUR_MS, 8);
+        fakeProcess(proc, 100, 1024);
+        final ResourceMonitor.Watch watch = monitor.watch(42);
+        Assert.assertEquals(1, watch.getUsage().getSamples());
+
+        Thread.sleep(50);
+        fakeProcess(proc, 150, 3072);
+        watch.close();
+        // Idempotent
+        watch.close();
+        final ResourceMonitor.Usage usage = watch.getUsage();
+        Assert.assertEquals(42, usage.getPid());
+        Assert.assertEquals(2, usage.getSamples());
+        Assert.assertEquals(3072 * 1024L, usage.getPeakRssBytes());
+        Assert.assertEquals(2048 * 1024L, usage.getAvgRssBytes());
+        Assert.assertEquals(3072 * 1024L, usage.getP90RssBytes());
+        // 50 ticks of 10 ms
+        Assert.assertEquals(500, usage.getCpuTimeMs());
+        Assert.assertTrue(usage.getAvgCpuCores() > 0);
+        Assert.assertEquals(usage.getAvgCpuCores(), usage.getPeakCpuCores(), 0.0001);
+    }
+
+    @Test
+    public void aProcessThatCannotBeReadHasNoSamples() throws Exception {
+        final ResourceMonitor monitor = new ResourceMonitor(temporaryFolder.newFolder("proc").toPath(), 10, 8);
+        try (ResourceMonitor.Watch watch = monitor.watch(42)){
+            Thread.sleep(50);
+            Assert.assertEquals(0, watch.getUsage().getSamples());
+            Assert.assertEquals(0, watch.getUsage().getPeakRssBytes());
+        }
+    }
+
+    @Test
+    public void samplesARunningProcess() throws Exception {
+        Assume.assumeTrue(Files.exists(Paths.get("/proc/self/stat")));
+        final ResourceMonitor monitor = new ResourceMonitor(Paths.get("/proc"), 10, 4);
+        final ResourceMonitor.Usage usage;
+        try (ResourceMonitor.Watch first = monitor.watch(Utils.jvmPid()); ResourceMonitor.Watch second = monitor.watch(Utils.jvmPid())){
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+            long spin = 0;
+            while (System.nanoTime() < end){
+                spin++;
+            }
+            Assert.assertTrue(spin > 0);
+            first.close();
+            usage = first.getUsage();
+            // Sampled together, more samples than the window
+            Assert.assertTrue(second.getUsage().getSamples() >= usage.getSamples() - 1);
+        }
+        Assert.assertTrue(usage.getSamples() > 4);
+        Assert.assertTrue(usage.getPeakRssBytes() >= usage.getAvgRssBytes());
+        Assert.assertTrue(usage.getAvgRssBytes() > 0);
+        Assert.assertTrue(usage.getCpuTimeMs() > 0);
+    }
+
+    private static void fakeProcess(final Path proc, final long ticks, final long rssKb) throws Exception {
+        final Path process = Files.createDirectories(proc.resolve("42"));
+        Files.write(process.resolve("stat"), ("42 (cockroach) S 1 42 42 0 -1 4194560 100 0 0 0 " + ticks + " 0 0 0 20 0 12 0").getBytes(StandardCharsets.UTF_8));
+        Files.write(process.resolve("status"), Arrays.asList("Name:\tcockroach", "VmRSS:\t" + rssKb + " kB"), StandardCharsets.UTF_8);
+    }
+}
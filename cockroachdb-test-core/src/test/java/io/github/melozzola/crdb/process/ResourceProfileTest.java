@@ -0,0 +1,112 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * <p> ResourceProfile test.
+ */
+public class ResourceProfileTest {
+
+    private static final long GIB = 1024L * 1024L * 1024L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void theCgroupLimitWinsOverThePhysicalMemory() throws Exception {
+        final Path meminfo = write("meminfo", "MemTotal:       16318864 kB\nMemFree:         1234567 kB\n");
+        final Path missing = temporaryFolder.getRoot().toPath().resolve("missing");
+        Assert.assertEquals(16318864L * 1024L, ResourceProfile.detectTotalMemory(meminfo, missing, missing));
+        Assert.assertEquals(2 * GIB, ResourceProfile.detectTotalMemory(meminfo, write("memory.max", Long.toString(2 * GIB)), missing));
+        // No limit
+        Assert.assertEquals(16318864L * 1024L, ResourceProfile.detectTotalMemory(meminfo, write("memory.max", "max"), write("limit", "9223372036854771712")));
+        Assert.assertEquals(-1, ResourceProfile.detectTotalMemory(missing, missing, missing));
+    }
+
+    @Test
+    public void sizesTheFlagsFromTheShareOfEachNode() {
+        final Flags flags = new Flags();
+        final ResourceProfile.Sizing sizing = ResourceProfile.defaults().totalMemory(32 * GIB).nodesPerHost(8).applyTo(flags);
+        // 25% of 32 GiB among 8 nodes: 1 GiB each
+        Assert.assertEquals(256L, (long) flags.getCache());
+        Assert.assertEquals(256L, (long) flags.getMaxSqlMemory());
+        Assert.assertEquals("type=mem,size=640MiB", flags.getStore());
+        Assert.assertEquals("default", sizing.getProfile());
+        Assert.assertEquals(32 * 1024, sizing.getTotalMemoryMiB());
+        Assert.assertEquals(8, sizing.getNodesPerHost());
+        Assert.assertEquals(256, sizing.getCacheMiB());
+        Assert.assertEquals(256, sizing.getMaxSqlMemoryMiB());
+        Assert.assertEquals(640, sizing.getStoreMiB());
+
+        ResourceProfile.large().totalMemory(32 * GIB).nodesPerHost(2).applyTo(flags);
+        Assert.assertEquals(1024L, (long) flags.getCache());
+        Assert.assertEquals(2048L, (long) flags.getMaxSqlMemory());
+        Assert.assertEquals("type=mem,size=4096MiB", flags.getStore());
+    }
+
+    @Test
+    public void theSizesStayWithinTheProfileBounds() {
+        final Flags flags = new Flags();
+        ResourceProfile.tiny().totalMemory(4 * GIB).nodesPerHost(16).applyTo(flags);
+        Assert.assertEquals(6L, (long) flags.getCache());
+        Assert.assertEquals(6L, (long) flags.getMaxSqlMemory());
+        Assert.assertEquals("type=mem,size=640MiB", flags.getStore());
+
+        ResourceProfile.tiny().totalMemory(GIB).nodesPerHost(64).applyTo(flags);
+        Assert.assertEquals(3L, (long) flags.getCache());
+        Assert.assertEquals(3L, (long) flags.getMaxSqlMemory());
+
+        ResourceProfile.of("large").totalMemory(1024 * GIB).nodesPerHost(1).applyTo(flags);
+        Assert.assertEquals(1024L, (long) flags.getCache());
+        Assert.assertEquals("type=mem,size=8192MiB", flags.getStore());
+    }
+
+    @Test
+    public void aDiskStoreIsNotSized() {
+        final Flags flags = new Flags();
+        flags.setStore("/tmp/store");
+        final ResourceProfile.Sizing sizing = ResourceProfile.defaults().totalMemory(32 * GIB).nodesPerHost(8).applyTo(flags);
+        Assert.assertEquals("/tmp/store", flags.getStore());
+        Assert.assertEquals(-1, sizing.getStoreMiB());
+    }
+
+    @Test
+    public void withoutProfileTheFixedSizesAreReported() {
+        final ResourceProfile.Sizing sizing = ResourceProfile.Sizing.of(new Flags());
+        Assert.assertEquals("fixed", sizing.getProfile());
+        Assert.assertEquals(3, sizing.getCacheMiB());
+        Assert.assertEquals(3, sizing.getMaxSqlMemoryMiB());
+        Assert.assertEquals(640, sizing.getStoreMiB());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unknownProfile() {
+        ResourceProfile.of("huge");
+    }
+
+    private Path write(final String name, final String content) throws Exception {
+        return Files.write(temporaryFolder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
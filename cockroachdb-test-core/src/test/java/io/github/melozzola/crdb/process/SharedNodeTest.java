@@ -0,0 +1,203 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.utils.StubCockroach;
+import io.github.melozzola.crdb.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> SharedNode test, with forks simulated by different instances in the same JVM and a stub executable.
+ */
+public class SharedNodeTest {
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private StubCockroach stub;
+    private Path folder;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeFalse(System.getProperty("os.name").toLowerCase().contains("win"));
+        stub = new StubCockroach(temporaryFolder.getRoot().toPath(), "0.1", true);
+        folder = temporaryFolder.newFolder("crdb-shared").toPath();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stub.close();
+    }
+
+    private Cockroach stubCockroach() {
+        return Cockroach.builder().executable(stub.getExecutable().toString()).build();
+    }
+
+    private SharedNode fork(final String name, final long heartbeatMs, final long ttlMs) {
+        return fork(name, heartbeatMs, ttlMs, 0);
+    }
+
+    private SharedNode fork(final String name, final long heartbeatMs, final long ttlMs, final long idleTtlMs) {
+        return new SharedNode(folder, Utils.jvmPid() + "-" + name, heartbeatMs, ttlMs, idleTtlMs, false);
+    }
+
+    @Test
+    public void theLastForkOutShutsDownTheNode() throws Exception {
+        final SharedNode.Lease first = fork("a", 100, HOUR_MS).attach(stubCockroach());
+        final SharedNode.Lease second = fork("b", 100, HOUR_MS).attach(stubCockroach());
+        final long pid = first.getProcessDetails().getPid();
+        Assert.assertEquals(pid, second.getProcessDetails().getPid());
+        Assert.assertEquals(stub.getPort(), second.getProcessDetails().getPort());
+        Assert.assertNotEquals(first.getDatabase(), second.getDatabase());
+
+        first.close();
+        Thread.sleep(200);
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+        Assert.assertNotNull(SharedNode.readLeaseOrNull(nodeFolder()));
+
+        second.close();
+        waitForDeath(pid);
+        Assert.assertFalse(Files.exists(nodeFolder()));
+    }
+
+    @Test
+    public void theWatchdogShutsDownTheNodeOfStaleForks() throws Exception {
+        // No heartbeat after the attach
+        final SharedNode.Lease lease = fork("a", HOUR_MS, 300).attach(stubCockroach());
+        final long pid = lease.getProcessDetails().getPid();
+        final Path nodeFolder = nodeFolder();
+        Assert.assertTrue(SharedNode.watch(nodeFolder, 300));
+        Assert.assertEquals(1, SharedNode.liveForks(nodeFolder, 300));
+
+        Thread.sleep(500);
+        Assert.assertFalse(SharedNode.watch(nodeFolder, 300));
+        waitForDeath(pid);
+        Assert.assertFalse(Files.exists(nodeFolder));
+        lease.close();
+    }
+
+    @Test
+    public void aDeadNodeIsStartedAgain() throws Exception {
+        final SharedNode.Lease first = fork("a", 100, HOUR_MS).attach(stubCockroach());
+        final long pid = first.getProcessDetails().getPid();
+        Utils.killCockroachProcess(pid);
+        waitForDeath(pid);
+
+        final SharedNode.Lease second = fork("b", 100, HOUR_MS).attach(stubCockroach());
+        Assert.assertNotEquals(pid, second.getProcessDetails().getPid());
+        second.close();
+        first.close();
+        waitForDeath(second.getProcessDetails().getPid());
+    }
+
+    @Test
+    public void aDiskStoreLivesInTheNodeFolder() throws Exception {
+        final SharedNode.Lease first = fork("a", 100, HOUR_MS).attach(Cockroach.builder().executable(stub.getExecutable().toString()).diskStore().build());
+        final SharedNode.Lease second = fork("b", 100, HOUR_MS).attach(Cockroach.builder().executable(stub.getExecutable().toString()).diskStore().build());
+        final long pid = first.getProcessDetails().getPid();
+        Assert.assertEquals(pid, second.getProcessDetails().getPid());
+        final Path store = nodeFolder().resolve("store");
+        Assert.assertTrue(Files.isDirectory(store));
+
+        // The discarded work folders are reaped in background
+        first.close();
+        Thread.sleep(200);
+        Assert.assertTrue(Files.isDirectory(store));
+
+        second.close();
+        waitForDeath(pid);
+        Assert.assertFalse(Files.exists(store));
+    }
+
+    @Test
+    public void aForkStaysAttachedForTheIdleTimeToLive() throws Exception {
+        final SharedNode fork = fork("a", 100, HOUR_MS, 300);
+        final SharedNode.Lease first = fork.attach(stubCockroach());
+        final long pid = first.getProcessDetails().getPid();
+        first.close();
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+
+        // Attached again within the idle time to live: the same node
+        final SharedNode.Lease second = fork.attach(stubCockroach());
+        Assert.assertEquals(pid, second.getProcessDetails().getPid());
+        Thread.sleep(500);
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+
+        second.close();
+        Assert.assertTrue(Utils.isProcessAlive(pid));
+        waitForDeath(pid);
+        // Detached in background, the node folder is deleted after the kill
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (Files.exists(nodeFolder())){
+            Assert.assertTrue("The node folder is still there", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void aBootDoesntBlockTheAttachesToTheOtherNodes() throws Exception {
+        final SharedNode fork = fork("a", 100, HOUR_MS);
+        final SharedNode.Lease first = fork.attach(stubCockroach());
+        try (StubCockroach slowStub = new StubCockroach(temporaryFolder.newFolder("slow").toPath(), "3", true)){
+            final CompletableFuture<SharedNode.Lease> slow = CompletableFuture.supplyAsync(
+                    () -> fork.attach(Cockroach.builder().executable(slowStub.getExecutable().toString()).build()));
+            Thread.sleep(500);
+            final long start = System.currentTimeMillis();
+            final SharedNode.Lease second = fork.attach(stubCockroach());
+            Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+            Assert.assertFalse(slow.isDone());
+            Assert.assertEquals(first.getProcessDetails().getPid(), second.getProcessDetails().getPid());
+
+            final SharedNode.Lease slowLease = slow.get(30, TimeUnit.SECONDS);
+            slowLease.close();
+            waitForDeath(slowLease.getProcessDetails().getPid());
+            second.close();
+        }
+        first.close();
+        waitForDeath(first.getProcessDetails().getPid());
+    }
+
+    private Path nodeFolder() throws Exception {
+        try (DirectoryStream<Path> nodes = Files.newDirectoryStream(folder, Files::isDirectory)){
+            for (Path node : nodes){
+                return node;
+            }
+        }
+        return folder.resolve("none");
+    }
+
+    private static void waitForDeath(final long pid) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (Utils.isProcessAlive(pid)){
+            Assert.assertTrue("The node is still running", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import io.github.melozzola.crdb.utils.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * <p> StartupScheduler test. Other processes are simulated by different instances sharing the same folder.
+ */
+public class StartupSchedulerTest {
+
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path folder;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = temporaryFolder.newFolder("crdb-startup").toPath();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void capsTheConcurrentBoots() throws Exception {
+        final StartupScheduler scheduler = new StartupScheduler(folder, 2, MINUTE_MS);
+        final AtomicInteger booting = new AtomicInteger(0);
+        final AtomicInteger maxBooting = new AtomicInteger(0);
+        final List<Future<?>> boots = new ArrayList<>();
+        for (int i = 0; i < 6; i++){
+            boots.add(executor.submit(() -> {
+                try (StartupScheduler.Slot slot = scheduler.acquire()){
+                    maxBooting.accumulateAndGet(booting.incrementAndGet(), Math::max);
+                    Thread.sleep(50);
+                    booting.decrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> boot : boots){
+            boot.get(10, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, maxBooting.get());
+    }
+
+    @Test
+    public void theSlotsAreSharedWithTheOtherProcesses() throws Exception {
+        final StartupScheduler.Slot slot = new StartupScheduler(folder, 1, MINUTE_MS).acquire();
+        final Future<StartupScheduler.Slot> other = executor.submit(() -> new StartupScheduler(folder, 1, MINUTE_MS).acquire());
+        try {
+            other.get(300, TimeUnit.MILLISECONDS);
+            Assert.fail("The slot is taken");
+        }catch (TimeoutException e){
+            // Expected
+        }
+
+        slot.close();
+        // Idempotent
+        slot.close();
+        try (StartupScheduler.Slot otherSlot = other.get(5, TimeUnit.SECONDS)){
+            Assert.assertTrue(otherSlot.getQueueNanos() >= TimeUnit.MILLISECONDS.toNanos(300));
+        }
+    }
+
+    @Test
+    public void theWaitersAreServedInOrder() throws Exception {
+        final StartupScheduler.Slot slot = new StartupScheduler(folder, 1, MINUTE_MS).acquire();
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final List<Future<?>> waiters = new ArrayList<>();
+        for (String name : new String[]{"first", "second", "third"}){
+            final StartupScheduler scheduler = new StartupScheduler(folder, 1, MINUTE_MS);
+            waiters.add(executor.submit(() -> {
+                try (StartupScheduler.Slot waiterSlot = scheduler.acquire()){
+                    order.add(name);
+                    Thread.sleep(20);
+                }
+                return null;
+            }));
+            // Distinct tickets
+            Thread.sleep(50);
+        }
+
+        slot.close();
+        for (Future<?> waiter : waiters){
+            waiter.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(3, order.size());
+        Assert.assertEquals("first", order.get(0));
+        Assert.assertEquals("second", order.get(1));
+        Assert.assertEquals("third", order.get(2));
+    }
+
+    @Test
+    public void theTicketsOfDeadProcessesAreIgnored() throws Exception {
+        final Path queue = Files.createDirectories(folder.resolve("queue"));
+        final Path deadTicket = Files.createFile(queue.resolve(String.format("%020d-%020d-%020d", System.currentTimeMillis() - 1000, Integer.MAX_VALUE, 1)));
+        try (StartupScheduler.Slot slot = new StartupScheduler(folder, 1, 2000).acquire()){
+            Assert.assertFalse(Files.exists(deadTicket));
+        }
+    }
+
+    @Test
+    public void theTicketsOlderThanTheQueueTimeoutAreIgnored() throws Exception {
+        final Path queue = Files.createDirectories(folder.resolve("queue"));
+        // A live pid, e.g. recycled or not verifiable
+        final Path staleTicket = Files.createFile(queue.resolve(String.format("%020d-%020d-%020d", System.currentTimeMillis() - MINUTE_MS, Utils.jvmPid(), 1)));
+        final long start = System.currentTimeMillis();
+        try (StartupScheduler.Slot slot = new StartupScheduler(folder, 1, 2000).acquire()){
+            Assert.assertFalse(Files.exists(staleTicket));
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+    }
+
+    @Test
+    public void failsWhenNoSlotIsFreeInTime() throws Exception {
+        try (StartupScheduler.Slot slot = new StartupScheduler(folder, 1, MINUTE_MS).acquire()){
+            final StartupScheduler other = new StartupScheduler(folder, 1, 200);
+            try {
+                other.acquire();
+                Assert.fail("No slot is free");
+            }catch (IllegalStateException e){
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("startup.max.concurrent"));
+            }
+            // The ticket is removed, the next waiters don't queue behind it
+            try (Stream<Path> tickets = Files.list(folder.resolve("queue"))){
+                Assert.assertEquals(0, tickets.count());
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.process;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+/**
+ * <p> StoreTemplates test
+ */
+public class StoreTemplatesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void checkpointAndRestore() throws Exception {
+        final Path store = temporaryFolder.newFolder("store").toPath();
+        Files.createDirectories(store.resolve("auxiliary"));
+        Files.write(store.resolve("000004.sst"), "immutable".getBytes(StandardCharsets.UTF_8));
+        Files.write(store.resolve("MANIFEST-000001"), "manifest".getBytes(StandardCharsets.UTF_8));
+        Files.write(store.resolve("auxiliary/file"), "aux".getBytes(StandardCharsets.UTF_8));
+
+        final String name = "test-" + UUID.randomUUID();
+        StoreTemplates.checkpoint(store, name);
+        Assert.assertTrue(StoreTemplates.exists(name));
+
+        final Path restored = temporaryFolder.getRoot().toPath().resolve("restored");
+        StoreTemplates.restore(name, restored);
+        Assert.assertEquals("immutable", new String(Files.readAllBytes(restored.resolve("000004.sst")), StandardCharsets.UTF_8));
+        Assert.assertEquals("aux", new String(Files.readAllBytes(restored.resolve("auxiliary/file")), StandardCharsets.UTF_8));
+
+        // Mutable files are copies: changing them doesn't change the template
+        Files.write(restored.resolve("MANIFEST-000001"), "changed".getBytes(StandardCharsets.UTF_8));
+        final Path again = temporaryFolder.getRoot().toPath().resolve("again");
+        StoreTemplates.restore(name, again);
+        Assert.assertEquals("manifest", new String(Files.readAllBytes(again.resolve("MANIFEST-000001")), StandardCharsets.UTF_8));
+
+        StoreTemplates.delete(name);
+        Assert.assertFalse(StoreTemplates.exists(name));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void restoreUnknownTemplate() {
+        StoreTemplates.restore("unknown-" + UUID.randomUUID(), temporaryFolder.getRoot().toPath().resolve("store"));
+    }
+
+    @Test
+    public void storeFolder() {
+        Assert.assertNull(StoreTemplates.storeFolderOrNull("type=mem,size=640MiB"));
+        Assert.assertEquals(Paths.get("/data"), StoreTemplates.storeFolderOrNull("/data"));
+        Assert.assertEquals(Paths.get("/data"), StoreTemplates.storeFolderOrNull("path=/data,size=20%"));
+    }
+}
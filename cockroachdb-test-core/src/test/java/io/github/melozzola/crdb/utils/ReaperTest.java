@@ -0,0 +1,83 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * <p> Reaper test
+ */
+public class ReaperTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void reapsInBackground() throws Exception {
+        final Path parent = temporaryFolder.getRoot().toPath();
+        final Path folder = Utils.createTemporaryDataFolderIn(parent.toString());
+        Files.createDirectories(folder.resolve("store/a/b"));
+        Files.write(folder.resolve("store/a/b/file.sst"), new byte[1024]);
+
+        final Reaper reaper = new Reaper(1, 0);
+        reaper.reap(folder);
+        Assert.assertFalse(Files.exists(folder));
+
+        reaper.awaitPendingDeletes();
+        Assert.assertEquals(0, count(parent));
+    }
+
+    @Test
+    public void deletesInPlaceWhenOverQuota() throws Exception {
+        final Path parent = temporaryFolder.getRoot().toPath();
+        final Path folder = Utils.createTemporaryDataFolderIn(parent.toString());
+
+        new Reaper(1, Long.MAX_VALUE).reap(folder);
+        Assert.assertEquals(0, count(parent));
+    }
+
+    @Test
+    public void sweepsFoldersOfDeadJvms() throws Exception {
+        final Process dead = new ProcessBuilder("java", "-version").start();
+        dead.waitFor();
+        final Long deadPid = StartupWatcher.pidOf(dead);
+        Assume.assumeNotNull(deadPid);
+
+        final Path parent = temporaryFolder.getRoot().toPath();
+        final Path orphan = Utils.createTemporaryDataFolderIn(parent.toString());
+        Files.write(orphan.resolve(Utils.OWNER_FILE), deadPid.toString().getBytes(StandardCharsets.UTF_8));
+        final Path mine = Utils.createTemporaryDataFolderIn(parent.toString());
+
+        new Reaper(1, 0).sweep(parent);
+        Assert.assertFalse(Files.exists(orphan));
+        Assert.assertTrue(Files.exists(mine));
+    }
+
+    private static long count(final Path folder) throws Exception {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * <p> Micro benchmark comparing the time to ready of the {@link StartupWatcher} against the previous 100 ms sleep loop.
+ * <p> It uses the {@link StubCockroach} executable, so it measures only the detection latency.
+ *     It is not run by the build, run it with:
+ * <pre>
+ *     {@code
+ *     ./mvnw -pl cockroachdb-test-core test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=io.github.melozzola.crdb.utils.StartupWatcherBenchmark
+ *     }
+ * </pre>
+ */
+public class StartupWatcherBenchmark {
+
+    private static final int WARM_UP = 5;
+    private static final int ITERATIONS = 30;
+
+    public static void main(String[] args) throws Exception {
+        final Path root = Files.createTempDirectory("crdb-bench");
+        try (StubCockroach stub = new StubCockroach(root, "0.05")) {
+            run("legacy sleep loop", root, stub, (folder, process) -> legacyWaitForStartup(folder.resolve("pid.txt"), folder.resolve("url.txt"), 10000));
+            run("startup watcher ", root, stub, (folder, process) -> StartupWatcher.waitForStartup(process, true, folder.resolve("pid.txt"), folder.resolve("url.txt"), 10000));
+        } finally {
+            Utils.recursiveDelete(root);
+        }
+    }
+
+    private static void run(final String name, final Path root, final StubCockroach stub, final BiConsumer<Path, Process> waiter) throws Exception {
+        final long[] samples = new long[ITERATIONS];
+        for (int i = 0; i < WARM_UP + ITERATIONS; i++) {
+            final Path folder = Files.createTempDirectory(root, "work");
+            final long start = System.nanoTime();
+            final Process process = StartupWatcherTest.start(stub, folder);
+            try {
+                waiter.accept(folder, process);
+                if (i >= WARM_UP) {
+                    samples[i - WARM_UP] = System.nanoTime() - start;
+                }
+            } finally {
+                process.destroyForcibly().waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+        Arrays.sort(samples);
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        System.out.printf("%s: mean %6.1f ms, p50 %6.1f ms, p90 %6.1f ms, max %6.1f ms%n", name,
+                millis(total / samples.length), millis(samples[samples.length / 2]),
+                millis(samples[(int) (samples.length * 0.9)]), millis(samples[samples.length - 1]));
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * <p> The startup detection as it was before the {@link StartupWatcher}: sleep 100 ms, check the files, repeat.
+     *     Unlike the original, the socket channels are closed so the benchmark doesn't leak.
+     */
+    private static void legacyWaitForStartup(final Path pidFile, final Path urlFile, final long maxWaitTimeMs) {
+        long totalWait = 0;
+        Long pid = null;
+        String url = null;
+        while (totalWait < maxWaitTimeMs) {
+            try {
+                Thread.sleep(100);
+                totalWait = totalWait + 100;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            if (pid == null && Files.exists(pidFile) && hasContent(pidFile)) {
+                pid = Utils.readPid(pidFile);
+            } else {
+                continue;
+            }
+            if (url == null && Files.exists(urlFile) && hasContent(urlFile)) {
+                url = Utils.readUrl(urlFile);
+            } else {
+                continue;
+            }
+            final String hostAndPort = url.substring(url.indexOf('@') + 1, url.indexOf('?'));
+            final String host = hostAndPort.substring(0, hostAndPort.indexOf(':'));
+            final int port = Integer.parseInt(hostAndPort.substring(hostAndPort.indexOf(':') + 1));
+            try (SocketChannel ignored = SocketChannel.open(new InetSocketAddress(host, port))) {
+                return;
+            } catch (IOException e) {
+                // Shh
+            }
+        }
+        throw new IllegalStateException("Timeout");
+    }
+
+    private static boolean hasContent(final Path file) {
+        try {
+            return Files.size(file) > 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
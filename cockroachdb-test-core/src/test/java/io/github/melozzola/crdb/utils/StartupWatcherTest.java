@@ -0,0 +1,101 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import io.github.melozzola.crdb.process.ProcessDetails;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p> StartupWatcher test
+ */
+public class StartupWatcherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void posixOnly(){
+        Assume.assumeFalse(System.getProperty("os.name").toLowerCase().contains("win"));
+    }
+
+    @Test
+    public void waitsForTheStubToStartUp() throws Exception {
+        final Path folder = temporaryFolder.newFolder("work").toPath();
+        try (StubCockroach stub = new StubCockroach(temporaryFolder.getRoot().toPath(), "0.2")) {
+            final Process process = start(stub, folder);
+            try {
+                final ProcessDetails details = StartupWatcher.waitForStartup(process, true, folder.resolve("pid.txt"), folder.resolve("url.txt"), 10000);
+                Assert.assertEquals(stub.getPort(), details.getPort());
+                Assert.assertEquals("127.0.0.1", details.getHost());
+                Assert.assertTrue(details.getUrl().startsWith("postgresql://root@127.0.0.1:"));
+
+                final Long pid = StartupWatcher.pidOf(process);
+                if (pid != null) {
+                    Assert.assertEquals(pid.longValue(), details.getPid());
+                }
+            } finally {
+                process.destroyForcibly().waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test
+    public void readsThePidFromTheFileWithoutTheProcess() throws Exception {
+        final Path folder = temporaryFolder.newFolder("work").toPath();
+        try (StubCockroach stub = new StubCockroach(temporaryFolder.getRoot().toPath(), "0.1")) {
+            final Process process = start(stub, folder);
+            try {
+                final ProcessDetails details = Utils.waitForStartup(folder.resolve("pid.txt"), folder.resolve("url.txt"), 10000);
+                Assert.assertEquals(stub.getPort(), details.getPort());
+                Assert.assertTrue(details.getPid() > 0);
+            } finally {
+                process.destroyForcibly().waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsFastWhenTheProcessExits() throws Exception {
+        final Path folder = temporaryFolder.newFolder("work").toPath();
+        final Process process = Runtime.getRuntime().exec(new String[]{"/bin/sh", "-c", "exit 1"});
+        final long start = System.nanoTime();
+        try {
+            StartupWatcher.waitForStartup(process, true, folder.resolve("pid.txt"), folder.resolve("url.txt"), 30000);
+        } finally {
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 10000);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void timesOut() throws Exception {
+        final Path folder = temporaryFolder.newFolder("work").toPath();
+        StartupWatcher.waitForStartup(null, false, folder.resolve("pid.txt"), folder.resolve("url.txt"), 300);
+    }
+
+    static Process start(final StubCockroach stub, final Path folder) throws Exception {
+        return Runtime.getRuntime().exec(stub.getExecutable() + " start" +
+                " --pid-file=" + folder.resolve("pid.txt").toAbsolutePath() +
+                " --listening-url-file=" + folder.resolve("url.txt").toAbsolutePath());
+    }
+}
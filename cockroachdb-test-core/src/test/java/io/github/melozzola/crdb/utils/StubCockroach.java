@@ -0,0 +1,110 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+
+/**
+ * <p> Stand in for the cockroach executable (posix shell script).
+ * <p> When started with {@code start ...} it parses the {@code --pid-file}, {@code --listening-url-file}, {@code --store} and {@code --join}
+ *     flags, creates the folder of a disk store, waits for the configured delay (and, with {@code --join}, for a node without it to be up),
+ *     writes its pid and a listening url pointing to a server socket opened by this class, then sleeps.
+ * <p> The started nodes are listed at once by {@code node ls}, and counted one second later by {@code sql} (as gossip nodes).
+ */
+public class StubCockroach implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final Path executable;
+
+    public StubCockroach(final Path folder, final String startupDelay) throws IOException {
+        this(folder, startupDelay, false);
+    }
+
+    /**
+     * @param folder Where to write the script.
+     * @param startupDelay The start up delay, in seconds.
+     * @param recognizable If the pid keeps running the script (instead of {@code sleep}), so that it's recognized as a cockroach process.
+     * @throws IOException If the script can't be written.
+     */
+    public StubCockroach(final Path folder, final String startupDelay, final boolean recognizable) throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket ignored = serverSocket.accept()) {
+                    // just accept
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "stub-cockroach-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        executable = folder.resolve("cockroach-stub.sh");
+        final String state = folder.toAbsolutePath().resolve("cockroach-stub").toString();
+        final String script = "#!/bin/sh\n" +
+                "STATE=\"" + state + "\"\n" +
+                "case \"$1\" in\n" +
+                "  node) cat \"$STATE.started\" 2>/dev/null; exit 0 ;;\n" +
+                "  sql) echo count; if [ -f \"$STATE.gossip\" ]; then wc -l < \"$STATE.gossip\"; else echo 0; fi; exit 0 ;;\n" +
+                "esac\n" +
+                "for arg in \"$@\"; do\n" +
+                "  case \"$arg\" in\n" +
+                "    --pid-file=*) PID_FILE=\"${arg#--pid-file=}\" ;;\n" +
+                "    --listening-url-file=*) URL_FILE=\"${arg#--listening-url-file=}\" ;;\n" +
+                "    --store=*) STORE=\"${arg#--store=}\" ;;\n" +
+                "    --join=*) JOIN=\"${arg#--join=}\" ;;\n" +
+                "  esac\n" +
+                "done\n" +
+                "case \"$STORE\" in\n" +
+                "  ''|*type=mem*) ;;\n" +
+                "  *) STORE=\"${STORE#path=}\"; mkdir -p \"${STORE%%,*}\" ;;\n" +
+                "esac\n" +
+                "sleep " + startupDelay + "\n" +
+                "if [ -n \"$JOIN\" ]; then\n" +
+                "  i=0; while [ ! -f \"$STATE.bootstrapped\" ] && [ $i -lt 600 ]; do sleep 0.1; i=$((i+1)); done\n" +
+                "fi\n" +
+                "echo $$ > \"$PID_FILE\"\n" +
+                "echo \"postgresql://root@127.0.0.1:" + serverSocket.getLocalPort() + "?application_name=cockroach&sslmode=disable\" > \"$URL_FILE\"\n" +
+                "[ -n \"$JOIN\" ] || touch \"$STATE.bootstrapped\"\n" +
+                "echo $$ >> \"$STATE.started\"\n" +
+                "(sleep 1; echo $$ >> \"$STATE.gossip\") &\n" +
+                (recognizable ? "i=0; while [ $i -lt 60 ]; do sleep 1; i=$((i+1)); done\n" : "exec sleep 60\n");
+        Files.write(executable, script.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(executable, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE));
+    }
+
+    public Path getExecutable() {
+        return executable;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2017 Silvano Riz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.melozzola.crdb.utils;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p> TmpfsPlacement test.
+ */
+public class TmpfsPlacementTest {
+
+    private static final long MIB = 1024L * 1024L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void detectsTheMemoryMounts() throws Exception {
+        final Path mounts = temporaryFolder.newFile("mounts").toPath();
+        Files.write(mounts, Arrays.asList(
+                "/dev/sda1 / ext4 rw,relatime 0 0",
+                "tmpfs /run/ci\\040cache tmpfs rw,nosuid,size=1048576k 0 0",
+                "tmpfs /sys/fs/cgroup tmpfs ro,nosuid,mode=755 0 0",
+                "tmpfs /dev/shm tmpfs rw,nosuid,nodev 0 0",
+                "tmpfs /dev/shm tmpfs rw,nosuid,nodev 0 0",
+                "tmpfs /mnt/readonly tmpfs ro 0 0",
+                "none /mnt/ram ramfs rw 0 0",
+                "server:/tmp /tmp nfs rw,vers=4 0 0"), StandardCharsets.UTF_8);
+        Assert.assertEquals(Arrays.asList(Paths.get("/dev/shm"), Paths.get("/run/ci cache"), Paths.get("/mnt/ram")), TmpfsPlacement.memoryMounts(mounts));
+        Assert.assertTrue(TmpfsPlacement.memoryMounts(temporaryFolder.getRoot().toPath().resolve("missing")).isEmpty());
+    }
+
+    @Test
+    public void prefersTheFirstCandidateWithEnoughSpace() throws Exception {
+        final Path fallback = temporaryFolder.newFolder("disk").toPath();
+        final Path missing = temporaryFolder.getRoot().toPath().resolve("missing");
+        final Path tmpfs = temporaryFolder.newFolder("tmpfs").toPath();
+        final List<Path> candidates = Arrays.asList(missing, tmpfs);
+        final TmpfsPlacement placement = new TmpfsPlacement(candidates, fallback, MIB, 16 * MIB, 8);
+        Assert.assertEquals(tmpfs, placement.parentFor(MIB));
+        Assert.assertEquals(tmpfs, placement.parentForWorkFolder(true));
+        Assert.assertTrue(placement.isMemoryBacked(tmpfs));
+        Assert.assertFalse(placement.isMemoryBacked(fallback));
+        Assert.assertEquals(8, placement.getTempStorageMb());
+    }
+
+    @Test
+    public void fallsBackToDiskWhenTheMemoryFileSystemIsTooSmall() throws Exception {
+        final Path fallback = temporaryFolder.newFolder("disk").toPath();
+        final Path tmpfs = temporaryFolder.newFolder("tmpfs").toPath();
+        final long usable = Files.getFileStore(tmpfs).getUsableSpace();
+        final TmpfsPlacement placement = new TmpfsPlacement(Collections.singletonList(tmpfs), fallback, usable, usable, 8);
+        Assert.assertEquals(fallback, placement.parentForWorkFolder(true));
+        Assert.assertEquals(fallback, new TmpfsPlacement(Collections.emptyList(), fallback, 0, 0, 0).parentForWorkFolder(false));
+    }
+
+    @Test
+    public void theReservedSpaceIsNotFree() throws Exception {
+        final Path fallback = temporaryFolder.newFolder("disk").toPath();
+        final Path tmpfs = temporaryFolder.newFolder("tmpfs").toPath();
+        // Room for one store only
+        final long storeBytes = Files.getFileStore(tmpfs).getUsableSpace() / 10 * 6;
+        final TmpfsPlacement placement = new TmpfsPlacement(Collections.singletonList(tmpfs), fallback, 0, storeBytes, 0);
+        final TmpfsPlacement.Reservation first = placement.reserveWorkFolder(true);
+        Assert.assertEquals(tmpfs, first.getParent());
+        Assert.assertTrue(first.isMemoryBacked());
+
+        final TmpfsPlacement.Reservation second = placement.reserveWorkFolder(true);
+        Assert.assertEquals(fallback, second.getParent());
+        Assert.assertFalse(second.isMemoryBacked());
+
+        first.release();
+        // Idempotent
+        first.release();
+        Assert.assertEquals(tmpfs, placement.reserveWorkFolder(true).getParent());
+    }
+}
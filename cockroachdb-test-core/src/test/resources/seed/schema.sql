@@ -0,0 +1,5 @@
+-- Schema of the seed loader test
+CREATE DATABASE IF NOT EXISTS test;
+CREATE TABLE IF NOT EXISTS test.logs (id INT PRIMARY KEY, log STRING); /* the values
+ may contain ; */
+INSERT INTO test.logs (id, log) VALUES (0, 'it''s; here');